@@ -0,0 +1,86 @@
+/*
+* Copyright 2013 Christophe Uberri <cuberri@gmail.com>
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package cmdsrv.client;
+
+import com.google.common.base.Charsets;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * Payloads shared by the benchmarks
+ *
+ * @author Christophe Uberri <cuberri@gmail.com>
+ */
+final class CmdsrvBenchPayloads {
+
+    private CmdsrvBenchPayloads() {
+    }
+
+    /**
+     * <code>ls -l</code> like output of the given size in characters, with a few characters JSON has to escape
+     *
+     * @param size
+     * @return
+     */
+    static String output(int size) {
+        StringBuilder out = new StringBuilder(size + 64);
+        for (int i = 0; out.length() < size; i++) {
+            out.append("-rw-r--r--\t1 cmdsrv cmdsrv ").append(i * 31 % 65536).append(" Jan  1 00:00 \"file-").append(i).append("\"\n");
+        }
+        out.setLength(size);
+        return out.toString();
+    }
+
+    /**
+     * The response of a command which wrote <code>stdoutSize</code> characters
+     *
+     * @param stdoutSize
+     * @return
+     */
+    static CmdsrvResponse response(int stdoutSize) {
+        return new CmdsrvResponse(0, output(stdoutSize), "", "ls", "-a", "-l");
+    }
+
+    /**
+     * The response in the CmdsrvBinaryCodec format
+     *
+     * @param res
+     * @return
+     * @throws IOException
+     */
+    static byte[] binary(CmdsrvResponse res) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(res.getRetval());
+        out.writeInt(res.getCmd().length);
+        for (String arg : res.getCmd()) {
+            writeString(arg, out);
+        }
+        writeString(res.getStdout(), out);
+        writeString(res.getStderr(), out);
+        out.writeInt(res.isTimedOut() ? CmdsrvBinaryCodec.TIMED_OUT : 0);
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private static void writeString(String s, DataOutputStream out) throws IOException {
+        byte[] data = s.getBytes(Charsets.UTF_8);
+        out.writeInt(data.length);
+        out.write(data);
+    }
+}
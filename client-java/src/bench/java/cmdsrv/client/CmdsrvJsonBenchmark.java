@@ -0,0 +1,98 @@
+/*
+* Copyright 2013 Christophe Uberri <cuberri@gmail.com>
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package cmdsrv.client;
+
+import com.google.common.base.Charsets;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Marshalling of requests and responses, from a tiny output to a multi-MB one. The binary codec is measured as well
+ * for comparison.
+ *
+ * @author Christophe Uberri <cuberri@gmail.com>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+public class CmdsrvJsonBenchmark {
+
+    /**
+     * Size of the command argument and of the output, in characters
+     */
+    @Param({"64", "16384", "1048576", "4194304"})
+    public int size;
+
+    private CmdsrvRequest request;
+    private String requestJson;
+    private CmdsrvResponse response;
+    private String responseJson;
+    private byte[] responseJsonBytes;
+    private byte[] responseBinaryBytes;
+
+    @Setup
+    public void setup() throws IOException {
+        request = new CmdsrvRequest("sh", "-c", CmdsrvBenchPayloads.output(size));
+        requestJson = CmdsrvRequest.toJson(request);
+        response = CmdsrvBenchPayloads.response(size);
+        responseJson = CmdsrvResponse.toJson(response);
+        responseJsonBytes = responseJson.getBytes(Charsets.UTF_8);
+        responseBinaryBytes = CmdsrvBenchPayloads.binary(response);
+    }
+
+    @Benchmark
+    public String requestToJson() {
+        return CmdsrvRequest.toJson(request);
+    }
+
+    @Benchmark
+    public CmdsrvRequest requestFromJson() {
+        return CmdsrvRequest.fromJson(requestJson);
+    }
+
+    @Benchmark
+    public String responseToJson() {
+        return CmdsrvResponse.toJson(response);
+    }
+
+    @Benchmark
+    public CmdsrvResponse responseFromJson() {
+        return CmdsrvResponse.fromJson(responseJson);
+    }
+
+    /**
+     * What the rest clients do : decode straight from the bytes of the HTTP entity
+     */
+    @Benchmark
+    public CmdsrvResponse readJsonResponse() throws IOException {
+        return CmdsrvJsonCodec.INSTANCE.readResponse(new ByteArrayInputStream(responseJsonBytes));
+    }
+
+    @Benchmark
+    public CmdsrvResponse readBinaryResponse() throws IOException {
+        return CmdsrvBinaryCodec.INSTANCE.readResponse(new ByteArrayInputStream(responseBinaryBytes));
+    }
+}
@@ -0,0 +1,96 @@
+/*
+* Copyright 2013 Christophe Uberri <cuberri@gmail.com>
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package cmdsrv.client;
+
+import com.google.common.base.Charsets;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>
+ *     CmdsrvRestClientJersey.execute round trips through a CmdsrvPooledTransport, against a CmdsrvStubServer, with 1,
+ *     4 and 16 client threads sharing the client.
+ * </p>
+ *
+ * <p>
+ *     The stub serves as many requests at the same time as there are client threads : the throughput is bounded by
+ *     the client, the transport and the loopback interface.
+ * </p>
+ *
+ * @author Christophe Uberri <cuberri@gmail.com>
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+public class CmdsrvRoundTripBenchmark {
+
+    private static final int MAX_THREADS = 16;
+
+    /**
+     * Size of the output returned by the stub, in characters
+     */
+    @Param({"64", "65536"})
+    public int stdoutSize;
+
+    private CmdsrvStubServer server;
+    private CmdsrvPooledTransport transport;
+    private CmdsrvRestClientJersey client;
+    private CmdsrvRequest request = new CmdsrvRequest("ls", "-a", "-l");
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        byte[] body = CmdsrvResponse.toJson(CmdsrvBenchPayloads.response(stdoutSize)).getBytes(Charsets.UTF_8);
+        server = new CmdsrvStubServer(CmdsrvJsonCodec.CONTENT_TYPE, body, MAX_THREADS);
+        transport = new CmdsrvPooledTransport(MAX_THREADS, 1000, 10000, 30000);
+        client = transport.createRestClient(server.getUrl());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        transport.close();
+        server.close();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public CmdsrvResponse execute1Thread() {
+        return client.execute(request);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public CmdsrvResponse execute4Threads() {
+        return client.execute(request);
+    }
+
+    @Benchmark
+    @Threads(MAX_THREADS)
+    public CmdsrvResponse execute16Threads() {
+        return client.execute(request);
+    }
+}
@@ -0,0 +1,86 @@
+/*
+* Copyright 2013 Christophe Uberri <cuberri@gmail.com>
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package cmdsrv.client;
+
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * In-process stand-in for the cmdsrv server, answering every request of /cmd with the same body : the round trip
+ * benchmarks measure the client and the transport, not the commands.
+ *
+ * @author Christophe Uberri <cuberri@gmail.com>
+ */
+class CmdsrvStubServer implements Closeable {
+
+    private HttpServer server;
+    private ExecutorService executor;
+
+    /**
+     * Listen on a free port of the loopback interface
+     *
+     * @param contentType
+     * @param responseBody
+     * @param threads Number of requests served at the same time
+     * @throws IOException
+     */
+    CmdsrvStubServer(final String contentType, final byte[] responseBody, int threads) throws IOException {
+        // headers and body are written separately : without it, Nagle's algorithm and the delayed ACKs of the client
+        // add tens of milliseconds to every request
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 128);
+        server.createContext("/cmd", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                ByteStreams.toByteArray(exchange.getRequestBody());
+                exchange.getResponseHeaders().set("Content-Type", contentType);
+                exchange.sendResponseHeaders(200, responseBody.length);
+                OutputStream out = exchange.getResponseBody();
+                out.write(responseBody);
+                out.close();
+            }
+        });
+        executor = Executors.newFixedThreadPool(threads, new ThreadFactoryBuilder()
+                .setNameFormat("cmdsrv-stub-%d")
+                .setDaemon(true)
+                .build());
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    /**
+     * @return The location of the /cmd route
+     */
+    String getUrl() {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + "/cmd";
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,321 @@
+/*
+* Copyright 2013 Christophe Uberri <cuberri@gmail.com>
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package cmdsrv;
+
+import cmdsrv.client.CmdsrvBinaryCodec;
+import cmdsrv.client.CmdsrvClientException;
+import cmdsrv.client.CmdsrvJsonCodec;
+import cmdsrv.client.CmdsrvLatencyHistogram;
+import cmdsrv.client.CmdsrvPooledTransport;
+import cmdsrv.client.CmdsrvRequest;
+import cmdsrv.client.CmdsrvResponse;
+import cmdsrv.client.CmdsrvRestClientJersey;
+import cmdsrv.client.ICmdsrvClient;
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>
+ *     Load generator for a cmdsrv server, started by <code>Main load ...</code> :
+ * </p>
+ *
+ * <pre>
+ * java -cp ... cmdsrv.Main load http://host:port/cmd mixfile [threads=8] [rate=0] [duration=60] [binary]
+ * </pre>
+ *
+ * <ul>
+ *     <li>closed loop (rate=0, the default) : each thread sends its next request as soon as it gets the previous
+ *     response. The throughput is what the server sustains with <code>threads</code> clients.</li>
+ *     <li>open loop (rate &gt; 0) : <code>rate</code> requests per second are started on schedule, whether the
+ *     previous ones are done or not, and handed to <code>threads</code> threads. Latencies are measured from the
+ *     scheduled start : the time waiting for a free thread is accounted for, as a real client would see it. Raising
+ *     the rate run after run shows where the latency takes off. At most one second of requests waits for a thread :
+ *     the starts beyond it, and those still waiting when the duration is over, are reported as missed instead of
+ *     being sent late.</li>
+ * </ul>
+ *
+ * <p>
+ *     The mix file holds one JSON request per line, optionally preceded by its weight (1 by default). Empty lines and
+ *     lines starting with <code>#</code> are ignored :
+ * </p>
+ *
+ * <pre>
+ * # 3 ls for 1 stat
+ * 3 {"cmd":["ls", "-l", "/tmp"]}
+ * {"cmd":["stat", "/tmp"]}
+ * </pre>
+ *
+ * <p>
+ *     The report gives the throughput, the latency percentiles, the errors by HTTP status (0 when the server could
+ *     not be reached), the distribution of the return values of the commands and, in an open loop, the missed
+ *     starts.
+ * </p>
+ *
+ * @author Christophe Uberri <cuberri@gmail.com>
+ */
+public class LoadDriver {
+
+    private static final long PROGRESS_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(5);
+
+    /**
+     * Scheduled starts which may wait for a thread in an open loop, in seconds of the rate
+     */
+    private static final int MAX_BACKLOG_SECONDS = 1;
+
+    private ICmdsrvClient client;
+    private List<CmdsrvRequest> mix;
+    private int threads;
+    private double rate;
+    private long durationNanos;
+
+    private CmdsrvLatencyHistogram latency = new CmdsrvLatencyHistogram();
+    private AtomicLong completed = new AtomicLong();
+    private AtomicLong missed = new AtomicLong();
+    private ConcurrentMap<Integer, AtomicLong> errorsByStatus = new ConcurrentHashMap<>();
+    private ConcurrentMap<Integer, AtomicLong> retvals = new ConcurrentHashMap<>();
+
+    /**
+     * @param client
+     * @param mix The requests to pick from, each one appearing as many times as its weight
+     * @param threads
+     * @param rate Requests started per second, 0 for a closed loop
+     * @param durationSeconds
+     */
+    public LoadDriver(ICmdsrvClient client, List<CmdsrvRequest> mix, int threads, double rate, long durationSeconds) {
+        if (mix.isEmpty()) {
+            throw new IllegalArgumentException("The request mix is empty");
+        }
+        this.client = client;
+        this.mix = mix;
+        this.threads = threads;
+        this.rate = rate;
+        this.durationNanos = TimeUnit.SECONDS.toNanos(durationSeconds);
+    }
+
+    /**
+     * @param args url mixfile [threads=N] [rate=R] [duration=S] [binary]
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length < 2) {
+            System.out.println("Usage: java -cp ... cmdsrv.Main load http://host:port/path/to/cmdsrv mixfile [threads=8] [rate=0] [duration=60] [binary]");
+            System.exit(1);
+        }
+
+        int threads = 8;
+        double rate = 0;
+        long duration = 60;
+        boolean binary = false;
+        for (int i = 2; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.startsWith("threads=")) {
+                threads = Integer.parseInt(arg.substring("threads=".length()));
+            } else if (arg.startsWith("rate=")) {
+                rate = Double.parseDouble(arg.substring("rate=".length()));
+            } else if (arg.startsWith("duration=")) {
+                duration = Long.parseLong(arg.substring("duration=".length()));
+            } else if ("binary".equals(arg)) {
+                binary = true;
+            } else {
+                System.out.println("Unknown option : " + arg);
+                System.exit(1);
+            }
+        }
+
+        List<CmdsrvRequest> mix = readMix(new File(args[1]));
+        CmdsrvPooledTransport transport = new CmdsrvPooledTransport(threads, 1000, 60000, 30000);
+        try {
+            CmdsrvRestClientJersey client = new CmdsrvRestClientJersey(transport.getClient().resource(args[0]),
+                    binary ? CmdsrvBinaryCodec.INSTANCE : CmdsrvJsonCodec.INSTANCE);
+            LoadDriver driver = new LoadDriver(client, mix, threads, rate, duration);
+            System.err.println("Sending " + (rate > 0 ? rate + " requests/s (open loop)" : "requests in a closed loop")
+                    + " with " + threads + " threads for " + duration + "s to " + args[0]);
+            System.out.print(driver.run());
+        } finally {
+            transport.close();
+        }
+    }
+
+    /**
+     * Parse a mix file (see the class documentation)
+     *
+     * @param file
+     * @return
+     * @throws IOException
+     */
+    public static List<CmdsrvRequest> readMix(File file) throws IOException {
+        List<CmdsrvRequest> mix = new ArrayList<>();
+        for (String line : Files.readLines(file, Charsets.UTF_8)) {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            int weight = 1;
+            int json = line.indexOf('{');
+            if (json > 0) {
+                weight = Integer.parseInt(line.substring(0, json).trim());
+                line = line.substring(json);
+            }
+            CmdsrvRequest req = CmdsrvRequest.fromJson(line);
+            for (int i = 0; i < weight; i++) {
+                mix.add(req);
+            }
+        }
+        return mix;
+    }
+
+    /**
+     * Send the requests for the configured duration, wait for the responses of those in flight and return the report
+     *
+     * @return
+     * @throws InterruptedException
+     */
+    public String run() throws InterruptedException {
+        int backlog = Math.max(threads, (int) Math.min(Integer.MAX_VALUE, rate * MAX_BACKLOG_SECONDS));
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(backlog), new RejectedExecutionHandler() {
+            @Override
+            public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+                // the threads are too far behind the schedule
+                missed.incrementAndGet();
+            }
+        });
+        long start = System.nanoTime();
+        final long end = start + durationNanos;
+        if (rate > 0) {
+            long period = (long) (TimeUnit.SECONDS.toNanos(1) / rate);
+            long nextProgress = start + PROGRESS_INTERVAL_NANOS;
+            for (long scheduled = start; scheduled < end; scheduled += period) {
+                sleepUntil(scheduled);
+                final long from = scheduled;
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        send(from);
+                    }
+                });
+                if (scheduled >= nextProgress) {
+                    progress(start);
+                    nextProgress += PROGRESS_INTERVAL_NANOS;
+                }
+            }
+        } else {
+            for (int i = 0; i < threads; i++) {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        while (System.nanoTime() < end) {
+                            send(System.nanoTime());
+                        }
+                    }
+                });
+            }
+            for (long progress = start + PROGRESS_INTERVAL_NANOS; progress < end; progress += PROGRESS_INTERVAL_NANOS) {
+                sleepUntil(progress);
+                progress(start);
+            }
+        }
+        // the starts still waiting for a thread would be sent past the duration
+        missed.addAndGet(executor.getQueue().drainTo(new ArrayList<Runnable>()));
+        executor.shutdown();
+        executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        return report(System.nanoTime() - start);
+    }
+
+    private void send(long from) {
+        CmdsrvRequest req = mix.get(ThreadLocalRandom.current().nextInt(mix.size()));
+        try {
+            CmdsrvResponse res = client.execute(req);
+            increment(retvals, res.getRetval());
+        } catch (CmdsrvClientException e) {
+            increment(errorsByStatus, e.getStatusCode());
+        } catch (RuntimeException e) {
+            increment(errorsByStatus, 0);
+        }
+        latency.record(System.nanoTime() - from, TimeUnit.NANOSECONDS);
+        completed.incrementAndGet();
+    }
+
+    private void progress(long start) {
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        System.err.println(String.format("%6.1fs : %d requests, %.1f requests/s, p99 %.1f ms, %d missed",
+                elapsed, completed.get(), completed.get() / elapsed, latency.getPercentileMillis(99), missed.get()));
+    }
+
+    private String report(long elapsedNanos) {
+        double elapsed = elapsedNanos / 1e9;
+        long count = latency.getCount();
+        long errors = 0;
+        for (AtomicLong n : errorsByStatus.values()) {
+            errors += n.get();
+        }
+        StringBuilder report = new StringBuilder();
+        report.append(String.format("requests   : %d in %.1fs, %.1f requests/s%n", count, elapsed, count / elapsed));
+        report.append(String.format("errors     : %d %s%n", errors, toString(errorsByStatus, "status ")));
+        report.append(String.format("latency ms : mean %.2f, p50 %.2f, p90 %.2f, p99 %.2f, p99.9 %.2f, max %.2f%n",
+                latency.getMeanMillis(), latency.getPercentileMillis(50), latency.getPercentileMillis(90),
+                latency.getPercentileMillis(99), latency.getPercentileMillis(99.9), latency.getMaxMillis()));
+        report.append(String.format("retval     : %s%n", toString(retvals, "")));
+        if (rate > 0) {
+            report.append(String.format("missed     : %d of %d scheduled%n", missed.get(), count + missed.get()));
+        }
+        return report.toString();
+    }
+
+    private static void sleepUntil(long nanoTime) throws InterruptedException {
+        long delay = nanoTime - System.nanoTime();
+        if (delay > 0) {
+            TimeUnit.NANOSECONDS.sleep(delay);
+        }
+    }
+
+    private static void increment(ConcurrentMap<Integer, AtomicLong> counts, int key) {
+        AtomicLong count = counts.get(key);
+        if (null == count) {
+            AtomicLong previous = counts.putIfAbsent(key, count = new AtomicLong());
+            if (null != previous) {
+                count = previous;
+            }
+        }
+        count.incrementAndGet();
+    }
+
+    private static String toString(ConcurrentMap<Integer, AtomicLong> counts, String prefix) {
+        Map<Integer, Long> sorted = new TreeMap<>();
+        for (Map.Entry<Integer, AtomicLong> entry : counts.entrySet()) {
+            sorted.put(entry.getKey(), entry.getValue().get());
+        }
+        StringBuilder s = new StringBuilder();
+        for (Map.Entry<Integer, Long> entry : sorted.entrySet()) {
+            s.append(0 == s.length() ? "(" : ", ").append(prefix).append(entry.getKey()).append(" : ").append(entry.getValue());
+        }
+        return 0 == s.length() ? "" : s.append(')').toString();
+    }
+}
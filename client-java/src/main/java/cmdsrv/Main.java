@@ -16,10 +16,18 @@
 
 package cmdsrv;
 
+import cmdsrv.client.CmdsrvBinaryCodec;
+import cmdsrv.client.CmdsrvContentEncoding;
+import cmdsrv.client.CmdsrvRequest;
+import cmdsrv.client.CmdsrvResponse;
+
+import java.io.ByteArrayOutputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.util.Arrays;
 import java.util.Scanner;
 
 /**
@@ -28,20 +36,41 @@ import java.util.Scanner;
 public class Main {
 
     private static boolean logToConsole = false;
+    private static boolean binary = false;
 
     /**
      * localhost:8055 {"cmd":["echo", "dummy", "cmdsrv"]}
      *
+     * With the <code>binary</code> option, the request is sent with the binary codec (see CmdsrvBinaryCodec) and
+     * the response is printed back as JSON. This needs the jar dependencies (Guava, Gson) on the classpath.
+     *
+     * With <code>load</code> as first argument, runs the load generator instead (see LoadDriver), which needs the jar
+     * dependencies as well.
+     *
      * @param args
      */
     public static void main(String args[]) {
+        if (args.length > 0 && "load".equals(args[0])) {
+            try {
+                LoadDriver.main(Arrays.copyOfRange(args, 1, args.length));
+            } catch (IOException | InterruptedException e) {
+                System.err.println(e.getMessage());
+                System.exit(2);
+            }
+            return;
+        }
+
         // usage if not enough args
         if (args.length < 2) {
-            System.out.println("Usage: java -jar cmdsrv-client-<version>.jar http://host:port/path/to/cmdsrv jsonrequest [debug]");
+            System.out.println("Usage: java -jar cmdsrv-client-<version>.jar http://host:port/path/to/cmdsrv jsonrequest [binary] [debug]");
+            System.out.println("       java -cp ... cmdsrv.Main load http://host:port/path/to/cmdsrv mixfile [threads=8] [rate=0] [duration=60] [binary]");
             System.exit(1);
         }
 
-        logToConsole = args.length > 2 && null != args[2] && "debug".equals(args[2]);
+        for (int i = 2; i < args.length; i++) {
+            logToConsole |= "debug".equals(args[i]);
+            binary |= "binary".equals(args[i]);
+        }
 
         HttpURLConnection connection = null;
         try {
@@ -54,23 +83,43 @@ public class Main {
             connection.setDoInput(true);
             connection.setInstanceFollowRedirects(false);
             connection.setRequestMethod("POST");
-            connection.setRequestProperty("Content-Type", "application/json");
-            connection.setRequestProperty("charset", "utf-8");
-            connection.setRequestProperty("Content-Length", "" + Integer.toString(args[1].getBytes().length));
+            byte[] toSend;
+            if (binary) {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                CmdsrvBinaryCodec.INSTANCE.writeRequest(CmdsrvRequest.fromJson(args[1]), out);
+                toSend = out.toByteArray();
+                connection.setRequestProperty("Content-Type", CmdsrvBinaryCodec.CONTENT_TYPE);
+            } else {
+                toSend = args[1].getBytes("UTF-8");
+                connection.setRequestProperty("Content-Type", "application/json");
+                connection.setRequestProperty("charset", "utf-8");
+            }
+            connection.setRequestProperty("Content-Length", "" + Integer.toString(toSend.length));
+            connection.setRequestProperty("Accept-Encoding", CmdsrvContentEncoding.ACCEPT_ENCODING);
             connection.setUseCaches(false);
 
             try(DataOutputStream wr = new DataOutputStream(connection.getOutputStream())) {
-                wr.writeBytes(args[1]);
+                wr.write(toSend);
                 wr.flush();
-                wr.close();
             }
-            connection.disconnect();
 
-            stderr(connection.getResponseCode() + " : " + connection.getResponseMessage());
-            Scanner s = connection.getResponseCode() != 200
-                    ? new Scanner(connection.getErrorStream()).useDelimiter("\\Z")
-                    : new Scanner(connection.getInputStream()).useDelimiter("\\Z") ;
-            System.out.println(s.next());
+            int status = connection.getResponseCode();
+            stderr(status + " : " + connection.getResponseMessage());
+            // read the whole body and close it (without disconnecting) so that the connection goes back to the
+            // keep-alive cache of the JVM
+            InputStream body = status != 200 ? connection.getErrorStream() : connection.getInputStream();
+            if (null != body) {
+                body = CmdsrvContentEncoding.decode(connection.getContentEncoding(), body);
+            }
+            if (binary && 200 == status) {
+                try (InputStream in = body) {
+                    System.out.println(CmdsrvResponse.toJson(CmdsrvBinaryCodec.INSTANCE.readResponse(in)));
+                }
+            } else if (null != body) {
+                try (Scanner s = new Scanner(body).useDelimiter("\\Z")) {
+                    System.out.println(s.hasNext() ? s.next() : "");
+                }
+            }
         } catch (IOException e) {
             e.printStackTrace();
             System.err.println(e.getMessage());
@@ -0,0 +1,225 @@
+/*
+* Copyright 2013 Christophe Uberri <cuberri@gmail.com>
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package cmdsrv.client;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>
+ *     ICmdsrvClient decorator bounding the number of requests sent at the same time to another client, and adapting
+ *     this limit to the load of the server (AIMD, as TCP congestion control does) :
+ *     <ul>
+ *         <li>each successful request raises the limit by 1/limit (the limit grows by one per round of requests), as
+ *         long as the requests in flight use at least half of it</li>
+ *         <li>a request rejected by the server (CmdsrvRejectedException, a <code>503 Service Unavailable</code>) or
+ *         slower than <code>latencyThresholdMillis</code> multiplies the limit by {@link #BACKOFF}. The requests
+ *         sent before the last decrease do not decrease it again : they reflect the load the server has already been
+ *         relieved of.</li>
+ *     </ul>
+ *     Other errors (command timeout, unreachable server, ...) leave the limit as it is.
+ * </p>
+ *
+ * <p>
+ *     A request above the limit waits for another one to complete, at most <code>maxWaitMillis</code> : after that
+ *     it fails with a CmdsrvRejectedException (of status 0) without being sent, so that an overloaded server sheds
+ *     the excess load quickly instead of having every caller queue up until it times out. A batch takes as many
+ *     slots as it has requests : one bigger than the limit waits until no other request is in flight.
+ * </p>
+ *
+ * <p>
+ *     Example :
+ *
+ *     <pre>
+ *     {@code
+ *      CmdsrvAdaptiveLimitClient client = new CmdsrvAdaptiveLimitClient(restClient, 4, 1, 64, 500, 2000);
+ *      try {
+ *          client.execute(new CmdsrvRequest("ls", "-a", "-l"));
+ *      } catch (CmdsrvRejectedException e) {
+ *          // overloaded : try again later
+ *      }
+ *      client.getLimit();
+ *     }
+ *     </pre>
+ * </p>
+ *
+ * @author Christophe Uberri <cuberri@gmail.com>
+ */
+public class CmdsrvAdaptiveLimitClient implements ICmdsrvClient {
+
+    private static Logger LOGGER = LoggerFactory.getLogger(CmdsrvAdaptiveLimitClient.class);
+
+    /**
+     * Factor applied to the limit when the server is overloaded
+     */
+    public static final double BACKOFF = 0.9;
+
+    private ICmdsrvClient delegate;
+    private int minLimit;
+    private int maxLimit;
+    private long maxWaitNanos;
+    private long latencyThresholdNanos;
+
+    // guarded by this
+    private double limit;
+    private int inFlight;
+    private long lastDecrease = System.nanoTime();
+
+    /**
+     * Requests wait 1 second at most for a slot, and the limit only decreases on rejections
+     *
+     * @param delegate The client actually executing the requests
+     * @param maxLimit The max number of requests sent at the same time
+     */
+    public CmdsrvAdaptiveLimitClient(ICmdsrvClient delegate, int maxLimit) {
+        this(delegate, Math.min(4, maxLimit), 1, maxLimit, 1000, 0);
+    }
+
+    /**
+     * @param delegate The client actually executing the requests
+     * @param initialLimit The number of requests sent at the same time at first
+     * @param minLimit The number of requests always allowed at the same time, at least 1
+     * @param maxLimit The max number of requests sent at the same time
+     * @param maxWaitMillis The max time a request waits for a slot before being rejected
+     * @param latencyThresholdMillis The latency above which a request decreases the limit, 0 for none (only the
+     *                               rejections decrease it)
+     */
+    public CmdsrvAdaptiveLimitClient(ICmdsrvClient delegate, int initialLimit, int minLimit, int maxLimit, long maxWaitMillis, long latencyThresholdMillis) {
+        if (minLimit < 1 || maxLimit < minLimit || initialLimit < minLimit || initialLimit > maxLimit) {
+            throw new IllegalArgumentException("Invalid limits : initial " + initialLimit + ", min " + minLimit + ", max " + maxLimit);
+        }
+        this.delegate = delegate;
+        this.limit = initialLimit;
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+        this.latencyThresholdNanos = TimeUnit.MILLISECONDS.toNanos(latencyThresholdMillis);
+    }
+
+    /**
+     * @see ICmdsrvClient
+     * @param req
+     * @return
+     * @throws CmdsrvRejectedException if no slot became free in time, or if the server rejected the request
+     */
+    @Override
+    public CmdsrvResponse execute(CmdsrvRequest req) {
+        long start = acquire(1, req);
+        try {
+            CmdsrvResponse res = delegate.execute(req);
+            release(1, start, false);
+            return res;
+        } catch (CmdsrvRejectedException e) {
+            release(1, start, true);
+            throw e;
+        } catch (RuntimeException e) {
+            release(1, start, null);
+            throw e;
+        }
+    }
+
+    /**
+     * @see ICmdsrvClient
+     * @param reqs
+     * @return
+     * @throws CmdsrvRejectedException if no slot became free in time, or if the server rejected the batch
+     */
+    @Override
+    public List<CmdsrvResponse> executeBatch(List<CmdsrvRequest> reqs) {
+        int permits = Math.max(1, Math.min(reqs.size(), maxLimit));
+        long start = acquire(permits, reqs);
+        try {
+            List<CmdsrvResponse> responses = delegate.executeBatch(reqs);
+            release(permits, start, false);
+            return responses;
+        } catch (CmdsrvRejectedException e) {
+            release(permits, start, true);
+            throw e;
+        } catch (RuntimeException e) {
+            release(permits, start, null);
+            throw e;
+        }
+    }
+
+    /**
+     * The current number of requests allowed at the same time
+     *
+     * @return
+     */
+    public synchronized int getLimit() {
+        return (int) limit;
+    }
+
+    /**
+     * The number of slots taken by the requests being executed
+     *
+     * @return
+     */
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    /**
+     * Wait for the slots of a request
+     *
+     * @return The time the request is sent at, in nanoseconds
+     */
+    private synchronized long acquire(int permits, Object what) {
+        long deadline = System.nanoTime() + maxWaitNanos;
+        // a batch bigger than the limit runs alone rather than never
+        while (inFlight > 0 && inFlight + permits > (int) limit) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                String message = "Request [" + what + "] rejected : " + inFlight + " requests in flight, limit " + (int) limit;
+                LOGGER.warn(message);
+                throw new CmdsrvRejectedException(message, 0, -1);
+            }
+            try {
+                TimeUnit.NANOSECONDS.timedWait(this, remaining);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new CmdsrvClientException("Interrupted while waiting to send request [" + what + "]", e);
+            }
+        }
+        inFlight += permits;
+        return System.nanoTime();
+    }
+
+    /**
+     * Free the slots of a request and adapt the limit to its outcome
+     *
+     * @param rejected true if the server rejected the request, false if it succeeded, null for other errors
+     */
+    private synchronized void release(int permits, long start, Boolean rejected) {
+        long end = System.nanoTime();
+        boolean used = inFlight >= limit / 2;
+        inFlight -= permits;
+        boolean slow = latencyThresholdNanos > 0 && end - start > latencyThresholdNanos;
+        if (Boolean.TRUE.equals(rejected) || (Boolean.FALSE.equals(rejected) && slow)) {
+            if (start - lastDecrease >= 0) {
+                limit = Math.max(minLimit, limit * BACKOFF);
+                lastDecrease = end;
+                LOGGER.debug("Server overloaded ({}) : limit decreased to {}", rejected ? "rejected" : "slow", (int) limit);
+            }
+        } else if (Boolean.FALSE.equals(rejected) && used) {
+            limit = Math.min(maxLimit, limit + (double) permits / limit);
+        }
+        notifyAll();
+    }
+}
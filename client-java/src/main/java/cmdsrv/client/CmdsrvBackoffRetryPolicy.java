@@ -0,0 +1,86 @@
+/*
+* Copyright 2013 Christophe Uberri <cuberri@gmail.com>
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package cmdsrv.client;
+
+import com.sun.jersey.api.client.ClientHandlerException;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * <p>
+ *     ICmdsrvRetryPolicy retrying the transient errors a bounded number of times, with an exponential backoff and full
+ *     jitter : the n-th retry waits a random delay between 0 and <code>min(maxDelay, baseDelay * 2^n)</code>, so the
+ *     clients failing together do not retry together.
+ * </p>
+ *
+ * <p>
+ *     The requests rejected because of the load (CmdsrvRejectedException) are always retried, their command has not
+ *     been run : the delay is at least the one asked by the server <code>Retry-After</code> header. The connection
+ *     errors and the <code>5xx</code> responses are retried for the idempotent requests only (see
+ *     {@link CmdsrvRequest#idempotent()}), since the command may have run. Commands killed on timeout
+ *     (CmdsrvTimeoutException), which would likely time out again, and local launch errors are not retried.
+ * </p>
+ *
+ * @author Christophe Uberri <cuberri@gmail.com>
+ */
+public class CmdsrvBackoffRetryPolicy implements ICmdsrvRetryPolicy {
+
+    private int maxRetries;
+    private long baseDelayMillis;
+    private long maxDelayMillis;
+
+    /**
+     * @param maxRetries Max number of times a request is sent again
+     * @param baseDelayMillis Max delay before the first retry, doubled at each retry
+     * @param maxDelayMillis Max delay before a retry
+     */
+    public CmdsrvBackoffRetryPolicy(int maxRetries, long baseDelayMillis, long maxDelayMillis) {
+        this.maxRetries = maxRetries;
+        this.baseDelayMillis = baseDelayMillis;
+        this.maxDelayMillis = maxDelayMillis;
+    }
+
+    @Override
+    public long getRetryDelayMillis(CmdsrvRequest req, RuntimeException e, int retries) {
+        if (retries >= maxRetries || !isRetryable(req, e)) {
+            return -1;
+        }
+        long cap = Math.min(maxDelayMillis, baseDelayMillis << Math.min(retries, 30));
+        long delay = cap > 0 ? ThreadLocalRandom.current().nextLong(cap + 1) : 0;
+        if (e instanceof CmdsrvRejectedException) {
+            delay = Math.max(delay, ((CmdsrvRejectedException) e).getRetryAfterMillis());
+        }
+        return delay;
+    }
+
+    private static boolean isRetryable(CmdsrvRequest req, RuntimeException e) {
+        if (e instanceof CmdsrvRejectedException) {
+            return true;
+        }
+        if (!req.isIdempotent() || e instanceof CmdsrvTimeoutException || e instanceof CmdsrvLaunchException) {
+            return false;
+        }
+        if (e instanceof ClientHandlerException) {
+            // Jersey could not reach the server
+            return true;
+        }
+        if (e instanceof CmdsrvClientException) {
+            int status = ((CmdsrvClientException) e).getStatusCode();
+            return 0 == status || status >= 500;
+        }
+        return false;
+    }
+}
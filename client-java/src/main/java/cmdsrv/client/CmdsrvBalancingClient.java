@@ -0,0 +1,275 @@
+/*
+* Copyright 2013 Christophe Uberri <cuberri@gmail.com>
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package cmdsrv.client;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.sun.jersey.api.client.Client;
+import com.sun.jersey.api.client.ClientHandlerException;
+import com.sun.jersey.api.client.ClientResponse;
+import com.sun.jersey.api.client.WebResource;
+import org.apache.http.conn.ConnectTimeoutException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <p>
+ *     ICmdsrvClient spreading the requests over several cmdsrv servers. Each request goes to the healthy server with
+ *     the fewest requests in flight (ties are broken round robin).
+ * </p>
+ *
+ * <p>
+ *     A background thread polls the <code>GET /status</code> route of every server each
+ *     <code>healthCheckIntervalMillis</code> : a server which does not answer 200 is ejected until it does again. A
+ *     server is also ejected as soon as a connection to it is refused, times out or cannot be opened at all. Other
+ *     transport errors, read timeouts first, only fail the request : a slow command says nothing about the health of
+ *     the server, and retrying it is left to the caller (see CmdsrvRetryingClient). If no server is healthy, the
+ *     requests are spread over all of them anyway rather than failing fast.
+ * </p>
+ *
+ * <p>
+ *     The Jersey client is provided by the developer (see CmdsrvPooledTransport) : its timeouts apply to the health
+ *     checks as well.
+ * </p>
+ *
+ * <p>
+ *     Example :
+ *
+ *     <pre>
+ *     {@code
+ *      CmdsrvBalancingClient client = new CmdsrvBalancingClient(transport.getClient(),
+ *              Arrays.asList("http://host1:8055/cmd", "http://host2:8055/cmd"), 1000);
+ *      client.execute(new CmdsrvRequest("ls", "-a", "-l"));
+ *      ...
+ *      client.close();
+ *     }
+ *     </pre>
+ * </p>
+ *
+ * @author Christophe Uberri <cuberri@gmail.com>
+ */
+public class CmdsrvBalancingClient implements ICmdsrvClient, Closeable {
+
+    private static Logger LOGGER = LoggerFactory.getLogger(CmdsrvBalancingClient.class);
+
+    private List<Endpoint> endpoints = new ArrayList<>();
+    private AtomicInteger next = new AtomicInteger();
+    private ScheduledExecutorService healthChecker;
+
+    /**
+     * @param client The Jersey client used to reach the servers
+     * @param cmdsrvUrls The cmdsrv's servers locations, e.g. http://localhost:8055/cmd. The status route is resolved
+     *                   against them
+     * @param healthCheckIntervalMillis Delay between two health checks of a server
+     */
+    public CmdsrvBalancingClient(Client client, List<String> cmdsrvUrls, long healthCheckIntervalMillis) {
+        this(client, cmdsrvUrls, healthCheckIntervalMillis, CmdsrvJsonCodec.INSTANCE);
+    }
+
+    /**
+     * Same as {@link #CmdsrvBalancingClient(Client, List, long)}, with the codec marshalling requests and responses
+     *
+     * @param client
+     * @param cmdsrvUrls
+     * @param healthCheckIntervalMillis
+     * @param codec
+     */
+    public CmdsrvBalancingClient(Client client, List<String> cmdsrvUrls, long healthCheckIntervalMillis, ICmdsrvCodec codec) {
+        if (cmdsrvUrls.isEmpty()) {
+            throw new IllegalArgumentException("At least one cmdsrv server location is needed");
+        }
+        for (String url : cmdsrvUrls) {
+            WebResource resource = client.resource(url);
+            endpoints.add(new Endpoint(url, new CmdsrvRestClientJersey(resource, codec), client.resource(resource.getURI().resolve("status"))));
+        }
+
+        healthChecker = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                .setNameFormat("cmdsrv-health-checker-%d")
+                .setDaemon(true)
+                .build());
+        healthChecker.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                for (Endpoint endpoint : endpoints) {
+                    checkHealth(endpoint);
+                }
+            }
+        }, healthCheckIntervalMillis, healthCheckIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @see ICmdsrvClient
+     * @param req
+     * @return
+     */
+    @Override
+    public CmdsrvResponse execute(CmdsrvRequest req) {
+        Endpoint endpoint = acquire();
+        try {
+            return endpoint.client.execute(req);
+        } catch (ClientHandlerException e) {
+            throw unreachable(endpoint, req, e);
+        } finally {
+            endpoint.inFlight.decrementAndGet();
+        }
+    }
+
+    /**
+     * The whole batch goes to a single server
+     *
+     * @see ICmdsrvClient
+     * @param reqs
+     * @return
+     */
+    @Override
+    public List<CmdsrvResponse> executeBatch(List<CmdsrvRequest> reqs) {
+        if (reqs.isEmpty()) {
+            return Collections.emptyList();
+        }
+        Endpoint endpoint = acquire();
+        try {
+            return endpoint.client.executeBatch(reqs);
+        } catch (ClientHandlerException e) {
+            throw unreachable(endpoint, "batch of " + reqs.size() + " requests", e);
+        } finally {
+            endpoint.inFlight.decrementAndGet();
+        }
+    }
+
+    /**
+     * Locations of the servers currently considered healthy
+     *
+     * @return
+     */
+    public List<String> getHealthyUrls() {
+        List<String> urls = new ArrayList<>();
+        for (Endpoint endpoint : endpoints) {
+            if (endpoint.healthy) {
+                urls.add(endpoint.url);
+            }
+        }
+        return urls;
+    }
+
+    /**
+     * Stop the health checks. The Jersey client is left open.
+     */
+    @Override
+    public void close() {
+        healthChecker.shutdownNow();
+    }
+
+    private Endpoint acquire() {
+        int size = endpoints.size();
+        int start = (next.getAndIncrement() & Integer.MAX_VALUE) % size;
+        Endpoint best = null;
+        Endpoint bestAny = null;
+        for (int i = 0; i < size; i++) {
+            Endpoint candidate = endpoints.get((start + i) % size);
+            if (null == bestAny || candidate.inFlight.get() < bestAny.inFlight.get()) {
+                bestAny = candidate;
+            }
+            if (candidate.healthy && (null == best || candidate.inFlight.get() < best.inFlight.get())) {
+                best = candidate;
+            }
+        }
+        if (null == best) {
+            LOGGER.warn("No healthy cmdsrv server, sending the request to [{}] anyway", bestAny.url);
+            best = bestAny;
+        }
+        best.inFlight.incrementAndGet();
+        return best;
+    }
+
+    private CmdsrvClientException unreachable(Endpoint endpoint, Object what, ClientHandlerException e) {
+        if (isConnectFailure(e)) {
+            markHealthy(endpoint, false);
+        }
+        String message = "Error sending request [" + what + "] to [" + endpoint.url + "] : " + e.getMessage();
+        LOGGER.error(message);
+        return new CmdsrvClientException(message, e);
+    }
+
+    /**
+     * Whether the connection could not be opened (refused, timed out, no route or unknown host), as opposed to an
+     * error once connected
+     *
+     * @param e
+     * @return
+     */
+    static boolean isConnectFailure(Throwable e) {
+        for (Throwable cause = e; null != cause; cause = cause.getCause()) {
+            if (cause instanceof ConnectException || cause instanceof ConnectTimeoutException
+                    || cause instanceof NoRouteToHostException || cause instanceof UnknownHostException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void checkHealth(Endpoint endpoint) {
+        boolean healthy;
+        try {
+            ClientResponse res = endpoint.status.get(ClientResponse.class);
+            try {
+                healthy = ClientResponse.Status.OK == res.getClientResponseStatus();
+            } finally {
+                res.close();
+            }
+        } catch (RuntimeException e) {
+            LOGGER.debug("Health check of [{}] failed : {}", endpoint.url, e.getMessage());
+            healthy = false;
+        }
+        markHealthy(endpoint, healthy);
+    }
+
+    private static void markHealthy(Endpoint endpoint, boolean healthy) {
+        if (endpoint.healthy != healthy) {
+            endpoint.healthy = healthy;
+            if (healthy) {
+                LOGGER.info("cmdsrv server [{}] is back", endpoint.url);
+            } else {
+                LOGGER.warn("cmdsrv server [{}] ejected", endpoint.url);
+            }
+        }
+    }
+
+    private static class Endpoint {
+        private final String url;
+        private final CmdsrvRestClientJersey client;
+        private final WebResource status;
+        private final AtomicInteger inFlight = new AtomicInteger();
+        private volatile boolean healthy = true;
+
+        private Endpoint(String url, CmdsrvRestClientJersey client, WebResource status) {
+            this.url = url;
+            this.client = client;
+            this.status = status;
+        }
+    }
+}
@@ -0,0 +1,154 @@
+/*
+* Copyright 2013 Christophe Uberri <cuberri@gmail.com>
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package cmdsrv.client;
+
+import com.google.common.base.Charsets;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * <p>
+ *     Compact codec made of big endian, length prefixed fields. Output is carried as raw bytes instead of escaped JSON
+ *     strings, which makes it much cheaper to encode and decode for output-heavy commands.
+ * </p>
+ *
+ * <ul>
+ *     <li>string : u32 length + UTF-8 bytes</li>
+ *     <li>request : u32 argc + argc strings + u32 flags ({@link #POOLABLE}) + u32 timeout in milliseconds (0 for
+ *     none)</li>
+ *     <li>response : i32 retval + u32 argc + argc strings + stdout string + stderr string + u32 flags
+ *     ({@link #TIMED_OUT})</li>
+ *     <li>batch : u32 count + count requests (or responses)</li>
+ * </ul>
+ *
+ * <p>
+ *     Piped requests (see {@link CmdsrvRequest#pipe(String...)}) are refused.
+ * </p>
+ *
+ * @author Christophe Uberri <cuberri@gmail.com>
+ */
+public class CmdsrvBinaryCodec implements ICmdsrvCodec {
+
+    public static final String CONTENT_TYPE = "application/x-cmdsrv-binary";
+
+    public static final CmdsrvBinaryCodec INSTANCE = new CmdsrvBinaryCodec();
+
+    /**
+     * Request flag : see {@link CmdsrvRequest#poolable()}
+     */
+    public static final int POOLABLE = 1;
+
+    /**
+     * Response flag : see {@link CmdsrvResponse#isTimedOut()}
+     */
+    public static final int TIMED_OUT = 1;
+
+    @Override
+    public String getContentType() {
+        return CONTENT_TYPE;
+    }
+
+    @Override
+    public void writeRequest(CmdsrvRequest req, OutputStream out) throws IOException {
+        DataOutputStream data = new DataOutputStream(out);
+        writeRequest(req, data);
+        data.flush();
+    }
+
+    @Override
+    public void writeBatch(List<CmdsrvRequest> reqs, OutputStream out) throws IOException {
+        DataOutputStream data = new DataOutputStream(out);
+        data.writeInt(reqs.size());
+        for (CmdsrvRequest req : reqs) {
+            writeRequest(req, data);
+        }
+        data.flush();
+    }
+
+    @Override
+    public CmdsrvResponse readResponse(InputStream in) throws IOException {
+        return readResponse(new DataInputStream(in));
+    }
+
+    @Override
+    public List<CmdsrvResponse> readBatch(InputStream in) throws IOException {
+        DataInputStream data = new DataInputStream(in);
+        int count = readLength(data);
+        List<CmdsrvResponse> responses = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            responses.add(readResponse(data));
+        }
+        return responses;
+    }
+
+    private static void writeRequest(CmdsrvRequest req, DataOutputStream data) throws IOException {
+        if (!req.getPipe().isEmpty()) {
+            // running the first command alone would silently give another result
+            throw new IOException("A piped request cannot be carried by the binary codec, use the JSON one");
+        }
+        String[] cmd = req.getCmd();
+        data.writeInt(cmd.length);
+        for (String arg : cmd) {
+            writeBytes(arg.getBytes(Charsets.UTF_8), data);
+        }
+        data.writeInt(req.isPoolable() ? POOLABLE : 0);
+        data.writeInt((int) Math.min(Integer.MAX_VALUE, req.getTimeoutMillis()));
+    }
+
+    private static void writeBytes(byte[] bytes, DataOutputStream data) throws IOException {
+        data.writeInt(bytes.length);
+        data.write(bytes);
+    }
+
+    private static CmdsrvResponse readResponse(DataInputStream data) throws IOException {
+        int retval = data.readInt();
+        String[] cmd = new String[readLength(data)];
+        for (int i = 0; i < cmd.length; i++) {
+            cmd[i] = readString(data);
+        }
+        // the outputs are kept as bytes : they are decoded only if asked for as Strings
+        byte[] stdout = readBytes(data);
+        byte[] stderr = readBytes(data);
+        CmdsrvResponse res = new CmdsrvResponse(retval, stdout, stderr, Charsets.UTF_8, cmd);
+        res.setTimedOut(0 != (data.readInt() & TIMED_OUT));
+        return res;
+    }
+
+    private static String readString(DataInputStream data) throws IOException {
+        return new String(readBytes(data), Charsets.UTF_8);
+    }
+
+    private static byte[] readBytes(DataInputStream data) throws IOException {
+        byte[] bytes = new byte[readLength(data)];
+        data.readFully(bytes);
+        return bytes;
+    }
+
+    private static int readLength(DataInputStream data) throws IOException {
+        int length = data.readInt();
+        if (length < 0) {
+            throw new IOException("Invalid length [" + (length & 0xffffffffL) + "]");
+        }
+        return length;
+    }
+}
@@ -0,0 +1,294 @@
+/*
+* Copyright 2013 Christophe Uberri <cuberri@gmail.com>
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package cmdsrv.client;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import com.google.common.util.concurrent.Uninterruptibles;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * <p>
+ *     ICmdsrvClient decorator caching the responses of the requests marked cacheable (see
+ *     {@link CmdsrvRequest#cacheable(long, java.util.concurrent.TimeUnit)}). Requests are identified by their command
+ *     line. Other requests go straight to the decorated client.
+ * </p>
+ *
+ * <ul>
+ *     <li>each response is kept for the TTL of the request which produced it</li>
+ *     <li>the cache holds at most <code>maxEntries</code> responses, the least recently used being evicted first</li>
+ *     <li>identical requests arriving while the first one is in flight wait for its response instead of being sent
+ *     to the server (single-flight), whether they come from {@link #execute(CmdsrvRequest)} or from batches</li>
+ *     <li>failures are not cached, nor the responses of timed out commands or with spooled outputs</li>
+ * </ul>
+ *
+ * <p>
+ *     Example :
+ *
+ *     <pre>
+ *     {@code
+ *      ICmdsrvClient client = new CmdsrvCachingClient(restClient, 1024);
+ *      client.execute(new CmdsrvRequest("df", "-k").cacheable(10, TimeUnit.SECONDS));
+ *     }
+ *     </pre>
+ * </p>
+ *
+ * @author Christophe Uberri <cuberri@gmail.com>
+ */
+public class CmdsrvCachingClient implements ICmdsrvClient {
+
+    private static Logger LOGGER = LoggerFactory.getLogger(CmdsrvCachingClient.class);
+
+    private ICmdsrvClient delegate;
+    private Cache<CmdsrvRequest, Entry> cache;
+    // cacheable requests being sent to the delegate, by execute() or executeBatch()
+    private ConcurrentMap<CmdsrvRequest, SettableFuture<CmdsrvResponse>> inFlight = new ConcurrentHashMap<>();
+
+    /**
+     * @param delegate The client executing the requests which are not answered from the cache
+     * @param maxEntries Maximum number of responses kept in the cache
+     */
+    public CmdsrvCachingClient(ICmdsrvClient delegate, long maxEntries) {
+        this.delegate = delegate;
+        this.cache = CacheBuilder.newBuilder()
+                .maximumSize(maxEntries)
+                .recordStats()
+                .build();
+    }
+
+    /**
+     * @see ICmdsrvClient
+     * @param req
+     * @return
+     */
+    @Override
+    public CmdsrvResponse execute(final CmdsrvRequest req) {
+        if (!req.isCacheable()) {
+            return delegate.execute(req);
+        }
+
+        while (true) {
+            Entry entry;
+            try {
+                // concurrent callers of the same request block on the first one's load
+                entry = cache.get(req, new Callable<Entry>() {
+                    @Override
+                    public Entry call() throws ExecutionException {
+                        return new Entry(load(req), req.getCacheTtlMillis());
+                    }
+                });
+            } catch (ExecutionException | UncheckedExecutionException e) {
+                throw unwrap(req, e);
+            }
+
+            if (!isKept(entry.response)) {
+                // answered to the callers which waited for it, but not kept
+                cache.asMap().remove(req, entry);
+                return entry.response;
+            }
+            if (!entry.isExpired()) {
+                return entry.response;
+            }
+            LOGGER.debug("Cached response of request [{}] expired", req);
+            cache.asMap().remove(req, entry);
+        }
+    }
+
+    /**
+     * Cacheable requests found in the cache are answered right away, and those already in flight (sent by another
+     * caller, or repeated in the batch) wait for the response on its way. The others are sent to the decorated client
+     * in a single batch.
+     *
+     * @see ICmdsrvClient
+     * @param reqs
+     * @return
+     */
+    @Override
+    public List<CmdsrvResponse> executeBatch(List<CmdsrvRequest> reqs) {
+        List<CmdsrvResponse> responses = new ArrayList<>(reqs.size());
+        List<CmdsrvRequest> misses = new ArrayList<>();
+        // index in misses of the requests sent by this batch, -1 for the others
+        int[] sent = new int[reqs.size()];
+        // cacheable misses sent by this batch, and those sent by someone else
+        Map<CmdsrvRequest, SettableFuture<CmdsrvResponse>> loading = new LinkedHashMap<>();
+        Map<CmdsrvRequest, SettableFuture<CmdsrvResponse>> waiting = new LinkedHashMap<>();
+        for (int i = 0; i < reqs.size(); i++) {
+            CmdsrvRequest req = reqs.get(i);
+            CmdsrvResponse res = getIfPresent(req);
+            sent[i] = -1;
+            if (null == res) {
+                if (!req.isCacheable()) {
+                    sent[i] = misses.size();
+                    misses.add(req);
+                } else if (!loading.containsKey(req) && !waiting.containsKey(req)) {
+                    SettableFuture<CmdsrvResponse> future = SettableFuture.create();
+                    SettableFuture<CmdsrvResponse> other = inFlight.putIfAbsent(req, future);
+                    if (null == other) {
+                        loading.put(req, future);
+                        sent[i] = misses.size();
+                        misses.add(req);
+                    } else {
+                        waiting.put(req, other);
+                    }
+                }
+            }
+            responses.add(res);
+        }
+
+        if (!misses.isEmpty()) {
+            try {
+                List<CmdsrvResponse> fetched = delegate.executeBatch(misses);
+                for (int i = 0; i < responses.size(); i++) {
+                    if (sent[i] >= 0) {
+                        CmdsrvRequest req = reqs.get(i);
+                        CmdsrvResponse res = fetched.get(sent[i]);
+                        if (req.isCacheable()) {
+                            if (isKept(res)) {
+                                cache.put(req, new Entry(res, req.getCacheTtlMillis()));
+                            }
+                            loading.get(req).set(res);
+                        }
+                        responses.set(i, res);
+                    }
+                }
+            } catch (RuntimeException e) {
+                // no effect on the futures already set
+                for (SettableFuture<CmdsrvResponse> future : loading.values()) {
+                    future.setException(e);
+                }
+                throw e;
+            } finally {
+                for (Map.Entry<CmdsrvRequest, SettableFuture<CmdsrvResponse>> load : loading.entrySet()) {
+                    inFlight.remove(load.getKey(), load.getValue());
+                }
+            }
+        }
+
+        // repeated in the batch, or sent by someone else
+        for (int i = 0; i < responses.size(); i++) {
+            if (null == responses.get(i)) {
+                CmdsrvRequest req = reqs.get(i);
+                SettableFuture<CmdsrvResponse> future = loading.containsKey(req) ? loading.get(req) : waiting.get(req);
+                try {
+                    responses.set(i, Uninterruptibles.getUninterruptibly(future));
+                } catch (ExecutionException e) {
+                    throw unwrap(req, e);
+                }
+            }
+        }
+        return responses;
+    }
+
+    /**
+     * Hit/miss statistics of the cache
+     *
+     * @return
+     */
+    public CacheStats getStats() {
+        return cache.stats();
+    }
+
+    /**
+     * Drop all the cached responses
+     */
+    public void invalidateAll() {
+        cache.invalidateAll();
+    }
+
+    /**
+     * Send a cacheable request, unless a batch is sending it already : its response is waited for then
+     */
+    private CmdsrvResponse load(CmdsrvRequest req) throws ExecutionException {
+        SettableFuture<CmdsrvResponse> future = SettableFuture.create();
+        SettableFuture<CmdsrvResponse> other = inFlight.putIfAbsent(req, future);
+        if (null != other) {
+            return Uninterruptibles.getUninterruptibly(other);
+        }
+        try {
+            CmdsrvResponse res = delegate.execute(req);
+            future.set(res);
+            return res;
+        } catch (RuntimeException e) {
+            future.setException(e);
+            throw e;
+        } finally {
+            inFlight.remove(req, future);
+        }
+    }
+
+    /**
+     * Whether the response may be answered again : not the partial output of a timed out command, nor a response
+     * whose outputs are left on the server
+     */
+    private static boolean isKept(CmdsrvResponse res) {
+        return !res.isTimedOut() && null == res.getSpoolId();
+    }
+
+    private static CmdsrvClientException unwrap(CmdsrvRequest req, Exception e) {
+        Throwable cause = e.getCause();
+        if (cause instanceof ExecutionException || cause instanceof UncheckedExecutionException) {
+            // the failure of a load waited for by the loader of the cache
+            cause = cause.getCause();
+        }
+        if (cause instanceof CmdsrvClientException) {
+            return (CmdsrvClientException) cause;
+        }
+        return new CmdsrvClientException("Error executing request [" + req + "] : " + cause, cause);
+    }
+
+    private CmdsrvResponse getIfPresent(CmdsrvRequest req) {
+        if (!req.isCacheable()) {
+            return null;
+        }
+        Entry entry = cache.getIfPresent(req);
+        if (null == entry) {
+            return null;
+        }
+        if (entry.isExpired()) {
+            cache.asMap().remove(req, entry);
+            return null;
+        }
+        return entry.response;
+    }
+
+    private static class Entry {
+        private final CmdsrvResponse response;
+        private final long expiresAt;
+
+        private Entry(CmdsrvResponse response, long ttlMillis) {
+            this.response = response;
+            this.expiresAt = System.nanoTime() + ttlMillis * 1000000L;
+        }
+
+        private boolean isExpired() {
+            return System.nanoTime() - expiresAt >= 0;
+        }
+    }
+}
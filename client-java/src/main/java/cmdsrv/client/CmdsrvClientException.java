@@ -21,8 +21,71 @@ package cmdsrv.client;
  */
 public class CmdsrvClientException extends RuntimeException {
 
+    private int statusCode;
+
     public CmdsrvClientException(String message) {
         super(message);
     }
 
+    public CmdsrvClientException(String message, Throwable cause) {
+        super(message, cause);
+    }
+
+    /**
+     * @param message
+     * @param statusCode The HTTP status of the error response sent by the server
+     */
+    public CmdsrvClientException(String message, int statusCode) {
+        super(message);
+        this.statusCode = statusCode;
+    }
+
+    /**
+     * The HTTP status of the error response sent by the server, 0 if the error did not come from a server response
+     * (connection failure, unreadable body, ...)
+     *
+     * @return
+     */
+    public int getStatusCode() {
+        return statusCode;
+    }
+
+    /**
+     * The exception matching the error status sent by the server : a CmdsrvTimeoutException for a
+     * <code>504 Gateway Timeout</code>, a CmdsrvRejectedException for a <code>503 Service Unavailable</code>
+     *
+     * @param message
+     * @param statusCode
+     * @return
+     */
+    static CmdsrvClientException forStatus(String message, int statusCode) {
+        return forStatus(message, statusCode, null);
+    }
+
+    /**
+     * @see #forStatus(String, int)
+     * @param message
+     * @param statusCode
+     * @param retryAfter The <code>Retry-After</code> header of the server response, null if none. Only the
+     *                   delay-seconds form is understood.
+     * @return
+     */
+    static CmdsrvClientException forStatus(String message, int statusCode, String retryAfter) {
+        if (504 == statusCode) {
+            return new CmdsrvTimeoutException(message, statusCode);
+        }
+        if (503 == statusCode) {
+            long retryAfterMillis = -1;
+            if (null != retryAfter) {
+                try {
+                    retryAfterMillis = Math.max(0, Long.parseLong(retryAfter.trim())) * 1000;
+                } catch (NumberFormatException e) {
+                    // an HTTP date : left unknown
+                }
+            }
+            return new CmdsrvRejectedException(message, statusCode, retryAfterMillis);
+        }
+        return new CmdsrvClientException(message, statusCode);
+    }
+
 }
@@ -0,0 +1,74 @@
+/*
+* Copyright 2013 Christophe Uberri <cuberri@gmail.com>
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package cmdsrv.client;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Locale;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * <p>
+ *     Negotiation of compressed response bodies : the clients send {@link #ACCEPT_ENCODING} and wrap the body of the
+ *     response with {@link #decode(String, InputStream)}, which decompresses it as it is read, without buffering the
+ *     compressed body first.
+ * </p>
+ *
+ * <p>
+ *     The server compresses the bodies bigger than a threshold (see the <code>[compression]</code> section of
+ *     <code>cmdsrv.cfg</code>). Only the JDK is needed, so that Main can use it without the jar dependencies.
+ * </p>
+ *
+ * @author Christophe Uberri <cuberri@gmail.com>
+ */
+public final class CmdsrvContentEncoding {
+
+    /**
+     * Value of the Accept-Encoding header of the requests
+     */
+    public static final String ACCEPT_ENCODING = "gzip, deflate";
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private CmdsrvContentEncoding() {
+    }
+
+    /**
+     * Wrap the body of a response so that it is decompressed as it is read
+     *
+     * @param contentEncoding The Content-Encoding header of the response, null if none
+     * @param body
+     * @return
+     * @throws IOException if the encoding is not supported, or if the gzip header cannot be read
+     */
+    public static InputStream decode(String contentEncoding, InputStream body) throws IOException {
+        if (null == contentEncoding) {
+            return body;
+        }
+        String encoding = contentEncoding.trim().toLowerCase(Locale.ROOT);
+        if ("gzip".equals(encoding) || "x-gzip".equals(encoding)) {
+            return new GZIPInputStream(body, BUFFER_SIZE);
+        }
+        if ("deflate".equals(encoding)) {
+            return new InflaterInputStream(body);
+        }
+        if (encoding.isEmpty() || "identity".equals(encoding)) {
+            return body;
+        }
+        throw new IOException("Unsupported Content-Encoding [" + contentEncoding + "]");
+    }
+}
@@ -0,0 +1,44 @@
+/*
+* Copyright 2013 Christophe Uberri <cuberri@gmail.com>
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package cmdsrv.client;
+
+/**
+ * <p>
+ *     ICmdsrvRoutingPolicy running the requests locally as long as the heap committed by the JVM stays below a
+ *     threshold, and sending them to the cmdsrv server above it. Useful when the JVM may launch processes by forking
+ *     itself, which needs as much memory as the JVM footprint.
+ * </p>
+ *
+ * @author Christophe Uberri <cuberri@gmail.com>
+ */
+public class CmdsrvHeapRoutingPolicy implements ICmdsrvRoutingPolicy {
+
+    private long maxCommittedHeap;
+
+    /**
+     * @param maxCommittedHeap Committed heap size, in bytes, above which requests go to the server
+     */
+    public CmdsrvHeapRoutingPolicy(long maxCommittedHeap) {
+        this.maxCommittedHeap = maxCommittedHeap;
+    }
+
+    @Override
+    public boolean isLocal(CmdsrvRequest req) {
+        return Runtime.getRuntime().totalMemory() < maxCommittedHeap;
+    }
+
+}
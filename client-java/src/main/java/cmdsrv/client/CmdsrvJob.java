@@ -0,0 +1,168 @@
+/*
+* Copyright 2013 Christophe Uberri <cuberri@gmail.com>
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package cmdsrv.client;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>
+ *     Handle of a command run as a server side job, got from {@link ICmdsrvJobClient#submit(CmdsrvRequest)}. The
+ *     state is the last one told by the server : it is refreshed by {@link #await(long, TimeUnit)} and
+ *     {@link #get()}.
+ * </p>
+ *
+ * <p>
+ *     Example :
+ *
+ *     <pre>
+ *     {@code
+ *      CmdsrvJob job = jobClient.submit(new CmdsrvRequest("tar", "czf", "/tmp/backup.tgz", "/srv"));
+ *      // ... do something else
+ *      CmdsrvResponse res = job.get();
+ *     }
+ *     </pre>
+ * </p>
+ *
+ * @author Christophe Uberri <cuberri@gmail.com>
+ */
+public class CmdsrvJob {
+
+    public enum State {
+        QUEUED, RUNNING, DONE, CANCELLED
+    }
+
+    private ICmdsrvJobClient client;
+    private CmdsrvRequest request;
+    private volatile String id;
+    private volatile State state = State.QUEUED;
+    private volatile CmdsrvResponse response;
+
+    /**
+     * You'd probably not need to construct such an object, but the constructor is made public for convenience
+     *
+     * @param client The client submitting the job
+     * @param request
+     */
+    public CmdsrvJob(ICmdsrvJobClient client, CmdsrvRequest request) {
+        this.client = client;
+        this.request = request;
+    }
+
+    /**
+     * The id of the job on the server
+     * @return
+     */
+    public String getId() {
+        return id;
+    }
+
+    /**
+     * The request the job executes
+     * @return
+     */
+    public CmdsrvRequest getRequest() {
+        return request;
+    }
+
+    /**
+     * The last known state of the job
+     * @return
+     */
+    public State getState() {
+        return state;
+    }
+
+    /**
+     * Whether the job is known to have ended (done or cancelled)
+     * @return
+     */
+    public boolean isDone() {
+        return State.DONE == state || State.CANCELLED == state;
+    }
+
+    /**
+     * Wait at most the given time for the job to end
+     *
+     * @param timeout
+     * @param unit
+     * @return The response of the command, or null if it is still running
+     * @throws CmdsrvClientException if the job has been cancelled, or cannot be polled
+     */
+    public CmdsrvResponse await(long timeout, TimeUnit unit) {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        long remaining = unit.toNanos(timeout);
+        while (!isDone() && !client.poll(this, remaining, TimeUnit.NANOSECONDS)) {
+            remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return null;
+            }
+        }
+        return getResponse();
+    }
+
+    /**
+     * Wait for the job to end
+     *
+     * @return The response of the command
+     * @throws CmdsrvClientException if the job has been cancelled, or cannot be polled
+     */
+    public CmdsrvResponse get() {
+        while (!isDone()) {
+            client.poll(this, Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        }
+        return getResponse();
+    }
+
+    /**
+     * Cancel the job, killing its process if it is running
+     *
+     * @return false if the server does not know the job (anymore)
+     */
+    public boolean cancel() {
+        return client.cancel(this);
+    }
+
+    /**
+     * Update the job with the state told by the server
+     *
+     * @param id null to keep the current one
+     * @param state
+     * @param response The response of the command, once done
+     */
+    void update(String id, State state, CmdsrvResponse response) {
+        if (null != id) {
+            this.id = id;
+        }
+        this.response = response;
+        this.state = state;
+    }
+
+    private CmdsrvResponse getResponse() {
+        if (State.CANCELLED == state) {
+            throw new CmdsrvClientException("Job [" + id + "] running [" + request + "] has been cancelled");
+        }
+        return response;
+    }
+
+    @Override
+    public String toString() {
+        return "CmdsrvJob{" +
+                "id=" + id +
+                ", state=" + state +
+                ", request=" + request +
+                '}';
+    }
+}
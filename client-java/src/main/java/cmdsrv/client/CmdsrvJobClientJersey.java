@@ -0,0 +1,249 @@
+/*
+* Copyright 2013 Christophe Uberri <cuberri@gmail.com>
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package cmdsrv.client;
+
+import com.sun.jersey.api.client.ClientResponse;
+import com.sun.jersey.api.client.WebResource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>
+ *     Jersey WebResource backed implementation of ICmdsrvJobClient. You need to provide a WebResource pointing to the
+ *     jobs location of the cmdsrv server (<code>/jobs</code>).
+ * </p>
+ *
+ * <p>
+ *     Example :
+ *
+ *     <pre>
+ *     {@code
+ *      Client client = Client.create();
+ *      WebResource resource = client.resource("http://localhost:8055/jobs")
+ *      CmdsrvJobClientJersey jobClient = new CmdsrvJobClientJersey(resource);
+ *      CmdsrvJob job = jobClient.submit(new CmdsrvRequest("tar", "czf", "/tmp/backup.tgz", "/srv"));
+ *      CmdsrvResponse res = job.get();
+ *     }
+ *     </pre>
+ * </p>
+ *
+ * <p>
+ *     The result of a job is waited for by long polling : each poll asks the server to answer as soon as the job ends,
+ *     or after <code>pollSeconds</code> at most. The read timeout of the Jersey client, if any, must be longer.
+ *     Requests are marshalled as JSON.
+ * </p>
+ *
+ * @author Christophe Uberri <cuberri@gmail.com>
+ */
+public class CmdsrvJobClientJersey implements ICmdsrvJobClient {
+
+    private static Logger LOGGER = LoggerFactory.getLogger(CmdsrvJobClientJersey.class);
+
+    /**
+     * Default longest wait of a single poll, below the default 'maxwait' of the server
+     */
+    public static final int DEFAULT_POLL_SECONDS = 20;
+
+    private WebResource jobsResource;
+    private int pollSeconds;
+
+    /**
+     * Need a WebResource pointing to the jobs location of the cmdsrv server
+     *
+     * @param jobsResource
+     */
+    public CmdsrvJobClientJersey(WebResource jobsResource) {
+        this(jobsResource, DEFAULT_POLL_SECONDS);
+    }
+
+    /**
+     * Need a WebResource pointing to the jobs location of the cmdsrv server, and the longest wait of a single poll
+     *
+     * @param jobsResource
+     * @param pollSeconds
+     */
+    public CmdsrvJobClientJersey(WebResource jobsResource, int pollSeconds) {
+        this.jobsResource = jobsResource;
+        this.pollSeconds = pollSeconds;
+    }
+
+    /**
+     * Submit the command as a job and wait for its result, then forget the job on the server (cancelling it if
+     * waiting failed)
+     *
+     * @see ICmdsrvClient
+     * @param req
+     * @return
+     * @throws CmdsrvTimeoutException if the command ran past the timeout of the request
+     */
+    @Override
+    public CmdsrvResponse execute(CmdsrvRequest req) {
+        CmdsrvJob job = submit(req);
+        CmdsrvResponse response;
+        try {
+            response = job.get();
+        } finally {
+            forget(job);
+        }
+        if (response.isTimedOut()) {
+            throw new CmdsrvTimeoutException("Job [" + job.getId() + "] running [" + req + "] timed out after " + req.getTimeoutMillis() + " ms", 0);
+        }
+        return response;
+    }
+
+    /**
+     * Submit all the commands as jobs, then wait for their results : they run in parallel on the server, as far as
+     * its job threads allow. The jobs are forgotten on the server once their results are got, and all of them are
+     * cancelled if one fails.
+     *
+     * @see ICmdsrvClient
+     * @param reqs
+     * @return
+     */
+    @Override
+    public List<CmdsrvResponse> executeBatch(List<CmdsrvRequest> reqs) {
+        List<CmdsrvJob> jobs = new ArrayList<>(reqs.size());
+        List<CmdsrvResponse> responses = new ArrayList<>(reqs.size());
+        int forgotten = 0;
+        try {
+            for (CmdsrvRequest req : reqs) {
+                jobs.add(submit(req));
+            }
+            for (CmdsrvJob job : jobs) {
+                responses.add(job.get());
+                forgotten++;
+                forget(job);
+            }
+            return responses;
+        } finally {
+            // the jobs left running after an error
+            for (CmdsrvJob job : jobs.subList(forgotten, jobs.size())) {
+                forget(job);
+            }
+        }
+    }
+
+    /**
+     * Cancel the job, or forget its result if it is done. A failure is only logged : the server forgets the job
+     * anyway once its TTL expires.
+     */
+    private void forget(CmdsrvJob job) {
+        try {
+            cancel(job);
+        } catch (RuntimeException e) {
+            LOGGER.warn("Could not forget job [{}] : {}", job.getId(), e.getMessage());
+        }
+    }
+
+    /**
+     * @see ICmdsrvJobClient
+     * @param req
+     * @return
+     */
+    @Override
+    public CmdsrvJob submit(CmdsrvRequest req) {
+        LOGGER.debug("Submitting request [{}] to [{}]", req, jobsResource.getURI());
+        ByteArrayOutputStream toSend = new ByteArrayOutputStream();
+        try {
+            CmdsrvJsonCodec.INSTANCE.writeRequest(req, toSend);
+        } catch (IOException e) {
+            throw new CmdsrvClientException("Could not marshall request [" + req + "] : " + e.getMessage(), e);
+        }
+
+        ClientResponse res = jobsResource
+                .type(CmdsrvJsonCodec.CONTENT_TYPE)
+                .accept(CmdsrvJsonCodec.CONTENT_TYPE)
+                .post(ClientResponse.class, toSend.toByteArray());
+        LOGGER.debug("Request [{}] submitted. Received status : [{}]", req, res.getStatus());
+        CmdsrvJob job = new CmdsrvJob(this, req);
+        read(res, ClientResponse.Status.ACCEPTED, job, "submitting request [" + req + "]");
+        return job;
+    }
+
+    /**
+     * @see ICmdsrvJobClient
+     * @param job
+     * @param timeout
+     * @param unit
+     * @return
+     */
+    @Override
+    public boolean poll(CmdsrvJob job, long timeout, TimeUnit unit) {
+        long waitMillis = Math.min(TimeUnit.SECONDS.toMillis(pollSeconds), unit.toMillis(timeout));
+        ClientResponse res = jobsResource.path(job.getId())
+                .queryParam("wait", String.valueOf(waitMillis / 1000.0))
+                .header("Accept-Encoding", CmdsrvContentEncoding.ACCEPT_ENCODING)
+                .accept(CmdsrvJsonCodec.CONTENT_TYPE)
+                .get(ClientResponse.class);
+        read(res, ClientResponse.Status.OK, job, "polling job [" + job.getId() + "]");
+        LOGGER.debug("Job [{}] polled : {}", job.getId(), job.getState());
+        return job.isDone();
+    }
+
+    /**
+     * @see ICmdsrvJobClient
+     * @param job
+     * @return
+     */
+    @Override
+    public boolean cancel(CmdsrvJob job) {
+        ClientResponse res = jobsResource.path(job.getId())
+                .accept(CmdsrvJsonCodec.CONTENT_TYPE)
+                .delete(ClientResponse.class);
+        if (ClientResponse.Status.NOT_FOUND == res.getClientResponseStatus()) {
+            res.close();
+            LOGGER.debug("Job [{}] not known by the server, not cancelled", job.getId());
+            return false;
+        }
+        read(res, ClientResponse.Status.OK, job, "cancelling job [" + job.getId() + "]");
+        LOGGER.debug("Job [{}] cancelled : {}", job.getId(), job.getState());
+        return true;
+    }
+
+    /**
+     * Update the job with the description held by the response, which is closed. A status other than the expected
+     * one is turned into a CmdsrvClientException.
+     *
+     * @param res
+     * @param expected
+     * @param job
+     * @param what Description of the request, for logging purposes
+     */
+    private static void read(ClientResponse res, ClientResponse.Status expected, CmdsrvJob job, String what) {
+        try {
+            if (expected != res.getClientResponseStatus()) {
+                String body = res.hasEntity() ? res.getEntity(String.class) : null;
+                String message = "Cmdsrv response error " + what + ". Received status : [" + res.getStatus() + "]. Received body [" + body + "]";
+                LOGGER.error(message);
+                throw CmdsrvClientException.forStatus(message, res.getStatus(), res.getHeaders().getFirst("Retry-After"));
+            }
+            CmdsrvJsonCodec.readJob(CmdsrvContentEncoding.decode(res.getHeaders().getFirst("Content-Encoding"), res.getEntityInputStream()), job);
+        } catch (IOException | IllegalStateException e) {
+            String message = "Could not read response " + what + " : " + e.getMessage();
+            LOGGER.error(message);
+            throw new CmdsrvClientException(message, e);
+        } finally {
+            res.close();
+        }
+    }
+
+}
@@ -0,0 +1,505 @@
+/*
+* Copyright 2013 Christophe Uberri <cuberri@gmail.com>
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package cmdsrv.client;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.BaseEncoding;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>
+ *     JSON codec, the default one. Human readable : you can curl the server easily.
+ * </p>
+ *
+ * <p>
+ *     Requests are written straight to the output stream and responses are parsed straight from the input stream with
+ *     the Gson streaming API and hand written adapters : no intermediate String, no reflection, nothing rebuilt per
+ *     call. Unknown fields are skipped and null fields are omitted, as Gson would do.
+ * </p>
+ *
+ * <p>
+ *     An output which is not valid text (binary data) is written base64 encoded, flagged by
+ *     <code>"stdoutencoding": "base64"</code> (or <code>stderrencoding</code>), as the server does.
+ * </p>
+ *
+ * @author Christophe Uberri <cuberri@gmail.com>
+ */
+public class CmdsrvJsonCodec implements ICmdsrvCodec {
+
+    public static final String CONTENT_TYPE = "application/json";
+
+    public static final CmdsrvJsonCodec INSTANCE = new CmdsrvJsonCodec();
+
+    private static final String ENCODING_SUFFIX = "encoding";
+    private static final String BASE64 = "base64";
+
+    @Override
+    public String getContentType() {
+        return CONTENT_TYPE;
+    }
+
+    @Override
+    public void writeRequest(CmdsrvRequest req, OutputStream out) throws IOException {
+        JsonWriter writer = writer(new OutputStreamWriter(out, Charsets.UTF_8));
+        writeRequest(req, writer);
+        writer.flush();
+    }
+
+    @Override
+    public void writeBatch(List<CmdsrvRequest> reqs, OutputStream out) throws IOException {
+        JsonWriter writer = writer(new OutputStreamWriter(out, Charsets.UTF_8));
+        writeBatch(reqs, writer);
+        writer.flush();
+    }
+
+    @Override
+    public CmdsrvResponse readResponse(InputStream in) throws IOException {
+        return readResponse(reader(new InputStreamReader(in, Charsets.UTF_8)));
+    }
+
+    @Override
+    public List<CmdsrvResponse> readBatch(InputStream in) throws IOException {
+        return readBatch(reader(new InputStreamReader(in, Charsets.UTF_8)));
+    }
+
+    /**
+     * Update the job with the JSON description sent by the /jobs routes of the server :
+     * {"id":"...", "state":"done", "result":{...}}
+     *
+     * @param in
+     * @param job
+     * @throws IOException
+     */
+    static void readJob(InputStream in, CmdsrvJob job) throws IOException {
+        JsonReader reader = reader(new InputStreamReader(in, Charsets.UTF_8));
+        String id = null;
+        CmdsrvJob.State state = null;
+        CmdsrvResponse result = null;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (JsonToken.NULL == reader.peek()) {
+                reader.nextNull();
+            } else if ("id".equals(name)) {
+                id = reader.nextString();
+            } else if ("state".equals(name)) {
+                String value = reader.nextString();
+                try {
+                    state = CmdsrvJob.State.valueOf(value.toUpperCase(Locale.ROOT));
+                } catch (IllegalArgumentException e) {
+                    throw new IOException("Unknown job state [" + value + "]", e);
+                }
+            } else if ("result".equals(name) && JsonToken.BEGIN_OBJECT == reader.peek()) {
+                result = readResponse(reader);
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        if (null == state) {
+            throw new IOException("No state in the job description");
+        }
+        job.update(id, state, result);
+    }
+
+    // String flavours, backing the toJson/fromJson helpers of the model classes
+
+    static String toJson(CmdsrvRequest req) {
+        StringWriter out = new StringWriter();
+        try {
+            writeRequest(req, writer(out));
+        } catch (IOException e) {
+            throw new CmdsrvClientException("Could not marshall request [" + req + "] : " + e.getMessage(), e);
+        }
+        return out.toString();
+    }
+
+    static String toJson(List<CmdsrvRequest> reqs) {
+        StringWriter out = new StringWriter();
+        try {
+            writeBatch(reqs, writer(out));
+        } catch (IOException e) {
+            throw new CmdsrvClientException("Could not marshall batch of " + reqs.size() + " requests : " + e.getMessage(), e);
+        }
+        return out.toString();
+    }
+
+    static String toJson(CmdsrvResponse res) {
+        StringWriter out = new StringWriter();
+        try {
+            writeResponse(res, writer(out));
+        } catch (IOException e) {
+            throw new CmdsrvClientException("Could not marshall response [" + res + "] : " + e.getMessage(), e);
+        }
+        return out.toString();
+    }
+
+    static CmdsrvRequest requestFromJson(String json) {
+        try {
+            return readRequest(reader(new StringReader(json)));
+        } catch (IOException | IllegalStateException | NumberFormatException e) {
+            throw new CmdsrvClientException("Invalid JSON request [" + json + "] : " + e.getMessage(), e);
+        }
+    }
+
+    static CmdsrvResponse responseFromJson(String json) {
+        try {
+            return readResponse(reader(new StringReader(json)));
+        } catch (IOException | IllegalStateException | NumberFormatException e) {
+            throw new CmdsrvClientException("Invalid JSON response [" + json + "] : " + e.getMessage(), e);
+        }
+    }
+
+    static List<CmdsrvResponse> batchFromJson(String json) {
+        try {
+            return readBatch(reader(new StringReader(json)));
+        } catch (IOException | IllegalStateException | NumberFormatException e) {
+            throw new CmdsrvClientException("Invalid JSON batch response [" + json + "] : " + e.getMessage(), e);
+        }
+    }
+
+    // adapters
+
+    private static JsonWriter writer(Writer out) {
+        JsonWriter writer = new JsonWriter(out);
+        writer.setHtmlSafe(false);
+        return writer;
+    }
+
+    private static JsonReader reader(Reader in) {
+        JsonReader reader = new JsonReader(in);
+        reader.setLenient(true);
+        return reader;
+    }
+
+    private static void writeRequest(CmdsrvRequest req, JsonWriter writer) throws IOException {
+        writer.beginObject();
+        writeCmd(req.getCmd(), writer);
+        if (!req.getPipe().isEmpty()) {
+            writer.name("pipe").beginArray();
+            for (String[] command : req.getPipe()) {
+                writeArgs(command, writer);
+            }
+            writer.endArray();
+        }
+        if (req.isPoolable()) {
+            writer.name("poolable").value(true);
+        }
+        if (req.getTimeoutMillis() > 0) {
+            writer.name("timeoutms").value(req.getTimeoutMillis());
+        }
+        writer.endObject();
+    }
+
+    private static void writeBatch(List<CmdsrvRequest> reqs, JsonWriter writer) throws IOException {
+        writer.beginObject();
+        writer.name("requests").beginArray();
+        for (CmdsrvRequest req : reqs) {
+            writeRequest(req, writer);
+        }
+        writer.endArray();
+        writer.endObject();
+    }
+
+    private static void writeResponse(CmdsrvResponse res, JsonWriter writer) throws IOException {
+        writer.beginObject();
+        writeCmd(res.getCmd(), writer);
+        writer.name("retval").value(res.getRetval());
+        if (res.isPiped()) {
+            writer.name("retvals").beginArray();
+            for (int retval : res.getRetvals()) {
+                writer.value(retval);
+            }
+            writer.endArray();
+        }
+        writeOutput(res, CmdsrvResponse.STDOUT, writer);
+        writeOutput(res, CmdsrvResponse.STDERR, writer);
+        if (res.isTimedOut()) {
+            writer.name("timedout").value(true);
+        }
+        if (res.getStdoutBytes() >= 0) {
+            writer.name("stdoutbytes").value(res.getStdoutBytes());
+        }
+        if (res.getStderrBytes() >= 0) {
+            writer.name("stderrbytes").value(res.getStderrBytes());
+        }
+        if (null != res.getSpoolId()) {
+            writer.name("spool").beginObject();
+            writer.name("id").value(res.getSpoolId());
+            if (res.isStdoutSpooled()) {
+                writer.name(CmdsrvResponse.STDOUT).value(res.getStdoutBytes());
+            }
+            if (res.isStderrSpooled()) {
+                writer.name(CmdsrvResponse.STDERR).value(res.getStderrBytes());
+            }
+            writer.endObject();
+        }
+        if (!res.getTimingMillis().isEmpty()) {
+            writer.name("timing").beginObject();
+            for (Map.Entry<String, Double> phase : res.getTimingMillis().entrySet()) {
+                writer.name(phase.getKey()).value(phase.getValue());
+            }
+            writer.endObject();
+        }
+        writer.endObject();
+    }
+
+    private static void writeOutput(CmdsrvResponse res, String stream, JsonWriter writer) throws IOException {
+        // the text first : an output held as a String is not encoded to be written
+        String text = res.getOutputText(stream);
+        if (null != text) {
+            writer.name(stream).value(text);
+            return;
+        }
+        ByteBuffer data = CmdsrvResponse.STDOUT.equals(stream) ? res.getStdoutBuffer() : res.getStderrBuffer();
+        if (null == data) {
+            return;
+        }
+        byte[] bytes = new byte[data.remaining()];
+        data.get(bytes);
+        writer.name(stream).value(BaseEncoding.base64().encode(bytes));
+        writer.name(stream + ENCODING_SUFFIX).value(BASE64);
+    }
+
+    private static void writeCmd(String[] cmd, JsonWriter writer) throws IOException {
+        if (null == cmd) {
+            return;
+        }
+        writer.name("cmd");
+        writeArgs(cmd, writer);
+    }
+
+    private static void writeArgs(String[] args, JsonWriter writer) throws IOException {
+        writer.beginArray();
+        for (String arg : args) {
+            writer.value(arg);
+        }
+        writer.endArray();
+    }
+
+    private static CmdsrvRequest readRequest(JsonReader reader) throws IOException {
+        String[] cmd = null;
+        List<String[]> pipe = new ArrayList<>();
+        boolean poolable = false;
+        long timeoutMillis = 0;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if ("cmd".equals(name)) {
+                cmd = readCmd(reader);
+            } else if ("pipe".equals(name) && JsonToken.BEGIN_ARRAY == reader.peek()) {
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    pipe.add(readCmd(reader));
+                }
+                reader.endArray();
+            } else if ("poolable".equals(name) && JsonToken.BOOLEAN == reader.peek()) {
+                poolable = reader.nextBoolean();
+            } else if ("timeoutms".equals(name) && JsonToken.NUMBER == reader.peek()) {
+                timeoutMillis = reader.nextLong();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        CmdsrvRequest req = new CmdsrvRequest(cmd).timeout(timeoutMillis, TimeUnit.MILLISECONDS);
+        for (String[] command : pipe) {
+            req.pipe(command);
+        }
+        return poolable ? req.poolable() : req;
+    }
+
+    private static CmdsrvResponse readResponse(JsonReader reader) throws IOException {
+        String[] cmd = null;
+        int retval = 0;
+        int[] retvals = null;
+        String stdout = null;
+        String stderr = null;
+        boolean stdoutBase64 = false;
+        boolean stderrBase64 = false;
+        long stdoutBytes = -1;
+        long stderrBytes = -1;
+        Map<String, Double> timing = null;
+        String spoolId = null;
+        boolean stdoutSpooled = false;
+        boolean stderrSpooled = false;
+        boolean timedOut = false;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (JsonToken.NULL == reader.peek()) {
+                reader.nextNull();
+            } else if ("cmd".equals(name)) {
+                cmd = readCmd(reader);
+            } else if ("retval".equals(name)) {
+                retval = reader.nextInt();
+            } else if ("retvals".equals(name) && JsonToken.BEGIN_ARRAY == reader.peek()) {
+                retvals = readInts(reader);
+            } else if ("stdout".equals(name)) {
+                stdout = reader.nextString();
+            } else if ("stderr".equals(name)) {
+                stderr = reader.nextString();
+            } else if (("stdout" + ENCODING_SUFFIX).equals(name)) {
+                stdoutBase64 = BASE64.equals(reader.nextString());
+            } else if (("stderr" + ENCODING_SUFFIX).equals(name)) {
+                stderrBase64 = BASE64.equals(reader.nextString());
+            } else if ("timedout".equals(name)) {
+                timedOut = reader.nextBoolean();
+            } else if ("stdoutbytes".equals(name)) {
+                stdoutBytes = reader.nextLong();
+            } else if ("stderrbytes".equals(name)) {
+                stderrBytes = reader.nextLong();
+            } else if ("timing".equals(name) && JsonToken.BEGIN_OBJECT == reader.peek()) {
+                timing = readTiming(reader);
+            } else if ("spool".equals(name) && JsonToken.BEGIN_OBJECT == reader.peek()) {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String field = reader.nextName();
+                    if ("id".equals(field) && JsonToken.STRING == reader.peek()) {
+                        spoolId = reader.nextString();
+                    } else {
+                        stdoutSpooled |= CmdsrvResponse.STDOUT.equals(field);
+                        stderrSpooled |= CmdsrvResponse.STDERR.equals(field);
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        CmdsrvResponse res;
+        if (stdoutBase64 || stderrBase64) {
+            res = new CmdsrvResponse(retval, toBytes(stdout, stdoutBase64), toBytes(stderr, stderrBase64), Charsets.UTF_8, cmd);
+        } else {
+            res = new CmdsrvResponse(retval, stdout, stderr, cmd);
+        }
+        res.setOutputBytes(stdoutBytes, stderrBytes);
+        res.setTimedOut(timedOut);
+        if (null != retvals) {
+            res.setRetvals(retvals);
+        }
+        if (null != spoolId) {
+            res.setSpool(spoolId, stdoutSpooled, stderrSpooled);
+        }
+        if (null != timing) {
+            res.setTimingMillis(timing);
+        }
+        return res;
+    }
+
+    private static int[] readInts(JsonReader reader) throws IOException {
+        List<Integer> values = new ArrayList<>();
+        reader.beginArray();
+        while (reader.hasNext()) {
+            values.add(reader.nextInt());
+        }
+        reader.endArray();
+        int[] ints = new int[values.size()];
+        for (int i = 0; i < ints.length; i++) {
+            ints[i] = values.get(i);
+        }
+        return ints;
+    }
+
+    private static byte[] toBytes(String output, boolean base64) throws IOException {
+        if (null == output) {
+            return null;
+        }
+        if (!base64) {
+            return output.getBytes(Charsets.UTF_8);
+        }
+        try {
+            return BaseEncoding.base64().decode(output);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Invalid base64 output : " + e.getMessage(), e);
+        }
+    }
+
+    private static List<CmdsrvResponse> readBatch(JsonReader reader) throws IOException {
+        List<CmdsrvResponse> responses = null;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if ("responses".equals(reader.nextName()) && JsonToken.BEGIN_ARRAY == reader.peek()) {
+                responses = new ArrayList<>();
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    responses.add(readResponse(reader));
+                }
+                reader.endArray();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return responses;
+    }
+
+    private static Map<String, Double> readTiming(JsonReader reader) throws IOException {
+        Map<String, Double> timing = new LinkedHashMap<>();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String phase = reader.nextName();
+            if (JsonToken.NUMBER == reader.peek()) {
+                timing.put(phase, reader.nextDouble());
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return timing;
+    }
+
+    private static String[] readCmd(JsonReader reader) throws IOException {
+        if (JsonToken.NULL == reader.peek()) {
+            reader.nextNull();
+            return null;
+        }
+        List<String> cmd = new ArrayList<>();
+        reader.beginArray();
+        while (reader.hasNext()) {
+            if (JsonToken.NULL == reader.peek()) {
+                reader.nextNull();
+                cmd.add(null);
+            } else {
+                cmd.add(reader.nextString());
+            }
+        }
+        reader.endArray();
+        return cmd.toArray(new String[cmd.size()]);
+    }
+}
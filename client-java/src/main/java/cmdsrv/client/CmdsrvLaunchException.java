@@ -0,0 +1,31 @@
+/*
+* Copyright 2013 Christophe Uberri <cuberri@gmail.com>
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package cmdsrv.client;
+
+/**
+ * Thrown by CmdsrvLocalClient when the process of a request could not be launched (unknown executable, no memory
+ * left to fork, ...)
+ *
+ * @author Christophe Uberri <cuberri@gmail.com>
+ */
+public class CmdsrvLaunchException extends CmdsrvClientException {
+
+    public CmdsrvLaunchException(String message, Throwable cause) {
+        super(message, cause);
+    }
+
+}
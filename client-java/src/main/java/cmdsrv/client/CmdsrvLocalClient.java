@@ -0,0 +1,352 @@
+/*
+* Copyright 2013 Christophe Uberri <cuberri@gmail.com>
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package cmdsrv.client;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * <p>
+ *     ICmdsrvClient running the commands in the current JVM through a ProcessBuilder, without any server round trip.
+ *     The responses are the same as the ones of the cmdsrv server.
+ * </p>
+ *
+ * <p>
+ *     cmdsrv exists because old JVMs fork the whole JVM to launch a process, which fails with "Cannot allocate memory"
+ *     when the heap is big. Since Java 9, the JDK can launch processes through <code>posix_spawn</code> instead, which
+ *     does not copy the parent's memory (it is the default on Linux since Java 12). On Java 9 to 11, select it with
+ *     <code>-Djdk.lang.Process.launchMechanism=POSIX_SPAWN</code> on the command line, or call
+ *     {@link #enablePosixSpawn()} before the JVM launches its first process : the property is read once, then.
+ * </p>
+ *
+ * <p>
+ *     A command running past the timeout of its request is destroyed, but not the processes it started (the JDK
+ *     cannot reach them). So is a command whose calling thread is interrupted, e.g. by cancelling the future returned
+ *     by {@link #executeAsync(CmdsrvRequest)}.
+ * </p>
+ *
+ * <p>
+ *     The commands of a pipeline (see {@link CmdsrvRequest#pipe(String...)}) are connected by threads copying the
+ *     output of each one to the next one.
+ * </p>
+ *
+ * <p>
+ *     See CmdsrvRoutingClient to keep the cmdsrv server as a fallback.
+ * </p>
+ *
+ * @author Christophe Uberri <cuberri@gmail.com>
+ */
+public class CmdsrvLocalClient implements ICmdsrvAsyncClient {
+
+    private static Logger LOGGER = LoggerFactory.getLogger(CmdsrvLocalClient.class);
+
+    public static final String LAUNCH_MECHANISM_PROPERTY = "jdk.lang.Process.launchMechanism";
+
+    /**
+     * Return value of a command of a batch which could not be launched, as the cmdsrv server does
+     */
+    public static final int NOT_LAUNCHED_RETVAL = 127;
+
+    private static final ListeningExecutorService RUNNERS = MoreExecutors.listeningDecorator(Executors.newCachedThreadPool(
+            new ThreadFactoryBuilder().setDaemon(true).setNameFormat("cmdsrv-local-%d").build()));
+
+    private static final ExecutorService OUTPUT_READERS = Executors.newCachedThreadPool(
+            new ThreadFactoryBuilder().setDaemon(true).setNameFormat("cmdsrv-local-output-%d").build());
+
+    private static final ExecutorService STDIN_WRITERS = Executors.newCachedThreadPool(
+            new ThreadFactoryBuilder().setDaemon(true).setNameFormat("cmdsrv-local-stdin-%d").build());
+
+    private static final ScheduledExecutorService KILLERS = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder().setDaemon(true).setNameFormat("cmdsrv-local-timeout-%d").build());
+
+    private Charset charset;
+
+    /**
+     * Output is decoded as UTF-8
+     */
+    public CmdsrvLocalClient() {
+        this(Charsets.UTF_8);
+    }
+
+    /**
+     * @param charset The charset of the output of the commands
+     */
+    public CmdsrvLocalClient(Charset charset) {
+        this.charset = charset;
+    }
+
+    /**
+     * Select the <code>posix_spawn</code> launch mechanism for the processes of the JVM, unless
+     * <code>jdk.lang.Process.launchMechanism</code> is already set. This sets a system property, hence is left to the
+     * application : call it at startup, before any process is launched.
+     *
+     * @return true if the property is set to POSIX_SPAWN, false on Java 8 and before, which do not support it
+     */
+    public static boolean enablePosixSpawn() {
+        if (System.getProperty("java.specification.version", "").startsWith("1.")) {
+            return false;
+        }
+        if (null == System.getProperty(LAUNCH_MECHANISM_PROPERTY)) {
+            System.setProperty(LAUNCH_MECHANISM_PROPERTY, "POSIX_SPAWN");
+        }
+        LOGGER.debug("Process launch mechanism : [{}]", System.getProperty(LAUNCH_MECHANISM_PROPERTY));
+        return "POSIX_SPAWN".equalsIgnoreCase(System.getProperty(LAUNCH_MECHANISM_PROPERTY));
+    }
+
+    /**
+     * @see ICmdsrvClient
+     * @param req
+     * @return
+     * @throws CmdsrvLaunchException if the process could not be launched
+     * @throws CmdsrvTimeoutException if the process ran past the timeout of the request
+     */
+    @Override
+    public CmdsrvResponse execute(CmdsrvRequest req) {
+        return execute(req, null);
+    }
+
+    /**
+     * Execute the command fed with the given standard input, copied to the process on another thread as it is read,
+     * like CmdsrvRestClientJersey does through the cmdsrv server
+     *
+     * @param req
+     * @param stdin Read until its end or until the process stops reading it, then closed. null for no input.
+     * @return
+     * @throws CmdsrvLaunchException if the process could not be launched
+     * @throws CmdsrvTimeoutException if the process ran past the timeout of the request
+     */
+    public CmdsrvResponse execute(CmdsrvRequest req, InputStream stdin) {
+        CmdsrvResponse res = run(req, stdin);
+        if (res.isTimedOut()) {
+            throw new CmdsrvTimeoutException("Request [" + req + "] timed out after " + req.getTimeoutMillis() + " ms", 0, res);
+        }
+        return res;
+    }
+
+    /**
+     * Execute the command on a thread of a pool, parked until the process ends. Cancelling the future (with
+     * interruption) destroys the process.
+     *
+     * @see ICmdsrvAsyncClient
+     * @param req
+     * @return
+     */
+    @Override
+    public ListenableFuture<CmdsrvResponse> executeAsync(final CmdsrvRequest req) {
+        return RUNNERS.submit(new Callable<CmdsrvResponse>() {
+            @Override
+            public CmdsrvResponse call() {
+                return execute(req);
+            }
+        });
+    }
+
+    /**
+     * The commands are executed one after the other. As on the cmdsrv server, a command which cannot be launched gets
+     * {@link #NOT_LAUNCHED_RETVAL} as return value and the error message as stderr, and a command killed on timeout
+     * gets a response which {@link CmdsrvResponse#isTimedOut()}.
+     *
+     * @see ICmdsrvClient
+     * @param reqs
+     * @return
+     */
+    @Override
+    public List<CmdsrvResponse> executeBatch(List<CmdsrvRequest> reqs) {
+        List<CmdsrvResponse> responses = new ArrayList<>(reqs.size());
+        for (CmdsrvRequest req : reqs) {
+            try {
+                responses.add(run(req, null));
+            } catch (CmdsrvLaunchException e) {
+                responses.add(new CmdsrvResponse(NOT_LAUNCHED_RETVAL, "", e.getCause().getMessage(), req.getCmd()));
+            }
+        }
+        return responses;
+    }
+
+    private CmdsrvResponse run(CmdsrvRequest req, final InputStream stdin) {
+        LOGGER.debug("Executing request [{}] locally", req);
+        List<String[]> commands = new ArrayList<>();
+        commands.add(req.getCmd());
+        commands.addAll(req.getPipe());
+        final List<Process> processes = new ArrayList<>(commands.size());
+        try {
+            for (String[] command : commands) {
+                processes.add(new ProcessBuilder(command).start());
+            }
+        } catch (IOException e) {
+            destroy(processes);
+            String message = "Could not launch request [" + req + "] locally : " + e.getMessage();
+            LOGGER.error(message);
+            throw new CmdsrvLaunchException(message, e);
+        }
+
+        final AtomicBoolean timedOut = new AtomicBoolean();
+        ScheduledFuture<?> killer = null;
+        if (req.getTimeoutMillis() > 0) {
+            killer = KILLERS.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    timedOut.set(true);
+                    destroy(processes);
+                }
+            }, req.getTimeoutMillis(), TimeUnit.MILLISECONDS);
+        }
+
+        try {
+            // the output of each command of a pipeline is copied to the next one, the JDK cannot connect them
+            List<Future<?>> feeders = new ArrayList<>();
+            if (null == stdin) {
+                processes.get(0).getOutputStream().close();
+            } else {
+                feeders.add(feed(stdin, processes.get(0)));
+            }
+            for (int i = 1; i < processes.size(); i++) {
+                feeders.add(feed(processes.get(i - 1).getInputStream(), processes.get(i)));
+            }
+            // stderr is drained on another thread, or a chatty process would block once the pipe buffer is full
+            List<Future<byte[]>> stderrs = new ArrayList<>(processes.size());
+            for (Process process : processes) {
+                stderrs.add(read(process.getErrorStream()));
+            }
+            // stdout as well, so that the calling thread waits in an interruptible call
+            byte[] stdout = read(processes.get(processes.size() - 1).getInputStream()).get();
+            int[] retvals = new int[processes.size()];
+            for (int i = 0; i < retvals.length; i++) {
+                retvals[i] = processes.get(i).waitFor();
+            }
+            for (Future<?> feeder : feeders) {
+                try {
+                    feeder.get();
+                } catch (ExecutionException e) {
+                    // the streams of the destroyed processes may fail
+                    if (!timedOut.get()) {
+                        throw e;
+                    }
+                }
+            }
+            byte[] stderr = stderrs.get(0).get();
+            if (stderrs.size() > 1) {
+                ByteArrayOutputStream all = new ByteArrayOutputStream();
+                for (Future<byte[]> data : stderrs) {
+                    all.write(data.get());
+                }
+                stderr = all.toByteArray();
+            }
+            CmdsrvResponse res = new CmdsrvResponse(retvals[retvals.length - 1], stdout, stderr, charset, req.getCmd());
+            if (retvals.length > 1) {
+                res.setRetvals(retvals);
+            }
+            res.setTimedOut(timedOut.get());
+            return res;
+        } catch (IOException | ExecutionException e) {
+            destroy(processes);
+            throw new CmdsrvClientException("Could not read the output of request [" + req + "] : " + e.getMessage(), e);
+        } catch (InterruptedException e) {
+            destroy(processes);
+            Thread.currentThread().interrupt();
+            throw new CmdsrvClientException("Interrupted while executing request [" + req + "]", e);
+        } finally {
+            if (null != killer) {
+                killer.cancel(false);
+            }
+        }
+    }
+
+    private static void destroy(List<Process> processes) {
+        for (Process process : processes) {
+            process.destroy();
+        }
+    }
+
+    private static Future<?> feed(final InputStream in, final Process process) {
+        return STDIN_WRITERS.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws IOException {
+                feed(in, process.getOutputStream(), process);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Copy the input to the process, then close both. The copy stops early, without error, when the process stops
+     * reading (closing the input then makes a piped command get SIGPIPE, as in a shell) ; the process is destroyed if
+     * the input cannot be read.
+     */
+    private static void feed(InputStream stdin, OutputStream out, Process process) throws IOException {
+        byte[] buffer = new byte[8192];
+        try (InputStream in = stdin) {
+            for (int read = in.read(buffer); read >= 0; read = in.read(buffer)) {
+                try {
+                    out.write(buffer, 0, read);
+                } catch (IOException e) {
+                    LOGGER.debug("Process stopped reading its input : {}", e.getMessage());
+                    return;
+                }
+            }
+        } catch (IOException e) {
+            process.destroy();
+            throw e;
+        } finally {
+            try {
+                out.close();
+            } catch (IOException e) {
+                LOGGER.debug("Process stopped reading its input : {}", e.getMessage());
+            }
+        }
+    }
+
+    private static Future<byte[]> read(final InputStream in) {
+        return OUTPUT_READERS.submit(new Callable<byte[]>() {
+            @Override
+            public byte[] call() throws IOException {
+                return readFully(in);
+            }
+        });
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        try {
+            return ByteStreams.toByteArray(in);
+        } finally {
+            in.close();
+        }
+    }
+}
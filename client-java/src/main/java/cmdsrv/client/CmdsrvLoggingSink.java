@@ -0,0 +1,44 @@
+/*
+* Copyright 2013 Christophe Uberri <cuberri@gmail.com>
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package cmdsrv.client;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * ICmdsrvMetricsSink logging every call at INFO level : command, return value or HTTP status, latency.
+ *
+ * @author Christophe Uberri <cuberri@gmail.com>
+ */
+public class CmdsrvLoggingSink implements ICmdsrvMetricsSink {
+
+    private static Logger LOGGER = LoggerFactory.getLogger(CmdsrvLoggingSink.class);
+
+    @Override
+    public void onStart(CmdsrvRequest req) {
+    }
+
+    @Override
+    public void onSuccess(CmdsrvRequest req, CmdsrvResponse res, long latencyNanos) {
+        LOGGER.info("[{}] returned {} in {} ms", req.getCmdJoinedStr(), res.getRetval(), latencyNanos / 1000000.0);
+    }
+
+    @Override
+    public void onError(CmdsrvRequest req, CmdsrvClientException e, long latencyNanos) {
+        LOGGER.info("[{}] failed with status {} in {} ms : {}", new Object[]{req.getCmdJoinedStr(), e.getStatusCode(),
+                latencyNanos / 1000000.0, e.getMessage()});
+    }
+}
@@ -0,0 +1,245 @@
+/*
+* Copyright 2013 Christophe Uberri <cuberri@gmail.com>
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package cmdsrv.client;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>
+ *     In-memory ICmdsrvMetricsSink : request and error counts, requests in flight, latency percentiles, sizes of the
+ *     commands and of their outputs, with a breakdown by executable (the first element of the command). The number
+ *     of executables tracked is bounded : past {@link #MAX_EXECUTABLES}, the new ones are accounted under
+ *     {@link #OTHER_EXECUTABLES}.
+ * </p>
+ *
+ * <p>
+ *     Sizes are counted in characters of the command arguments and of stdout/stderr, whatever the codec used on the
+ *     wire.
+ * </p>
+ *
+ * <p>
+ *     Example :
+ *
+ *     <pre>
+ *     {@code
+ *      CmdsrvMetrics metrics = new CmdsrvMetrics();
+ *      metrics.register("default"); // cmdsrv:type=ClientMetrics,name=default
+ *      ICmdsrvClient client = new CmdsrvMetricsClient(restClient, metrics);
+ *     }
+ *     </pre>
+ * </p>
+ *
+ * @author Christophe Uberri <cuberri@gmail.com>
+ */
+public class CmdsrvMetrics implements ICmdsrvMetricsSink, ICmdsrvMetricsMXBean {
+
+    private static Logger LOGGER = LoggerFactory.getLogger(CmdsrvMetrics.class);
+
+    public static final int MAX_EXECUTABLES = 256;
+    public static final String OTHER_EXECUTABLES = "_other";
+
+    private CmdsrvLatencyHistogram latency = new CmdsrvLatencyHistogram();
+    private AtomicLong errorCount = new AtomicLong();
+    private AtomicInteger inFlight = new AtomicInteger();
+    private AtomicLong requestSize = new AtomicLong();
+    private AtomicLong responseSize = new AtomicLong();
+    private ConcurrentMap<Integer, AtomicLong> errorsByStatus = new ConcurrentHashMap<>();
+    private ConcurrentMap<String, CmdsrvLatencyHistogram> latencyByExecutable = new ConcurrentHashMap<>();
+
+    private ObjectName objectName;
+
+    @Override
+    public void onStart(CmdsrvRequest req) {
+        inFlight.incrementAndGet();
+        requestSize.addAndGet(size(req.getCmd()));
+    }
+
+    @Override
+    public void onSuccess(CmdsrvRequest req, CmdsrvResponse res, long latencyNanos) {
+        inFlight.decrementAndGet();
+        record(req, latencyNanos);
+        responseSize.addAndGet(res.getOutputLength());
+    }
+
+    @Override
+    public void onError(CmdsrvRequest req, CmdsrvClientException e, long latencyNanos) {
+        inFlight.decrementAndGet();
+        record(req, latencyNanos);
+        errorCount.incrementAndGet();
+        AtomicLong count = errorsByStatus.get(e.getStatusCode());
+        if (null == count) {
+            AtomicLong previous = errorsByStatus.putIfAbsent(e.getStatusCode(), count = new AtomicLong());
+            if (null != previous) {
+                count = previous;
+            }
+        }
+        count.incrementAndGet();
+    }
+
+    /**
+     * Expose these metrics through the platform MBean server
+     *
+     * @param name Value of the name key of the ObjectName (cmdsrv:type=ClientMetrics,name=...)
+     */
+    public synchronized void register(String name) {
+        try {
+            ObjectName objectName = new ObjectName("cmdsrv:type=ClientMetrics,name=" + ObjectName.quote(name));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+            this.objectName = objectName;
+        } catch (JMException e) {
+            throw new CmdsrvClientException("Unable to register cmdsrv client metrics [" + name + "] : " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Remove these metrics from the platform MBean server, if registered
+     */
+    public synchronized void unregister() {
+        if (null == objectName) {
+            return;
+        }
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            server.unregisterMBean(objectName);
+        } catch (JMException e) {
+            LOGGER.warn("Unable to unregister [{}] : {}", objectName, e.getMessage());
+        }
+        objectName = null;
+    }
+
+    @Override
+    public long getRequestCount() {
+        return latency.getCount();
+    }
+
+    @Override
+    public long getErrorCount() {
+        return errorCount.get();
+    }
+
+    @Override
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    @Override
+    public double getLatencyMeanMillis() {
+        return latency.getMeanMillis();
+    }
+
+    @Override
+    public double getLatencyP50Millis() {
+        return latency.getPercentileMillis(50);
+    }
+
+    @Override
+    public double getLatencyP99Millis() {
+        return latency.getPercentileMillis(99);
+    }
+
+    @Override
+    public double getLatencyP999Millis() {
+        return latency.getPercentileMillis(99.9);
+    }
+
+    @Override
+    public double getLatencyMaxMillis() {
+        return latency.getMaxMillis();
+    }
+
+    @Override
+    public long getRequestSize() {
+        return requestSize.get();
+    }
+
+    @Override
+    public long getResponseSize() {
+        return responseSize.get();
+    }
+
+    @Override
+    public Map<Integer, Long> getErrorCountByStatus() {
+        Map<Integer, Long> counts = new TreeMap<>();
+        for (Map.Entry<Integer, AtomicLong> entry : errorsByStatus.entrySet()) {
+            counts.put(entry.getKey(), entry.getValue().get());
+        }
+        return counts;
+    }
+
+    @Override
+    public Map<String, Long> getRequestCountByExecutable() {
+        Map<String, Long> counts = new TreeMap<>();
+        for (Map.Entry<String, CmdsrvLatencyHistogram> entry : latencyByExecutable.entrySet()) {
+            counts.put(entry.getKey(), entry.getValue().getCount());
+        }
+        return counts;
+    }
+
+    @Override
+    public Map<String, Double> getLatencyP99MillisByExecutable() {
+        Map<String, Double> percentiles = new TreeMap<>();
+        for (Map.Entry<String, CmdsrvLatencyHistogram> entry : latencyByExecutable.entrySet()) {
+            percentiles.put(entry.getKey(), entry.getValue().getPercentileMillis(99));
+        }
+        return percentiles;
+    }
+
+    private void record(CmdsrvRequest req, long latencyNanos) {
+        latency.record(latencyNanos, TimeUnit.NANOSECONDS);
+        executableLatency(req).record(latencyNanos, TimeUnit.NANOSECONDS);
+    }
+
+    private CmdsrvLatencyHistogram executableLatency(CmdsrvRequest req) {
+        String executable = null == req.getCmd() || 0 == req.getCmd().length ? "" : req.getCmd()[0];
+        CmdsrvLatencyHistogram histogram = latencyByExecutable.get(executable);
+        if (null != histogram) {
+            return histogram;
+        }
+        if (latencyByExecutable.size() >= MAX_EXECUTABLES) {
+            executable = OTHER_EXECUTABLES;
+        }
+        histogram = new CmdsrvLatencyHistogram();
+        CmdsrvLatencyHistogram previous = latencyByExecutable.putIfAbsent(executable, histogram);
+        return null == previous ? histogram : previous;
+    }
+
+    private static long size(String[] cmd) {
+        long size = 0;
+        if (null != cmd) {
+            for (String arg : cmd) {
+                size += length(arg);
+            }
+        }
+        return size;
+    }
+
+    private static long length(String s) {
+        return null == s ? 0 : s.length();
+    }
+}
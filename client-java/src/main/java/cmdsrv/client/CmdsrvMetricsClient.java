@@ -0,0 +1,127 @@
+/*
+* Copyright 2013 Christophe Uberri <cuberri@gmail.com>
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package cmdsrv.client;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * <p>
+ *     ICmdsrvClient decorator measuring the requests of another client and reporting them to one or more
+ *     ICmdsrvMetricsSink (see CmdsrvMetrics and CmdsrvLoggingSink).
+ * </p>
+ *
+ * <p>
+ *     Each request of a batch is reported on its own, with the latency of the whole batch.
+ * </p>
+ *
+ * <p>
+ *     Example :
+ *
+ *     <pre>
+ *     {@code
+ *      CmdsrvMetrics metrics = new CmdsrvMetrics();
+ *      metrics.register("default");
+ *      ICmdsrvClient client = new CmdsrvMetricsClient(restClient, metrics, new CmdsrvLoggingSink());
+ *      client.execute(new CmdsrvRequest("ls", "-a", "-l"));
+ *      metrics.getLatencyP99Millis();
+ *     }
+ *     </pre>
+ * </p>
+ *
+ * @author Christophe Uberri <cuberri@gmail.com>
+ */
+public class CmdsrvMetricsClient implements ICmdsrvClient {
+
+    private ICmdsrvClient delegate;
+    private List<ICmdsrvMetricsSink> sinks;
+
+    /**
+     * @param delegate The client actually executing the requests
+     * @param sinks
+     */
+    public CmdsrvMetricsClient(ICmdsrvClient delegate, ICmdsrvMetricsSink... sinks) {
+        this.delegate = delegate;
+        this.sinks = Arrays.asList(sinks);
+    }
+
+    /**
+     * @see ICmdsrvClient
+     * @param req
+     * @return
+     */
+    @Override
+    public CmdsrvResponse execute(CmdsrvRequest req) {
+        start(req);
+        long start = System.nanoTime();
+        try {
+            CmdsrvResponse res = delegate.execute(req);
+            success(req, res, System.nanoTime() - start);
+            return res;
+        } catch (RuntimeException e) {
+            error(req, e, System.nanoTime() - start);
+            throw e;
+        }
+    }
+
+    /**
+     * @see ICmdsrvClient
+     * @param reqs
+     * @return
+     */
+    @Override
+    public List<CmdsrvResponse> executeBatch(List<CmdsrvRequest> reqs) {
+        for (CmdsrvRequest req : reqs) {
+            start(req);
+        }
+        long start = System.nanoTime();
+        try {
+            List<CmdsrvResponse> responses = delegate.executeBatch(reqs);
+            long latency = System.nanoTime() - start;
+            for (int i = 0; i < reqs.size(); i++) {
+                success(reqs.get(i), responses.get(i), latency);
+            }
+            return responses;
+        } catch (RuntimeException e) {
+            long latency = System.nanoTime() - start;
+            for (CmdsrvRequest req : reqs) {
+                error(req, e, latency);
+            }
+            throw e;
+        }
+    }
+
+    private void start(CmdsrvRequest req) {
+        for (ICmdsrvMetricsSink sink : sinks) {
+            sink.onStart(req);
+        }
+    }
+
+    private void success(CmdsrvRequest req, CmdsrvResponse res, long latencyNanos) {
+        for (ICmdsrvMetricsSink sink : sinks) {
+            sink.onSuccess(req, res, latencyNanos);
+        }
+    }
+
+    private void error(CmdsrvRequest req, RuntimeException e, long latencyNanos) {
+        CmdsrvClientException clientException = e instanceof CmdsrvClientException
+                ? (CmdsrvClientException) e
+                : new CmdsrvClientException(e.getMessage(), e);
+        for (ICmdsrvMetricsSink sink : sinks) {
+            sink.onError(req, clientException, latencyNanos);
+        }
+    }
+}
@@ -0,0 +1,64 @@
+/*
+* Copyright 2013 Christophe Uberri <cuberri@gmail.com>
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package cmdsrv.client;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * ICmdsrvOutputHandler copying the output of the command to a couple of OutputStreams, which are neither flushed nor
+ * closed.
+ *
+ * <p>
+ *     Example :
+ *     <pre>
+ *     {@code
+ *     restClient.executeStream(new CmdsrvRequest("tar", "cz", "/data"), new CmdsrvOutputStreamHandler(fileOut, System.err));
+ *     }
+ *     </pre>
+ * </p>
+ *
+ * @author Christophe Uberri <cuberri@gmail.com>
+ */
+public class CmdsrvOutputStreamHandler implements ICmdsrvOutputHandler {
+
+    private OutputStream stdout;
+    private OutputStream stderr;
+
+    public CmdsrvOutputStreamHandler(OutputStream stdout, OutputStream stderr) {
+        this.stdout = stdout;
+        this.stderr = stderr;
+    }
+
+    @Override
+    public void onStdout(byte[] buf, int off, int len) {
+        write(stdout, buf, off, len);
+    }
+
+    @Override
+    public void onStderr(byte[] buf, int off, int len) {
+        write(stderr, buf, off, len);
+    }
+
+    private static void write(OutputStream out, byte[] buf, int off, int len) {
+        try {
+            out.write(buf, off, len);
+        } catch (IOException e) {
+            throw new CmdsrvClientException("Could not write command output : " + e.getMessage(), e);
+        }
+    }
+}
@@ -0,0 +1,148 @@
+/*
+* Copyright 2013 Christophe Uberri <cuberri@gmail.com>
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package cmdsrv.client;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.sun.jersey.api.client.Client;
+import com.sun.jersey.client.apache4.ApacheHttpClient4;
+import com.sun.jersey.client.apache4.config.ApacheHttpClient4Config;
+import com.sun.jersey.client.apache4.config.DefaultApacheHttpClient4Config;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>
+ *     Ready made Jersey transport for CmdsrvRestClientJersey, backed by a pool of keep-alive connections (Apache
+ *     HttpClient 4), so that commands do not pay a TCP handshake each.
+ * </p>
+ *
+ * <p>
+ *     The pool holds at most <code>maxConnections</code> connections. Connections idle for more than
+ *     <code>idleTimeoutMillis</code> are evicted by a background thread, which keeps the pool from handing out
+ *     connections the server has already closed (see <code>keepalivetimeout</code> in <code>cmdsrv.cfg</code> : the
+ *     client side idle timeout should be lower).
+ * </p>
+ *
+ * <p>
+ *     Example :
+ *
+ *     <pre>
+ *     {@code
+ *      CmdsrvPooledTransport transport = new CmdsrvPooledTransport(32, 1000, 60000, 10000);
+ *      CmdsrvRestClientJersey restClient = transport.createRestClient("http://localhost:8055/cmd");
+ *      restClient.execute(new CmdsrvRequest("ls", "-a", "-l"));
+ *      ...
+ *      transport.close();
+ *     }
+ *     </pre>
+ * </p>
+ *
+ * @author Christophe Uberri <cuberri@gmail.com>
+ */
+public class CmdsrvPooledTransport implements Closeable {
+
+    private static Logger LOGGER = LoggerFactory.getLogger(CmdsrvPooledTransport.class);
+
+    private ThreadSafeClientConnManager connectionManager;
+    private Client client;
+    private ScheduledExecutorService evictor;
+
+    /**
+     * @param maxConnections Maximum number of connections, to all the servers
+     * @param connectTimeoutMillis Connect timeout, 0 for infinite
+     * @param readTimeoutMillis Read timeout, 0 for infinite
+     * @param idleTimeoutMillis Delay after which an idle connection is closed
+     */
+    public CmdsrvPooledTransport(int maxConnections, int connectTimeoutMillis, int readTimeoutMillis, final long idleTimeoutMillis) {
+        connectionManager = new ThreadSafeClientConnManager();
+        connectionManager.setMaxTotal(maxConnections);
+        connectionManager.setDefaultMaxPerRoute(maxConnections);
+
+        // the Apache connector ignores the Jersey timeout properties : they go to HttpClient directly
+        HttpParams params = new BasicHttpParams();
+        HttpConnectionParams.setConnectionTimeout(params, connectTimeoutMillis);
+        HttpConnectionParams.setSoTimeout(params, readTimeoutMillis);
+
+        DefaultApacheHttpClient4Config config = new DefaultApacheHttpClient4Config();
+        config.getProperties().put(ApacheHttpClient4Config.PROPERTY_CONNECTION_MANAGER, connectionManager);
+        config.getProperties().put(ApacheHttpClient4Config.PROPERTY_HTTP_PARAMS, params);
+        client = ApacheHttpClient4.create(config);
+
+        evictor = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                .setNameFormat("cmdsrv-connection-evictor-%d")
+                .setDaemon(true)
+                .build());
+        long period = Math.max(idleTimeoutMillis / 2, 100);
+        evictor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                connectionManager.closeExpiredConnections();
+                connectionManager.closeIdleConnections(idleTimeoutMillis, TimeUnit.MILLISECONDS);
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+
+        LOGGER.info("Pooled transport created : maxConnections[{}] connectTimeout[{}ms] readTimeout[{}ms] idleTimeout[{}ms]",
+                maxConnections, connectTimeoutMillis, readTimeoutMillis, idleTimeoutMillis);
+    }
+
+    /**
+     * The pooled Jersey client, for those who need to build their own WebResources
+     *
+     * @return
+     */
+    public Client getClient() {
+        return client;
+    }
+
+    /**
+     * Number of connections currently held by the pool, leased or idle
+     *
+     * @return
+     */
+    public int getConnectionsInPool() {
+        return connectionManager.getConnectionsInPool();
+    }
+
+    /**
+     * Create a rest client sharing the connections of this transport
+     *
+     * @param cmdsrvUrl The cmdsrv's server location, e.g. http://localhost:8055/cmd
+     * @return
+     */
+    public CmdsrvRestClientJersey createRestClient(String cmdsrvUrl) {
+        return new CmdsrvRestClientJersey(client.resource(cmdsrvUrl));
+    }
+
+    /**
+     * Stop the eviction thread and close all the connections
+     */
+    @Override
+    public void close() {
+        evictor.shutdownNow();
+        client.destroy();
+        connectionManager.shutdown();
+    }
+}
@@ -0,0 +1,50 @@
+/*
+* Copyright 2013 Christophe Uberri <cuberri@gmail.com>
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package cmdsrv.client;
+
+/**
+ * Thrown when the request has been turned away because of the load, without running its command : the cmdsrv server
+ * answers with a <code>503 Service Unavailable</code> when its queue is full (the request can be sent again later,
+ * see {@link #getRetryAfterMillis()}), and CmdsrvAdaptiveLimitClient throws it (with a 0 status) when it cannot get
+ * a slot in time
+ *
+ * @author Christophe Uberri <cuberri@gmail.com>
+ */
+public class CmdsrvRejectedException extends CmdsrvClientException {
+
+    private long retryAfterMillis;
+
+    /**
+     * @param message
+     * @param statusCode The HTTP status of the error response sent by the server, 0 if the request was not sent
+     * @param retryAfterMillis The delay before sending the request again, -1 if unknown
+     */
+    public CmdsrvRejectedException(String message, int statusCode, long retryAfterMillis) {
+        super(message, statusCode);
+        this.retryAfterMillis = retryAfterMillis;
+    }
+
+    /**
+     * The delay before sending the request again, as asked by the <code>Retry-After</code> header of the server
+     * response, -1 if unknown
+     *
+     * @return
+     */
+    public long getRetryAfterMillis() {
+        return retryAfterMillis;
+    }
+
+}
@@ -17,9 +17,12 @@
 package cmdsrv.client;
 
 import com.google.common.base.Joiner;
-import com.google.gson.Gson;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 /**
  * <p>
@@ -27,7 +30,7 @@ import java.util.Arrays;
  * </p>
  *
  * <p>
- *     Use Gson library to marshall/unmarshall itself
+ *     Marshalled/unmarshalled as JSON by CmdsrvJsonCodec
  * </p>
  *
  * <p>
@@ -44,11 +47,26 @@ import java.util.Arrays;
  *     </pre>
  * </p>
  *
+ * <p>
+ *     The output of the command may be piped into other commands on the server, as a shell pipeline does, without
+ *     going through the client :
+ *     <pre>
+ *     {@code
+ *     new CmdsrvRequest("grep", "-h", "ERROR", "a.log", "b.log").pipe("sort").pipe("uniq", "-c")
+ *     }
+ *     </pre>
+ * </p>
+ *
  * @author Christophe Uberri <cuberri@gmail.com>
  */
 public class CmdsrvRequest {
 
     private String[] cmd;
+    private long cacheTtlMillis;
+    private boolean poolable;
+    private boolean idempotent;
+    private long timeoutMillis;
+    private List<String[]> pipe = Collections.emptyList();
 
     /**
      * Construct a command request to be executed server side based on the given arguments. <br />
@@ -60,6 +78,128 @@ public class CmdsrvRequest {
         this.cmd = command;
     }
 
+    /**
+     * Mark the request as cacheable : a CmdsrvCachingClient may answer it with the response of an identical request
+     * for the given time to live. Only mark read-only commands whose output does not change within the TTL. This is
+     * client side information, not sent to the server.
+     *
+     * @param ttl
+     * @param unit
+     * @return this request
+     */
+    public CmdsrvRequest cacheable(long ttl, TimeUnit unit) {
+        this.cacheTtlMillis = unit.toMillis(ttl);
+        return this;
+    }
+
+    /**
+     * Whether the request has been marked cacheable
+     *
+     * @return
+     */
+    public boolean isCacheable() {
+        return cacheTtlMillis > 0;
+    }
+
+    /**
+     * The time to live of the cached response, in milliseconds (0 if not cacheable)
+     *
+     * @return
+     */
+    public long getCacheTtlMillis() {
+        return cacheTtlMillis;
+    }
+
+    /**
+     * Mark the request as idempotent : running its command twice does the same as running it once, so a
+     * CmdsrvRetryingClient may send it again after an error, or send a duplicate while it is slow. This is client side
+     * information, not sent to the server.
+     *
+     * @return this request
+     */
+    public CmdsrvRequest idempotent() {
+        this.idempotent = true;
+        return this;
+    }
+
+    /**
+     * Whether the request has been marked idempotent, or cacheable (a cacheable command is read-only)
+     *
+     * @return
+     */
+    public boolean isIdempotent() {
+        return idempotent || isCacheable();
+    }
+
+    /**
+     * Mark the request as poolable : the server may run it from one of its pre-started workers (see the
+     * <code>[pool]</code> section of <code>cmdsrv.cfg</code>), which is faster for short commands.
+     *
+     * @return this request
+     */
+    public CmdsrvRequest poolable() {
+        this.poolable = true;
+        return this;
+    }
+
+    /**
+     * Whether the request has been marked poolable
+     *
+     * @return
+     */
+    public boolean isPoolable() {
+        return poolable;
+    }
+
+    /**
+     * Give the command a deadline : the server kills it (with the processes it started) if it still runs after the
+     * given time, and the client gets a {@link CmdsrvTimeoutException} (or, in a batch, a response whose
+     * {@link CmdsrvResponse#isTimedOut()}).
+     *
+     * @param timeout
+     * @param unit
+     * @return this request
+     */
+    public CmdsrvRequest timeout(long timeout, TimeUnit unit) {
+        this.timeoutMillis = unit.toMillis(timeout);
+        return this;
+    }
+
+    /**
+     * The timeout of the command, in milliseconds (0 if none)
+     *
+     * @return
+     */
+    public long getTimeoutMillis() {
+        return timeoutMillis;
+    }
+
+    /**
+     * Pipe the output of the command (or of the last piped command) into the given command : the server connects them
+     * with an OS pipe, so the intermediate output never leaves it. The response holds the output of the last command,
+     * what all of them wrote on stderr, and the return value of each one (see {@link CmdsrvResponse#getRetvals()}).
+     * Only carried by the JSON codec : CmdsrvBinaryCodec refuses such a request.
+     *
+     * @param command
+     * @return this request
+     */
+    public CmdsrvRequest pipe(String... command) {
+        if (pipe.isEmpty()) {
+            pipe = new ArrayList<>();
+        }
+        pipe.add(command);
+        return this;
+    }
+
+    /**
+     * The commands the output of the command is piped into, in order
+     *
+     * @return an empty list if the command is not piped
+     */
+    public List<String[]> getPipe() {
+        return Collections.unmodifiableList(pipe);
+    }
+
     /**
      * The command to be executed as an array. The first element is the executable. The following elements are the
      * arguments to be passed to the executable.
@@ -81,8 +221,12 @@ public class CmdsrvRequest {
 
     @Override
     public String toString() {
+        StringBuilder piped = new StringBuilder();
+        for (String[] command : pipe) {
+            piped.append(" | ").append(Joiner.on(' ').join(command));
+        }
         return "CmdsrvRequest{" +
-                "cmd='" + getCmdJoinedStr() + '\'' +
+                "cmd='" + getCmdJoinedStr() + piped + '\'' +
                 '}';
     }
 
@@ -93,7 +237,7 @@ public class CmdsrvRequest {
      * @return
      */
     public static String toJson(CmdsrvRequest req) {
-        return new Gson().toJson(req);
+        return CmdsrvJsonCodec.toJson(req);
     }
 
     /**
@@ -103,7 +247,17 @@ public class CmdsrvRequest {
      * @return
      */
     public static CmdsrvRequest fromJson(String json) {
-        return new Gson().fromJson(json, CmdsrvRequest.class);
+        return CmdsrvJsonCodec.requestFromJson(json);
+    }
+
+    /**
+     * Return a JSON String representation of a batch of requests, as expected by the cmdsrv's batch endpoint
+     *
+     * @param reqs
+     * @return
+     */
+    public static String toJsonBatch(List<CmdsrvRequest> reqs) {
+        return CmdsrvJsonCodec.toJson(reqs);
     }
 
     @Override
@@ -114,12 +268,20 @@ public class CmdsrvRequest {
         CmdsrvRequest that = (CmdsrvRequest) o;
 
         if (!Arrays.equals(cmd, that.cmd)) return false;
+        if (pipe.size() != that.pipe.size()) return false;
+        for (int i = 0; i < pipe.size(); i++) {
+            if (!Arrays.equals(pipe.get(i), that.pipe.get(i))) return false;
+        }
 
         return true;
     }
 
     @Override
     public int hashCode() {
-        return cmd != null ? Arrays.hashCode(cmd) : 0;
+        int result = cmd != null ? Arrays.hashCode(cmd) : 0;
+        for (String[] command : pipe) {
+            result = 31 * result + Arrays.hashCode(command);
+        }
+        return result;
     }
 }
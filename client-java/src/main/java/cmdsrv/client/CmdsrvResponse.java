@@ -16,8 +16,19 @@
 
 package cmdsrv.client;
 
+import com.google.common.base.Charsets;
 import com.google.common.base.Joiner;
-import com.google.gson.Gson;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CodingErrorAction;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
 
 /**
  * Model of the response got from the cmdsrv server. The executed command is recalled, and the result of the execution
@@ -28,6 +39,20 @@ import com.google.gson.Gson;
  *     <li>stderr : the standard error output of the execution</li>
  * </ul>
  *
+ * The server may add the size of the outputs and the time spent in each phase of the request (JSON responses of the
+ * /cmd and /cmd/batch routes) : see {@link #getTimingMillis()}.
+ *
+ * An output too big to be returned inline may be spooled by the server : see {@link #getSpoolId()}.
+ *
+ * The response of a pipeline (see {@link CmdsrvRequest#pipe(String...)}) holds the output of its last command, and
+ * the return value of each command : see {@link #getRetvals()}.
+ *
+ * The outputs are kept in the form received only : bytes when the codec provides them (binary codec, local client,
+ * spooled outputs, base64 encoded JSON outputs), Strings otherwise (the JSON parser unescapes them into Strings). The
+ * other form is converted at each call and not kept, so that a big output is never held twice : keep the result of
+ * {@link #getStdout()} rather than calling it again. Binary outputs (archives, images, ...) can be read untouched
+ * with {@link #getStdoutBuffer()} or {@link #writeStdout(OutputStream)}.
+ *
  * Example of some data unmarshalled from the server :
  * <pre>
  * {@code
@@ -39,10 +64,21 @@ import com.google.gson.Gson;
  */
 public class CmdsrvResponse {
 
+    public static final String STDOUT = "stdout";
+    public static final String STDERR = "stderr";
+
     private String[] cmd;
     private int retval;
-    private String stdout;
-    private String stderr;
+    private Output stdout;
+    private Output stderr;
+    private long stdoutBytes = -1;
+    private long stderrBytes = -1;
+    private Map<String, Double> timingMillis = Collections.emptyMap();
+    private String spoolId;
+    private boolean stdoutSpooled;
+    private boolean stderrSpooled;
+    private boolean timedOut;
+    private int[] retvals;
 
     /**
      * You'd probably not need to construct such an object, but the constructor is made public for convenience
@@ -55,8 +91,25 @@ public class CmdsrvResponse {
     public CmdsrvResponse(int retval, String stdout, String stderr, String... cmd) {
         this.cmd = cmd;
         this.retval = retval;
-        this.stdout = stdout;
-        this.stderr = stderr;
+        this.stdout = null == stdout ? null : new Output(stdout, Charsets.UTF_8);
+        this.stderr = null == stderr ? null : new Output(stderr, Charsets.UTF_8);
+    }
+
+    /**
+     * Build a response holding the raw outputs, decoded with the given charset only when asked for as Strings. The
+     * arrays are not copied : they must not be modified afterwards.
+     *
+     * @param retval
+     * @param stdout
+     * @param stderr
+     * @param charset The charset of the outputs
+     * @param cmd
+     */
+    public CmdsrvResponse(int retval, byte[] stdout, byte[] stderr, Charset charset, String... cmd) {
+        this.cmd = cmd;
+        this.retval = retval;
+        this.stdout = null == stdout ? null : new Output(stdout, charset);
+        this.stderr = null == stderr ? null : new Output(stderr, charset);
     }
 
     /**
@@ -84,19 +137,205 @@ public class CmdsrvResponse {
     }
 
     /**
-     * The standard output of the process execution on the server
+     * The return value of each command of a pipeline, in order : the last one is {@link #getRetval()}. A command
+     * killed because the next one exited before reading all its output got SIGPIPE : -13 from the server.
+     * @return a single value if the request was not piped
+     */
+    public int[] getRetvals() {
+        return null == retvals ? new int[]{retval} : retvals.clone();
+    }
+
+    /**
+     * The standard output of the process execution on the server, decoded at each call when received as bytes
+     * (malformed input is replaced)
      * @return
      */
     public String getStdout() {
-        return stdout;
+        return null == stdout ? null : stdout.text();
     }
 
     /**
-     * The standard error output of the process execution on the server
+     * The standard error output of the process execution on the server, decoded at each call when received as bytes
+     * (malformed input is replaced)
      * @return
      */
     public String getStderr() {
-        return stderr;
+        return null == stderr ? null : stderr.text();
+    }
+
+    /**
+     * The bytes of the standard output, without any copy when the response has been built from them (encoded at
+     * each call otherwise)
+     * @return a read-only buffer, null if there is no output (spooled, or absent)
+     */
+    public ByteBuffer getStdoutBuffer() {
+        return null == stdout ? null : ByteBuffer.wrap(stdout.bytes()).asReadOnlyBuffer();
+    }
+
+    /**
+     * The bytes of the standard error output, without any copy when the response has been built from them (encoded
+     * at each call otherwise)
+     * @return a read-only buffer, null if there is no output (spooled, or absent)
+     */
+    public ByteBuffer getStderrBuffer() {
+        return null == stderr ? null : ByteBuffer.wrap(stderr.bytes()).asReadOnlyBuffer();
+    }
+
+    /**
+     * Write the bytes of the standard output to the given stream, which is left open. Nothing is written if there is
+     * no output.
+     *
+     * @param out
+     * @throws IOException
+     */
+    public void writeStdout(OutputStream out) throws IOException {
+        if (null != stdout) {
+            out.write(stdout.bytes());
+        }
+    }
+
+    /**
+     * Write the bytes of the standard error output to the given stream, which is left open. Nothing is written if
+     * there is no output.
+     *
+     * @param out
+     * @throws IOException
+     */
+    public void writeStderr(OutputStream out) throws IOException {
+        if (null != stderr) {
+            out.write(stderr.bytes());
+        }
+    }
+
+    /**
+     * The size of the standard output in bytes, as counted by the server
+     * @return -1 if the server did not tell
+     */
+    public long getStdoutBytes() {
+        return stdoutBytes;
+    }
+
+    /**
+     * The size of the standard error output in bytes, as counted by the server
+     * @return -1 if the server did not tell
+     */
+    public long getStderrBytes() {
+        return stderrBytes;
+    }
+
+    /**
+     * The time spent by the server in each phase of the request, in milliseconds : "queue" (waiting for a server
+     * worker), "read" and "parse" (the request body), "spawn" (creating the process) and "run" (until the process
+     * ended). Batched responses only hold "spawn" and "run". A phase which was not measured is absent.
+     * @return an empty map if the server did not tell
+     */
+    public Map<String, Double> getTimingMillis() {
+        return timingMillis;
+    }
+
+    /**
+     * The id of the spool files holding the outputs too big to be returned inline, to be fetched from the server (see
+     * CmdsrvRestClientJersey, which does it unless told otherwise)
+     * @return null if no output has been spooled
+     */
+    public String getSpoolId() {
+        return spoolId;
+    }
+
+    /**
+     * Whether the standard output has been spooled on the server, in which case {@link #getStdout()} returns null
+     * @return
+     */
+    public boolean isStdoutSpooled() {
+        return stdoutSpooled;
+    }
+
+    /**
+     * Whether the standard error output has been spooled on the server, in which case {@link #getStderr()} returns
+     * null
+     * @return
+     */
+    public boolean isStderrSpooled() {
+        return stderrSpooled;
+    }
+
+    /**
+     * Whether the command has been killed because it ran past the timeout of its request (responses of a batch or of a
+     * job : a single command answers with a {@link CmdsrvTimeoutException}). The outputs are what the command wrote
+     * until then.
+     * @return
+     */
+    public boolean isTimedOut() {
+        return timedOut;
+    }
+
+    /**
+     * Whether the response holds the return values of a pipeline
+     * @return
+     */
+    boolean isPiped() {
+        return null != retvals;
+    }
+
+    void setRetvals(int[] retvals) {
+        this.retvals = retvals;
+    }
+
+    void setTimedOut(boolean timedOut) {
+        this.timedOut = timedOut;
+    }
+
+    void setSpool(String spoolId, boolean stdoutSpooled, boolean stderrSpooled) {
+        this.spoolId = spoolId;
+        this.stdoutSpooled = stdoutSpooled;
+        this.stderrSpooled = stderrSpooled;
+    }
+
+    /**
+     * Replace a spooled output by its content, fetched from the server
+     *
+     * @param stream {@link #STDOUT} or {@link #STDERR}
+     * @param data
+     */
+    void setSpooledOutput(String stream, byte[] data) {
+        if (STDOUT.equals(stream)) {
+            stdout = new Output(data, Charsets.UTF_8);
+            stdoutSpooled = false;
+        } else {
+            stderr = new Output(data, Charsets.UTF_8);
+            stderrSpooled = false;
+        }
+        if (!stdoutSpooled && !stderrSpooled) {
+            spoolId = null;
+        }
+    }
+
+    /**
+     * The output as text if it can be decoded without loss, to be written as is by a text format
+     *
+     * @param stream {@link #STDOUT} or {@link #STDERR}
+     * @return null if there is no output, or if it is not valid in its charset (binary data)
+     */
+    String getOutputText(String stream) {
+        Output output = STDOUT.equals(stream) ? stdout : stderr;
+        return null == output ? null : output.strictText();
+    }
+
+    /**
+     * The size in bytes of the outputs held by the response, counted without encoding the outputs held as Strings
+     * @return
+     */
+    long getOutputLength() {
+        return (null == stdout ? 0 : stdout.length()) + (null == stderr ? 0 : stderr.length());
+    }
+
+    void setOutputBytes(long stdoutBytes, long stderrBytes) {
+        this.stdoutBytes = stdoutBytes;
+        this.stderrBytes = stderrBytes;
+    }
+
+    void setTimingMillis(Map<String, Double> timingMillis) {
+        this.timingMillis = Collections.unmodifiableMap(timingMillis);
     }
 
     @Override
@@ -104,8 +343,8 @@ public class CmdsrvResponse {
         return "CmdsrvResponse{" +
                 "cmd=" + getCmdJoinedStr() +
                 ", retval=" + retval +
-                ", stdout='" + stdout + '\'' +
-                ", stderr='" + stderr + '\'' +
+                ", stdout='" + getStdout() + '\'' +
+                ", stderr='" + getStderr() + '\'' +
                 '}';
     }
 
@@ -116,7 +355,7 @@ public class CmdsrvResponse {
      * @return
      */
     public static String toJson(CmdsrvResponse res) {
-        return new Gson().toJson(res);
+        return CmdsrvJsonCodec.toJson(res);
     }
 
     /**
@@ -126,7 +365,96 @@ public class CmdsrvResponse {
      * @return
      */
     public static CmdsrvResponse fromJson(String json) {
-        return new Gson().fromJson(json, CmdsrvResponse.class);
+        return CmdsrvJsonCodec.responseFromJson(json);
+    }
+
+    /**
+     * Factory method unmarshalling the responses of a batch from a JSON String representation :
+     * {"responses":[{...}, ...]}
+     *
+     * @param json
+     * @return
+     */
+    public static List<CmdsrvResponse> fromJsonBatch(String json) {
+        return CmdsrvJsonCodec.batchFromJson(json);
+    }
+
+    /**
+     * An output, held as received (bytes or String) only. The other form is converted on each call and not kept : a
+     * converted copy would double the memory held by the response for the lifetime of the response.
+     */
+    private static final class Output {
+
+        private final Charset charset;
+        private final byte[] bytes;
+        private final String text;
+
+        Output(byte[] bytes, Charset charset) {
+            this.bytes = bytes;
+            this.text = null;
+            this.charset = charset;
+        }
+
+        Output(String text, Charset charset) {
+            this.bytes = null;
+            this.text = text;
+            this.charset = charset;
+        }
+
+        String text() {
+            return null == text ? new String(bytes, charset) : text;
+        }
+
+        byte[] bytes() {
+            return null == bytes ? text.getBytes(charset) : bytes;
+        }
+
+        String strictText() {
+            if (null != text) {
+                return text;
+            }
+            try {
+                CharBuffer decoded = charset.newDecoder()
+                        .onMalformedInput(CodingErrorAction.REPORT)
+                        .onUnmappableCharacter(CodingErrorAction.REPORT)
+                        .decode(ByteBuffer.wrap(bytes));
+                return decoded.toString();
+            } catch (CharacterCodingException e) {
+                return null;
+            }
+        }
+
+        long length() {
+            if (null != bytes) {
+                return bytes.length;
+            }
+            return Charsets.UTF_8.equals(charset) ? utf8Length(text) : text.getBytes(charset).length;
+        }
+
+        /**
+         * The size of the UTF-8 encoding of the text, as String.getBytes() would produce it (an unpaired surrogate is
+         * replaced by '?')
+         */
+        private static long utf8Length(String text) {
+            long length = 0;
+            for (int i = 0; i < text.length(); i++) {
+                char c = text.charAt(i);
+                if (c < 0x80) {
+                    length += 1;
+                } else if (c < 0x800) {
+                    length += 2;
+                } else if (Character.isHighSurrogate(c) && i + 1 < text.length()
+                        && Character.isLowSurrogate(text.charAt(i + 1))) {
+                    length += 4;
+                    i++;
+                } else if (Character.isSurrogate(c)) {
+                    length += 1;
+                } else {
+                    length += 3;
+                }
+            }
+            return length;
+        }
     }
 
 }
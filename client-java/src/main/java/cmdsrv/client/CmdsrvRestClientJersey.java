@@ -16,12 +16,23 @@
 
 package cmdsrv.client;
 
+import com.google.common.io.ByteStreams;
+import com.sun.jersey.api.client.ClientHandlerException;
 import com.sun.jersey.api.client.ClientResponse;
 import com.sun.jersey.api.client.WebResource;
+import com.sun.jersey.api.client.config.ClientConfig;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.ws.rs.core.MediaType;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.util.Collections;
+import java.util.List;
 
 /**
  * <p>
@@ -47,21 +58,71 @@ import javax.ws.rs.core.MediaType;
  *     </pre>
  * </p>
  *
+ * <p>
+ *     Requests and responses are marshalled as JSON, unless another ICmdsrvCodec is given (see CmdsrvBinaryCodec).
+ * </p>
+ *
+ * <p>
+ *     Response bodies are compressed by the server when big enough (see the [compression] section of cmdsrv.cfg), and
+ *     decompressed as they are read.
+ * </p>
+ *
+ * <p>
+ *     The client lets the server spool the outputs too big to be returned inline (see the [spool] section of
+ *     cmdsrv.cfg, JSON only) : they are fetched and deleted from the server before execute returns, unless
+ *     {@link #setFetchSpooled(boolean)} says otherwise, in which case the caller gets them with
+ *     {@link #copySpooled(CmdsrvResponse, String, long, OutputStream)}.
+ * </p>
+ *
+ * <p>
+ *     A command running past the timeout of its request is killed by the server, and execute throws a
+ *     {@link CmdsrvTimeoutException}. The caller giving up on its side is told to the server by closing the
+ *     connection, which kills the command : that is what happens when the read timeout of the Jersey client (see
+ *     CmdsrvPooledTransport) fires.
+ * </p>
+ *
  * @author Christophe Uberri <cuberri@gmail.com>
  */
 public class CmdsrvRestClientJersey implements ICmdsrvClient {
 
     private static Logger LOGGER = LoggerFactory.getLogger(CmdsrvRestClientJersey.class);
 
+    /**
+     * Request header telling the server the client fetches spooled outputs
+     */
+    public static final String SPOOL_HEADER = "X-Cmdsrv-Spool";
+
+    /**
+     * Content type of the requests carrying a standard input, see {@link #execute(CmdsrvRequest, InputStream)}
+     */
+    public static final String STDIN_CONTENT_TYPE = "application/x-cmdsrv-stdin";
+
+    private static final int SPOOL_FETCH_ATTEMPTS = 3;
+
+    private static final int STDIN_CHUNK_SIZE = 65536;
+
     private WebResource cmdsrvResource;
+    private ICmdsrvCodec codec;
+    private boolean fetchSpooled = true;
 
     /**
-     * Need a WebResource pointing to the cmdsrv's server location
+     * Need a WebResource pointing to the cmdsrv's server location. Requests and responses are marshalled as JSON.
      *
      * @param cmdsrvResource
      */
     public CmdsrvRestClientJersey(WebResource cmdsrvResource) {
+        this(cmdsrvResource, CmdsrvJsonCodec.INSTANCE);
+    }
+
+    /**
+     * Need a WebResource pointing to the cmdsrv's server location, and the codec marshalling requests and responses
+     *
+     * @param cmdsrvResource
+     * @param codec
+     */
+    public CmdsrvRestClientJersey(WebResource cmdsrvResource, ICmdsrvCodec codec) {
         this.cmdsrvResource = cmdsrvResource;
+        this.codec = codec;
     }
 
     /**
@@ -71,27 +132,309 @@ public class CmdsrvRestClientJersey implements ICmdsrvClient {
      */
     @Override
     public CmdsrvResponse execute(CmdsrvRequest req) {
-        LOGGER.info("Posting request [{}] to [{}]", req, cmdsrvResource.getURI());
-        String toSend = CmdsrvRequest.toJson(req);
-
-        ClientResponse res = cmdsrvResource
-                .type(MediaType.APPLICATION_JSON_TYPE)
-                .header("Hint-Content-Length", toSend.length())
-                .accept("application/json")
-                .post(ClientResponse.class, toSend.getBytes());
-        LOGGER.info("Request [{}] sent. Received status : [{}]", req, res.getStatus());
-
-        // make sure to buffer the entity in order to release the connection
-        res.bufferEntity();
-        String body = res.hasEntity() ? res.getEntity(String.class) : null;
-        if (ClientResponse.Status.OK != res.getClientResponseStatus()) {
-            String message = "Cmdsrv response error sending request [" + req + "]. Received status : [" + res.getStatus() + "]. Received body [" + body + "]";
+        LOGGER.debug("Posting request [{}] to [{}]", req, cmdsrvResource.getURI());
+        ByteArrayOutputStream toSend = new ByteArrayOutputStream();
+        try {
+            codec.writeRequest(req, toSend);
+        } catch (IOException e) {
+            throw new CmdsrvClientException("Could not marshall request [" + req + "] : " + e.getMessage(), e);
+        }
+
+        CmdsrvResponse response;
+        ClientResponse res = post(cmdsrvResource, toSend.toByteArray(), codec.getContentType(), req);
+        try {
+            response = codec.readResponse(entity(res));
+        } catch (IOException e) {
+            String message = "Could not read response of request [" + req + "] : " + e.getMessage();
+            LOGGER.error(message);
+            throw new CmdsrvClientException(message, e);
+        } finally {
+            res.close();
+        }
+        return fetchSpooled(response);
+    }
+
+    /**
+     * Post the requests to the batch endpoint of the server, located at <code>batch</code> under the cmdsrv's
+     * server location
+     *
+     * @see ICmdsrvClient
+     * @param reqs
+     * @return
+     */
+    @Override
+    public List<CmdsrvResponse> executeBatch(List<CmdsrvRequest> reqs) {
+        if (reqs.isEmpty()) {
+            return Collections.emptyList();
+        }
+
+        WebResource batchResource = cmdsrvResource.path("batch");
+        String what = "batch of " + reqs.size() + " requests";
+        LOGGER.debug("Posting {} to [{}]", what, batchResource.getURI());
+        ByteArrayOutputStream toSend = new ByteArrayOutputStream();
+        try {
+            codec.writeBatch(reqs, toSend);
+        } catch (IOException e) {
+            throw new CmdsrvClientException("Could not marshall " + what + " : " + e.getMessage(), e);
+        }
+
+        List<CmdsrvResponse> responses;
+        ClientResponse res = post(batchResource, toSend.toByteArray(), codec.getContentType(), what);
+        try {
+            responses = codec.readBatch(entity(res));
+        } catch (IOException e) {
+            String message = "Could not read response of request [" + what + "] : " + e.getMessage();
+            LOGGER.error(message);
+            throw new CmdsrvClientException(message, e);
+        } finally {
+            res.close();
+        }
+
+        if (null == responses || responses.size() != reqs.size()) {
+            String message = "Cmdsrv batch response holds [" + (null == responses ? 0 : responses.size()) + "] responses for [" + reqs.size() + "] requests";
             LOGGER.error(message);
             throw new CmdsrvClientException(message);
         }
-        LOGGER.debug("Cmdsrv body recevied : {}", body);
+        for (CmdsrvResponse response : responses) {
+            fetchSpooled(response);
+        }
+        return responses;
+    }
+
+    /**
+     * <p>
+     *     Execute the command through the streaming endpoint of the server, located at <code>stream</code> under the
+     *     cmdsrv's server location. The output is handed to the handler chunk by chunk, as soon as the process
+     *     produces it, and is never held in memory as a whole.
+     * </p>
+     *
+     * @param req
+     * @param handler
+     * @return The return code of the process execution on the server
+     */
+    public int executeStream(CmdsrvRequest req, ICmdsrvOutputHandler handler) {
+        WebResource streamResource = cmdsrvResource.path("stream");
+        LOGGER.debug("Posting streamed request [{}] to [{}]", req, streamResource.getURI());
+        ByteArrayOutputStream toSend = new ByteArrayOutputStream();
+        try {
+            codec.writeRequest(req, toSend);
+        } catch (IOException e) {
+            throw new CmdsrvClientException("Could not marshall request [" + req + "] : " + e.getMessage(), e);
+        }
+
+        ClientResponse res = post(streamResource, toSend.toByteArray(), CmdsrvStreamReader.CONTENT_TYPE, req);
+        try {
+            return CmdsrvStreamReader.read(res.getEntityInputStream(), handler);
+        } catch (IOException e) {
+            String message = "Could not read streamed output of request [" + req + "] : " + e.getMessage();
+            LOGGER.error(message);
+            throw new CmdsrvClientException(message, e);
+        } finally {
+            // release the connection, even if the stream has not been fully read
+            res.close();
+        }
+    }
+
+    /**
+     * <p>
+     *     Execute the command through the stdin endpoint of the server, located at <code>stdin</code> under the
+     *     cmdsrv's server location, feeding it with the given standard input. The input is sent with a chunked
+     *     transfer encoding as it is read, and piped into the process by the server as it arrives : it is never held
+     *     in memory as a whole, on either side. Filters (gzip, sort, sha256sum, ...) run in one pass, without any
+     *     temporary file.
+     * </p>
+     *
+     * <p>
+     *     The request line is always marshalled as JSON ; the response is read with the codec of the client.
+     * </p>
+     *
+     * @param req
+     * @param stdin Read up to its end, then closed
+     * @return
+     */
+    public CmdsrvResponse execute(CmdsrvRequest req, InputStream stdin) {
+        WebResource stdinResource = cmdsrvResource.path("stdin");
+        stdinResource.setProperty(ClientConfig.PROPERTY_CHUNKED_ENCODING_SIZE, STDIN_CHUNK_SIZE);
+        LOGGER.debug("Posting request [{}] with its input to [{}]", req, stdinResource.getURI());
+        ByteArrayOutputStream head = new ByteArrayOutputStream();
+        try {
+            CmdsrvJsonCodec.INSTANCE.writeRequest(req, head);
+            head.write('\n');
+        } catch (IOException e) {
+            throw new CmdsrvClientException("Could not marshall request [" + req + "] : " + e.getMessage(), e);
+        }
+
+        CmdsrvResponse response;
+        InputStream toSend = new SequenceInputStream(new ByteArrayInputStream(head.toByteArray()), stdin);
+        ClientResponse res = post(stdinResource.type(STDIN_CONTENT_TYPE), toSend, codec.getContentType(), req);
+        try {
+            response = codec.readResponse(entity(res));
+        } catch (IOException e) {
+            String message = "Could not unmarshall response of request [" + req + "] : " + e.getMessage();
+            LOGGER.error(message);
+            throw new CmdsrvClientException(message, e);
+        } finally {
+            res.close();
+        }
+        return fetchSpooled(response);
+    }
+
+    /**
+     * Whether execute and executeBatch fetch the spooled outputs (the default). When not, the responses hold null
+     * instead of the spooled outputs, which are left on the server until fetched with
+     * {@link #copySpooled(CmdsrvResponse, String, long, OutputStream)} and deleted with
+     * {@link #deleteSpooled(CmdsrvResponse)} (or until they expire).
+     *
+     * @param fetchSpooled
+     */
+    public void setFetchSpooled(boolean fetchSpooled) {
+        this.fetchSpooled = fetchSpooled;
+    }
+
+    /**
+     * Copy a spooled output, from the given offset, to the given stream. The output is streamed : it is never held in
+     * memory as a whole. When the server ignores the Range header and answers the whole output, the first offset bytes
+     * are skipped.
+     *
+     * @param res A response whose output has been spooled
+     * @param stream {@link CmdsrvResponse#STDOUT} or {@link CmdsrvResponse#STDERR}
+     * @param offset The number of bytes to skip, e.g. those already copied by a previous, interrupted, call
+     * @param out
+     * @return The number of bytes copied
+     * @throws IOException If the copy is interrupted, or if out cannot be written
+     */
+    public long copySpooled(CmdsrvResponse res, String stream, long offset, OutputStream out) throws IOException {
+        WebResource spoolResource = cmdsrvResource.path(res.getSpoolId()).path(stream);
+        LOGGER.debug("Fetching spooled {} from [{}], offset {}", new Object[]{stream, spoolResource.getURI(), offset});
+        WebResource.Builder builder = spoolResource.accept(MediaType.APPLICATION_OCTET_STREAM_TYPE);
+        if (offset > 0) {
+            builder.header("Range", "bytes=" + offset + "-");
+        }
+        ClientResponse spooled = builder.get(ClientResponse.class);
+        try {
+            if (ClientResponse.Status.OK != spooled.getClientResponseStatus()
+                    && ClientResponse.Status.PARTIAL_CONTENT != spooled.getClientResponseStatus()) {
+                String message = "Cmdsrv response error fetching spooled " + stream + " of [" + res.getCmdJoinedStr() + "]. Received status : [" + spooled.getStatus() + "]";
+                LOGGER.error(message);
+                throw new CmdsrvClientException(message, spooled.getStatus());
+            }
+            InputStream in = spooled.getEntityInputStream();
+            if (offset > 0 && ClientResponse.Status.OK == spooled.getClientResponseStatus()) {
+                LOGGER.debug("Range of spooled {} ignored, skipping {} bytes", stream, offset);
+                ByteStreams.skipFully(in, offset);
+            }
+            return ByteStreams.copy(in, out);
+        } finally {
+            spooled.close();
+        }
+    }
 
-        return CmdsrvResponse.fromJson(body);
+    /**
+     * Delete the spooled outputs of the response from the server
+     *
+     * @param res
+     */
+    public void deleteSpooled(CmdsrvResponse res) {
+        ClientResponse deleted = cmdsrvResource.path(res.getSpoolId()).delete(ClientResponse.class);
+        deleted.close();
+        LOGGER.debug("Spooled outputs [{}] deleted. Received status : [{}]", res.getSpoolId(), deleted.getStatus());
+    }
+
+    /**
+     * Replace the spooled outputs of the response by their content, resuming an interrupted download where it
+     * stopped, then delete them from the server
+     *
+     * @param res
+     * @return
+     */
+    private CmdsrvResponse fetchSpooled(CmdsrvResponse res) {
+        if (!fetchSpooled || null == res.getSpoolId()) {
+            return res;
+        }
+        CmdsrvResponse spool = new CmdsrvResponse(res.getRetval(), null, null, res.getCmd());
+        spool.setSpool(res.getSpoolId(), res.isStdoutSpooled(), res.isStderrSpooled());
+        for (String stream : new String[]{CmdsrvResponse.STDOUT, CmdsrvResponse.STDERR}) {
+            if (CmdsrvResponse.STDOUT.equals(stream) ? res.isStdoutSpooled() : res.isStderrSpooled()) {
+                res.setSpooledOutput(stream, fetchSpooled(spool, stream));
+            }
+        }
+        deleteSpooled(spool);
+        return res;
+    }
+
+    private byte[] fetchSpooled(CmdsrvResponse res, String stream) {
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        for (int attempt = 1; ; attempt++) {
+            try {
+                copySpooled(res, stream, data.size(), data);
+                return data.toByteArray();
+            } catch (IOException | ClientHandlerException e) {
+                if (attempt == SPOOL_FETCH_ATTEMPTS) {
+                    String message = "Could not fetch spooled " + stream + " of [" + res.getCmdJoinedStr() + "] : " + e.getMessage();
+                    LOGGER.error(message);
+                    throw new CmdsrvClientException(message, e);
+                }
+                LOGGER.warn("Fetching spooled {} of [{}] interrupted after {} bytes, resuming : {}",
+                        new Object[]{stream, res.getCmdJoinedStr(), data.size(), e.getMessage()});
+            }
+        }
+    }
+
+    /**
+     * Post the marshalled payload to the given resource and return the response, whose entity is left unread : the
+     * caller must close it. An error status is turned into a CmdsrvClientException.
+     *
+     * @param resource
+     * @param toSend
+     * @param accept
+     * @param what Description of what is sent, for logging purposes
+     * @return
+     */
+    private ClientResponse post(WebResource resource, byte[] toSend, String accept, Object what) {
+        return post(resource.type(codec.getContentType()).header("Hint-Content-Length", toSend.length), toSend, accept, what);
+    }
+
+    /**
+     * Post the entity (a byte[] or an InputStream) with the given request builder, see
+     * {@link #post(WebResource, byte[], String, Object)}
+     *
+     * @param request
+     * @param toSend
+     * @param accept
+     * @param what Description of what is sent, for logging purposes
+     * @return
+     */
+    private ClientResponse post(WebResource.Builder request, Object toSend, String accept, Object what) {
+        ClientResponse res = request
+                .header(SPOOL_HEADER, "true")
+                .header("Accept-Encoding", CmdsrvContentEncoding.ACCEPT_ENCODING)
+                .accept(accept)
+                .post(ClientResponse.class, toSend);
+        LOGGER.debug("Request [{}] sent. Received status : [{}]", what, res.getStatus());
+
+        if (ClientResponse.Status.OK != res.getClientResponseStatus()) {
+            String body;
+            try {
+                body = res.hasEntity() ? res.getEntity(String.class) : null;
+            } finally {
+                res.close();
+            }
+            String message = "Cmdsrv response error sending request [" + what + "]. Received status : [" + res.getStatus() + "]. Received body [" + body + "]";
+            LOGGER.error(message);
+            throw CmdsrvClientException.forStatus(message, res.getStatus(), res.getHeaders().getFirst("Retry-After"));
+        }
+        return res;
+    }
+
+    /**
+     * The body of the response, decompressed as it is read
+     *
+     * @param res
+     * @return
+     * @throws IOException
+     */
+    private static InputStream entity(ClientResponse res) throws IOException {
+        return CmdsrvContentEncoding.decode(res.getHeaders().getFirst("Content-Encoding"), res.getEntityInputStream());
     }
 
 }
@@ -0,0 +1,392 @@
+/*
+* Copyright 2013 Christophe Uberri <cuberri@gmail.com>
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package cmdsrv.client;
+
+import com.google.common.base.Charsets;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.ning.http.client.AsyncCompletionHandler;
+import com.ning.http.client.AsyncHttpClient;
+import com.ning.http.client.Response;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <p>
+ *     Non blocking implementation of ICmdsrvClient backed by the Ning AsyncHttpClient.
+ * </p>
+ *
+ * <p>
+ *     Requests are written and responses are read by the AsyncHttpClient I/O threads, so a handful of caller threads
+ *     can keep a lot of commands in flight. The number of requests actually sent to the server is capped by
+ *     <code>maxInFlight</code> : once the cap is reached, new requests are queued (without blocking the caller) and
+ *     sent as soon as a previous one completes. At most <code>maxPending</code> requests are queued : past it, a new
+ *     request fails at once with a CmdsrvRejectedException (with a 0 status) rather than waiting behind a backlog the
+ *     server cannot catch up with.
+ * </p>
+ *
+ * <p>
+ *     Cancelling a future returned by {@link #executeAsync(CmdsrvRequest)} aborts the request : the connection is
+ *     closed, and the server kills the command. A request with a timeout is aborted (and fails with a
+ *     CmdsrvTimeoutException) {@link #DEADLINE_GRACE_MILLIS} after it, should the server not answer in time.
+ * </p>
+ *
+ * <p>
+ *     As for CmdsrvRestClientJersey, the AsyncHttpClient is provided by the developer, who remains responsible for
+ *     its configuration and for closing it.
+ * </p>
+ *
+ * <p>
+ *     Example :
+ *
+ *     <pre>
+ *     {@code
+ *      AsyncHttpClient client = new AsyncHttpClient();
+ *      CmdsrvRestClientNing restClient = new CmdsrvRestClientNing(client, "http://localhost:8055/cmd", 256);
+ *      ListenableFuture<CmdsrvResponse> res = restClient.executeAsync(new CmdsrvRequest("ls", "-a", "-l"));
+ *     }
+ *     </pre>
+ * </p>
+ *
+ * @author Christophe Uberri <cuberri@gmail.com>
+ */
+public class CmdsrvRestClientNing implements ICmdsrvAsyncClient {
+
+    private static Logger LOGGER = LoggerFactory.getLogger(CmdsrvRestClientNing.class);
+
+    /**
+     * Time left to the server to kill a command past its timeout and answer, before the request is given up
+     */
+    public static final int DEADLINE_GRACE_MILLIS = 2000;
+
+    /**
+     * Maximum number of queued requests, when not given to the constructor
+     */
+    public static final int DEFAULT_MAX_PENDING = 1024;
+
+    private static final ScheduledExecutorService DEADLINES = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder().setDaemon(true).setNameFormat("cmdsrv-ning-deadline-%d").build());
+
+    private AsyncHttpClient httpClient;
+    private String cmdsrvUrl;
+    private ICmdsrvCodec codec;
+    private Semaphore inFlight;
+    private int maxPending;
+    private Queue<PendingCall<?>> pending = new ConcurrentLinkedQueue<>();
+    private AtomicInteger pendingCount = new AtomicInteger();
+
+    /**
+     * Need an AsyncHttpClient, the cmdsrv's server location and the maximum number of requests sent to the server
+     * at the same time. At most {@link #DEFAULT_MAX_PENDING} requests are queued.
+     *
+     * @param httpClient
+     * @param cmdsrvUrl
+     * @param maxInFlight
+     */
+    public CmdsrvRestClientNing(AsyncHttpClient httpClient, String cmdsrvUrl, int maxInFlight) {
+        this(httpClient, cmdsrvUrl, maxInFlight, DEFAULT_MAX_PENDING, CmdsrvJsonCodec.INSTANCE);
+    }
+
+    /**
+     * Same as {@link #CmdsrvRestClientNing(AsyncHttpClient, String, int)}, with the codec marshalling requests and
+     * responses
+     *
+     * @param httpClient
+     * @param cmdsrvUrl
+     * @param maxInFlight
+     * @param codec
+     */
+    public CmdsrvRestClientNing(AsyncHttpClient httpClient, String cmdsrvUrl, int maxInFlight, ICmdsrvCodec codec) {
+        this(httpClient, cmdsrvUrl, maxInFlight, DEFAULT_MAX_PENDING, codec);
+    }
+
+    /**
+     * Same as {@link #CmdsrvRestClientNing(AsyncHttpClient, String, int, ICmdsrvCodec)}, with the maximum number of
+     * requests waiting for an in-flight slot
+     *
+     * @param httpClient
+     * @param cmdsrvUrl
+     * @param maxInFlight
+     * @param maxPending 0 to reject the requests as soon as <code>maxInFlight</code> is reached
+     * @param codec
+     */
+    public CmdsrvRestClientNing(AsyncHttpClient httpClient, String cmdsrvUrl, int maxInFlight, int maxPending, ICmdsrvCodec codec) {
+        if (maxInFlight < 1) {
+            throw new IllegalArgumentException("maxInFlight must be strictly positive : " + maxInFlight);
+        }
+        if (maxPending < 0) {
+            throw new IllegalArgumentException("maxPending must be positive : " + maxPending);
+        }
+        this.httpClient = httpClient;
+        this.cmdsrvUrl = cmdsrvUrl;
+        this.inFlight = new Semaphore(maxInFlight);
+        this.maxPending = maxPending;
+        this.codec = codec;
+    }
+
+    /**
+     * Blocking flavour of {@link #executeAsync(CmdsrvRequest)}
+     *
+     * @see ICmdsrvClient
+     * @param req
+     * @return
+     */
+    @Override
+    public CmdsrvResponse execute(CmdsrvRequest req) {
+        return await(executeAsync(req), req);
+    }
+
+    /**
+     * @see ICmdsrvAsyncClient
+     * @param req
+     * @return
+     */
+    @Override
+    public ListenableFuture<CmdsrvResponse> executeAsync(CmdsrvRequest req) {
+        ByteArrayOutputStream toSend = new ByteArrayOutputStream();
+        try {
+            codec.writeRequest(req, toSend);
+        } catch (IOException e) {
+            return Futures.immediateFailedFuture(new CmdsrvClientException("Could not marshall request [" + req + "] : " + e.getMessage(), e));
+        }
+        return submit(cmdsrvUrl, toSend.toByteArray(), req, req.getTimeoutMillis(), new BodyReader<CmdsrvResponse>() {
+            @Override
+            public CmdsrvResponse read(InputStream body) throws IOException {
+                return codec.readResponse(body);
+            }
+        });
+    }
+
+    /**
+     * Post the requests to the batch endpoint of the server, located at <code>/batch</code> under the cmdsrv's server
+     * location. The whole batch takes a single in-flight slot.
+     *
+     * @see ICmdsrvClient
+     * @param reqs
+     * @return
+     */
+    @Override
+    public List<CmdsrvResponse> executeBatch(List<CmdsrvRequest> reqs) {
+        if (reqs.isEmpty()) {
+            return Collections.emptyList();
+        }
+
+        final int expected = reqs.size();
+        String what = "batch of " + expected + " requests";
+        ByteArrayOutputStream toSend = new ByteArrayOutputStream();
+        try {
+            codec.writeBatch(reqs, toSend);
+        } catch (IOException e) {
+            throw new CmdsrvClientException("Could not marshall " + what + " : " + e.getMessage(), e);
+        }
+        ListenableFuture<List<CmdsrvResponse>> future = submit(cmdsrvUrl + "/batch", toSend.toByteArray(), what, 0, new BodyReader<List<CmdsrvResponse>>() {
+            @Override
+            public List<CmdsrvResponse> read(InputStream body) throws IOException {
+                List<CmdsrvResponse> responses = codec.readBatch(body);
+                if (null == responses || responses.size() != expected) {
+                    throw new CmdsrvClientException("Cmdsrv batch response holds [" + (null == responses ? 0 : responses.size()) + "] responses for [" + expected + "] requests");
+                }
+                return responses;
+            }
+        });
+        return await(future, what);
+    }
+
+    /**
+     * Number of requests waiting for an in-flight slot
+     *
+     * @return
+     */
+    public int getPendingCount() {
+        return pendingCount.get();
+    }
+
+    private <T> ListenableFuture<T> submit(String url, byte[] toSend, Object what, long timeoutMillis, BodyReader<T> reader) {
+        SettableFuture<T> future = SettableFuture.create();
+        PendingCall<T> p = new PendingCall<>(url, toSend, what, timeoutMillis, reader, future);
+        if (pending.isEmpty() && inFlight.tryAcquire()) {
+            send(p);
+            return future;
+        }
+        if (pendingCount.incrementAndGet() > maxPending) {
+            pendingCount.decrementAndGet();
+            String message = "Request [" + what + "] rejected : " + maxPending + " requests already waiting to be sent";
+            LOGGER.warn(message);
+            future.setException(new CmdsrvRejectedException(message, 0, -1));
+            return future;
+        }
+        pending.add(p);
+        drain();
+        return future;
+    }
+
+    private static <T> T await(ListenableFuture<T> future, Object what) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CmdsrvClientException("Interrupted while waiting for request [" + what + "]", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof CmdsrvClientException) {
+                throw (CmdsrvClientException) e.getCause();
+            }
+            throw new CmdsrvClientException("Error sending request [" + what + "] : " + e.getCause(), e.getCause());
+        }
+    }
+
+    /**
+     * Send as many pending requests as the in-flight cap allows
+     */
+    private void drain() {
+        while (!pending.isEmpty() && inFlight.tryAcquire()) {
+            PendingCall<?> p = pending.poll();
+            if (null != p) {
+                pendingCount.decrementAndGet();
+            }
+            if (null == p || p.future.isCancelled()) {
+                // another thread emptied the queue in the meantime, or the caller gave up : give the slot back and
+                // check again
+                inFlight.release();
+                continue;
+            }
+            send(p);
+        }
+    }
+
+    private <T> void send(final PendingCall<T> p) {
+        LOGGER.debug("Posting request [{}] to [{}]", p.what, p.url);
+        try {
+            AsyncHttpClient.BoundRequestBuilder builder = httpClient.preparePost(p.url)
+                    .setHeader("Content-Type", codec.getContentType())
+                    .setHeader("Hint-Content-Length", String.valueOf(p.body.length))
+                    .setHeader("Accept", codec.getContentType())
+                    .setBody(p.body);
+            final Future<Void> sent = builder.execute(new AsyncCompletionHandler<Void>() {
+                @Override
+                public Void onCompleted(Response res) {
+                    try {
+                        p.future.set(p.reader.read(checkStatus(p.what, res)));
+                    } catch (CmdsrvClientException e) {
+                        p.future.setException(e);
+                    } catch (Exception e) {
+                        p.future.setException(new CmdsrvClientException("Could not read response of request [" + p.what + "] : " + e, e));
+                    } finally {
+                        complete();
+                    }
+                    return null;
+                }
+
+                @Override
+                public void onThrowable(Throwable t) {
+                    String message = "Error sending request [" + p.what + "] to [" + p.url + "] : " + t;
+                    if (p.future.isDone()) {
+                        LOGGER.debug("Request [{}] cancelled or given up", p.what);
+                    } else {
+                        LOGGER.error(message);
+                        p.future.setException(new CmdsrvClientException(message, t));
+                    }
+                    complete();
+                }
+            });
+            final ScheduledFuture<?> deadline = p.timeoutMillis > 0 ? DEADLINES.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    String message = "Request [" + p.what + "] not answered " + DEADLINE_GRACE_MILLIS + " ms after its timeout";
+                    if (p.future.setException(new CmdsrvTimeoutException(message, 0))) {
+                        LOGGER.error(message);
+                        sent.cancel(true);
+                    }
+                }
+            }, p.timeoutMillis + DEADLINE_GRACE_MILLIS, TimeUnit.MILLISECONDS) : null;
+            p.future.addListener(new Runnable() {
+                @Override
+                public void run() {
+                    if (null != deadline) {
+                        deadline.cancel(false);
+                    }
+                    if (p.future.isCancelled()) {
+                        // closes the connection : the server kills the command
+                        sent.cancel(true);
+                    }
+                }
+            }, MoreExecutors.sameThreadExecutor());
+        } catch (IOException | RuntimeException e) {
+            p.future.setException(new CmdsrvClientException("Could not send request [" + p.what + "] : " + e, e));
+            complete();
+        }
+    }
+
+    private void complete() {
+        inFlight.release();
+        drain();
+    }
+
+    private static InputStream checkStatus(Object what, Response res) throws IOException {
+        LOGGER.debug("Request [{}] sent. Received status : [{}]", what, res.getStatusCode());
+        if (200 != res.getStatusCode()) {
+            String body = res.hasResponseBody() ? res.getResponseBody(Charsets.UTF_8.name()) : null;
+            String message = "Cmdsrv response error sending request [" + what + "]. Received status : [" + res.getStatusCode() + "]. Received body [" + body + "]";
+            LOGGER.error(message);
+            throw CmdsrvClientException.forStatus(message, res.getStatusCode(), res.getHeader("Retry-After"));
+        }
+        return res.getResponseBodyAsStream();
+    }
+
+    /**
+     * Unmarshall the body of a successful response
+     */
+    private interface BodyReader<T> {
+        T read(InputStream body) throws IOException;
+    }
+
+    private static class PendingCall<T> {
+        private final String url;
+        private final byte[] body;
+        private final Object what;
+        private final long timeoutMillis;
+        private final BodyReader<T> reader;
+        private final SettableFuture<T> future;
+
+        private PendingCall(String url, byte[] body, Object what, long timeoutMillis, BodyReader<T> reader, SettableFuture<T> future) {
+            this.url = url;
+            this.body = body;
+            this.what = what;
+            this.timeoutMillis = timeoutMillis;
+            this.reader = reader;
+            this.future = future;
+        }
+    }
+}
@@ -0,0 +1,292 @@
+/*
+* Copyright 2013 Christophe Uberri <cuberri@gmail.com>
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package cmdsrv.client;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>
+ *     ICmdsrvClient decorator sending the failed requests again, as decided by an ICmdsrvRetryPolicy (see
+ *     CmdsrvBackoffRetryPolicy), and hedging the slow idempotent ones : when an idempotent request (see
+ *     {@link CmdsrvRequest#idempotent()}) takes longer than the <code>hedgePercentile</code> of the latencies seen so
+ *     far, a duplicate is sent ; the first response wins and the future of the other attempt is cancelled. A single
+ *     slow execution then costs about the percentile latency instead of its own.
+ * </p>
+ *
+ * <p>
+ *     Hedging needs a decorated client implementing ICmdsrvAsyncClient, whose cancelled futures stop the command :
+ *     CmdsrvRestClientNing closes the connection, on which the server kills the command, and CmdsrvLocalClient
+ *     destroys the process. The requests sent through other clients are only retried.
+ * </p>
+ *
+ * <p>
+ *     Retries and hedges are paid from a budget, so that they cannot multiply the load of a struggling server : each
+ *     request adds <code>budgetRatio</code> to it, each retry or hedge takes one from it, and it holds at most
+ *     {@link #BUDGET_BURST}. With a ratio of 0.1, retries and hedges stay below 10% of the requests. When the budget is
+ *     empty, the error of the request is thrown as is.
+ * </p>
+ *
+ * <p>
+ *     Batches are retried as a whole, when the policy accepts to retry their first request and all of them are
+ *     idempotent ; they are not hedged.
+ * </p>
+ *
+ * <p>
+ *     Example :
+ *
+ *     <pre>
+ *     {@code
+ *      ICmdsrvClient client = new CmdsrvRetryingClient(restClient, new CmdsrvBackoffRetryPolicy(3, 50, 2000), 0.1, 95);
+ *      client.execute(new CmdsrvRequest("df", "-k").idempotent());
+ *     }
+ *     </pre>
+ * </p>
+ *
+ * @author Christophe Uberri <cuberri@gmail.com>
+ */
+public class CmdsrvRetryingClient implements ICmdsrvClient {
+
+    private static Logger LOGGER = LoggerFactory.getLogger(CmdsrvRetryingClient.class);
+
+    /**
+     * Max number of retries and hedges available at once
+     */
+    public static final double BUDGET_BURST = 10;
+
+    /**
+     * Number of latencies recorded before the requests are hedged
+     */
+    public static final int HEDGE_MIN_SAMPLES = 100;
+
+    private ICmdsrvClient delegate;
+    private ICmdsrvAsyncClient asyncDelegate;
+    private ICmdsrvRetryPolicy policy;
+    private double budgetRatio;
+    private double hedgePercentile;
+    private CmdsrvLatencyHistogram latency = new CmdsrvLatencyHistogram();
+    private AtomicLong retries = new AtomicLong();
+    private AtomicLong hedges = new AtomicLong();
+
+    // guarded by this
+    private double budget = BUDGET_BURST;
+
+    /**
+     * Up to 3 retries (backoff from 50 ms to 2 s), within 10% of the requests, and hedging after the p95 latency
+     *
+     * @param delegate The client actually executing the requests
+     */
+    public CmdsrvRetryingClient(ICmdsrvClient delegate) {
+        this(delegate, new CmdsrvBackoffRetryPolicy(3, 50, 2000), 0.1, 95);
+    }
+
+    /**
+     * @param delegate The client actually executing the requests
+     * @param policy Decides which failed requests are sent again
+     * @param budgetRatio Share of the requests which may be retried or hedged, e.g. 0.1
+     * @param hedgePercentile Latency percentile after which idempotent requests are hedged, e.g. 95. 0 not to hedge.
+     *                        Ignored if the delegate is not an ICmdsrvAsyncClient.
+     */
+    public CmdsrvRetryingClient(ICmdsrvClient delegate, ICmdsrvRetryPolicy policy, double budgetRatio, double hedgePercentile) {
+        this.delegate = delegate;
+        if (delegate instanceof ICmdsrvAsyncClient) {
+            this.asyncDelegate = (ICmdsrvAsyncClient) delegate;
+        }
+        this.policy = policy;
+        this.budgetRatio = budgetRatio;
+        this.hedgePercentile = hedgePercentile;
+    }
+
+    /**
+     * @see ICmdsrvClient
+     * @param req
+     * @return
+     */
+    @Override
+    public CmdsrvResponse execute(CmdsrvRequest req) {
+        deposit();
+        for (int retry = 0; ; retry++) {
+            try {
+                return req.isIdempotent() && hedgePercentile > 0 && null != asyncDelegate ? hedged(req) : timed(req);
+            } catch (RuntimeException e) {
+                backoff(req, e, retry);
+            }
+        }
+    }
+
+    /**
+     * @see ICmdsrvClient
+     * @param reqs
+     * @return
+     */
+    @Override
+    public List<CmdsrvResponse> executeBatch(List<CmdsrvRequest> reqs) {
+        deposit();
+        for (int retry = 0; ; retry++) {
+            try {
+                return delegate.executeBatch(reqs);
+            } catch (RuntimeException e) {
+                if (reqs.isEmpty()) {
+                    throw e;
+                }
+                for (CmdsrvRequest req : reqs) {
+                    if (!req.isIdempotent() && !(e instanceof CmdsrvRejectedException)) {
+                        throw e;
+                    }
+                }
+                backoff(reqs.get(0), e, retry);
+            }
+        }
+    }
+
+    /**
+     * Number of retries sent
+     *
+     * @return
+     */
+    public long getRetryCount() {
+        return retries.get();
+    }
+
+    /**
+     * Number of hedged requests sent
+     *
+     * @return
+     */
+    public long getHedgeCount() {
+        return hedges.get();
+    }
+
+    /**
+     * Rethrow the error if the request cannot be retried, or wait before retrying it
+     */
+    private void backoff(CmdsrvRequest req, RuntimeException e, int retry) {
+        long delay = policy.getRetryDelayMillis(req, e, retry);
+        if (delay < 0) {
+            throw e;
+        }
+        if (!withdraw()) {
+            LOGGER.warn("Retry budget exhausted : not retrying request [{}]", req);
+            throw e;
+        }
+        retries.incrementAndGet();
+        LOGGER.debug("Retrying request [{}] in {} ms after error : {}", req, delay, e.getMessage());
+        try {
+            Thread.sleep(delay);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new CmdsrvClientException("Interrupted while waiting to retry request [" + req + "]", ie);
+        }
+    }
+
+    private CmdsrvResponse timed(CmdsrvRequest req) {
+        long start = System.nanoTime();
+        CmdsrvResponse res = delegate.execute(req);
+        latency.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        return res;
+    }
+
+    /**
+     * Submit the request and, if it is not done after the hedge delay, a duplicate : the first response wins, the
+     * first error is thrown if both fail
+     */
+    private CmdsrvResponse hedged(CmdsrvRequest req) {
+        BlockingQueue<ListenableFuture<CmdsrvResponse>> done = new LinkedBlockingQueue<>();
+        List<ListenableFuture<CmdsrvResponse>> pending = new ArrayList<>(2);
+        pending.add(submit(req, done));
+        RuntimeException error = null;
+        try {
+            ListenableFuture<CmdsrvResponse> first = null;
+            if (latency.getCount() >= HEDGE_MIN_SAMPLES) {
+                long delayMicros = (long) (latency.getPercentileMillis(hedgePercentile) * 1000);
+                first = done.poll(delayMicros, TimeUnit.MICROSECONDS);
+                if (null == first && withdraw()) {
+                    hedges.incrementAndGet();
+                    LOGGER.debug("Request [{}] slower than {} us : hedging it", req, delayMicros);
+                    pending.add(submit(req, done));
+                }
+            }
+            for (int outstanding = pending.size(); outstanding > 0; outstanding--) {
+                if (null == first) {
+                    first = done.take();
+                }
+                try {
+                    return first.get();
+                } catch (ExecutionException e) {
+                    if (null == error) {
+                        error = e.getCause() instanceof RuntimeException
+                                ? (RuntimeException) e.getCause()
+                                : new CmdsrvClientException("Error executing request [" + req + "] : " + e.getCause(), e.getCause());
+                    }
+                }
+                first = null;
+            }
+            throw error;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CmdsrvClientException("Interrupted while executing request [" + req + "]", e);
+        } finally {
+            // stops the losing attempt : done ones are left as they are
+            for (ListenableFuture<CmdsrvResponse> future : pending) {
+                future.cancel(true);
+            }
+        }
+    }
+
+    /**
+     * Submit an attempt of the request, queued in <code>done</code> once it completes
+     */
+    private ListenableFuture<CmdsrvResponse> submit(CmdsrvRequest req, final BlockingQueue<ListenableFuture<CmdsrvResponse>> done) {
+        final long start = System.nanoTime();
+        final ListenableFuture<CmdsrvResponse> future = asyncDelegate.executeAsync(req);
+        Futures.addCallback(future, new FutureCallback<CmdsrvResponse>() {
+            @Override
+            public void onSuccess(CmdsrvResponse res) {
+                latency.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+                done.add(future);
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                done.add(future);
+            }
+        });
+        return future;
+    }
+
+    private synchronized void deposit() {
+        budget = Math.min(BUDGET_BURST, budget + budgetRatio);
+    }
+
+    private synchronized boolean withdraw() {
+        if (budget < 1) {
+            return false;
+        }
+        budget -= 1;
+        return true;
+    }
+}
@@ -0,0 +1,168 @@
+/*
+* Copyright 2013 Christophe Uberri <cuberri@gmail.com>
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package cmdsrv.client;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>
+ *     ICmdsrvClient choosing, for each request, between a local client (usually CmdsrvLocalClient) and a remote one
+ *     (the cmdsrv server) according to an ICmdsrvRoutingPolicy. A request whose process cannot be launched locally
+ *     (CmdsrvLaunchException) is sent to the remote client.
+ * </p>
+ *
+ * <p>
+ *     Example :
+ *
+ *     <pre>
+ *     {@code
+ *      // run the commands locally until the JVM commits 2GB of heap
+ *      ICmdsrvClient client = new CmdsrvRoutingClient(new CmdsrvLocalClient(), restClient,
+ *              new CmdsrvHeapRoutingPolicy(2L * 1024 * 1024 * 1024));
+ *     }
+ *     </pre>
+ * </p>
+ *
+ * @author Christophe Uberri <cuberri@gmail.com>
+ */
+public class CmdsrvRoutingClient implements ICmdsrvClient {
+
+    private static Logger LOGGER = LoggerFactory.getLogger(CmdsrvRoutingClient.class);
+
+    private ICmdsrvClient local;
+    private ICmdsrvClient remote;
+    private ICmdsrvRoutingPolicy policy;
+
+    private AtomicLong localCount = new AtomicLong();
+    private AtomicLong remoteCount = new AtomicLong();
+    private AtomicLong fallbackCount = new AtomicLong();
+
+    /**
+     * @param local The client running the requests in the current JVM
+     * @param remote The client sending the requests to the cmdsrv server
+     * @param policy
+     */
+    public CmdsrvRoutingClient(ICmdsrvClient local, ICmdsrvClient remote, ICmdsrvRoutingPolicy policy) {
+        this.local = local;
+        this.remote = remote;
+        this.policy = policy;
+    }
+
+    /**
+     * @see ICmdsrvClient
+     * @param req
+     * @return
+     */
+    @Override
+    public CmdsrvResponse execute(CmdsrvRequest req) {
+        if (!policy.isLocal(req)) {
+            remoteCount.incrementAndGet();
+            return remote.execute(req);
+        }
+        try {
+            CmdsrvResponse res = local.execute(req);
+            localCount.incrementAndGet();
+            return res;
+        } catch (CmdsrvLaunchException e) {
+            LOGGER.warn("Falling back to the cmdsrv server for request [{}] : {}", req, e.getMessage());
+            fallbackCount.incrementAndGet();
+            return remote.execute(req);
+        }
+    }
+
+    /**
+     * The requests routed to the cmdsrv server are sent in a single batch, the others are run one by one (with the
+     * same fallback as {@link #execute(CmdsrvRequest)}). As with the server, a command killed on timeout gets a
+     * response which {@link CmdsrvResponse#isTimedOut()}, provided the local client gives it (see
+     * {@link CmdsrvTimeoutException#getResponse()}).
+     *
+     * @see ICmdsrvClient
+     * @param reqs
+     * @return
+     */
+    @Override
+    public List<CmdsrvResponse> executeBatch(List<CmdsrvRequest> reqs) {
+        List<CmdsrvResponse> responses = new ArrayList<>(reqs.size());
+        List<CmdsrvRequest> remoteReqs = new ArrayList<>();
+        for (CmdsrvRequest req : reqs) {
+            CmdsrvResponse res = null;
+            if (policy.isLocal(req)) {
+                try {
+                    res = local.execute(req);
+                    localCount.incrementAndGet();
+                } catch (CmdsrvTimeoutException e) {
+                    if (null == e.getResponse()) {
+                        throw e;
+                    }
+                    res = e.getResponse();
+                    localCount.incrementAndGet();
+                } catch (CmdsrvLaunchException e) {
+                    LOGGER.warn("Falling back to the cmdsrv server for request [{}] : {}", req, e.getMessage());
+                    fallbackCount.incrementAndGet();
+                }
+            }
+            if (null == res) {
+                remoteReqs.add(req);
+            }
+            responses.add(res);
+        }
+        if (remoteReqs.isEmpty()) {
+            return responses;
+        }
+
+        remoteCount.addAndGet(remoteReqs.size());
+        List<CmdsrvResponse> remoteResponses = remote.executeBatch(remoteReqs);
+        for (int i = 0, j = 0; i < responses.size(); i++) {
+            if (null == responses.get(i)) {
+                responses.set(i, remoteResponses.get(j++));
+            }
+        }
+        return responses;
+    }
+
+    /**
+     * Number of requests executed by the local client
+     *
+     * @return
+     */
+    public long getLocalCount() {
+        return localCount.get();
+    }
+
+    /**
+     * Number of requests routed to the remote client by the policy
+     *
+     * @return
+     */
+    public long getRemoteCount() {
+        return remoteCount.get();
+    }
+
+    /**
+     * Number of requests sent to the remote client because they could not be launched locally
+     *
+     * @return
+     */
+    public long getFallbackCount() {
+        return fallbackCount.get();
+    }
+}
@@ -0,0 +1,88 @@
+/*
+* Copyright 2013 Christophe Uberri <cuberri@gmail.com>
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package cmdsrv.client;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * <p>
+ *     Decoder of the body returned by the <code>/cmd/stream</code> endpoint of the server.
+ * </p>
+ *
+ * <p>
+ *     The body is a sequence of frames : 1 byte type, 4 bytes big endian payload length, payload. Types are
+ *     <code>'O'</code> (stdout chunk), <code>'E'</code> (stderr chunk) and <code>'R'</code> (return value as a 4 bytes
+ *     big endian signed int, last frame). Chunks are handed to the ICmdsrvOutputHandler through a single reused
+ *     buffer, so memory stays flat whatever the size of the output.
+ * </p>
+ *
+ * @author Christophe Uberri <cuberri@gmail.com>
+ */
+public final class CmdsrvStreamReader {
+
+    public static final String CONTENT_TYPE = "application/x-cmdsrv-stream";
+
+    public static final byte STDOUT = 'O';
+    public static final byte STDERR = 'E';
+    public static final byte RETVAL = 'R';
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private CmdsrvStreamReader() {
+    }
+
+    /**
+     * Read the frames from the given stream up to the return value frame
+     *
+     * @param in
+     * @param handler
+     * @return The return code of the process execution on the server
+     * @throws IOException
+     */
+    public static int read(InputStream in, ICmdsrvOutputHandler handler) throws IOException {
+        DataInputStream data = new DataInputStream(in);
+        byte[] buf = new byte[BUFFER_SIZE];
+        while (true) {
+            int type = data.read();
+            if (-1 == type) {
+                throw new EOFException("Stream ended before the return value of the command");
+            }
+            int remaining = data.readInt();
+            if (RETVAL == type) {
+                return data.readInt();
+            }
+            if (STDOUT != type && STDERR != type) {
+                throw new IOException("Unknown frame type [" + type + "]");
+            }
+            while (remaining > 0) {
+                int len = data.read(buf, 0, Math.min(remaining, buf.length));
+                if (-1 == len) {
+                    throw new EOFException("Stream ended in the middle of a frame");
+                }
+                if (STDOUT == type) {
+                    handler.onStdout(buf, 0, len);
+                } else {
+                    handler.onStderr(buf, 0, len);
+                }
+                remaining -= len;
+            }
+        }
+    }
+}
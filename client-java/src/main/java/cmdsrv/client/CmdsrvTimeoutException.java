@@ -0,0 +1,53 @@
+/*
+* Copyright 2013 Christophe Uberri <cuberri@gmail.com>
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package cmdsrv.client;
+
+/**
+ * Thrown when the command of a request ran past its timeout (see {@link CmdsrvRequest#timeout(long,
+ * java.util.concurrent.TimeUnit)}) and has been killed : the cmdsrv server answers such requests with a
+ * <code>504 Gateway Timeout</code>
+ *
+ * @author Christophe Uberri <cuberri@gmail.com>
+ */
+public class CmdsrvTimeoutException extends CmdsrvClientException {
+
+    private CmdsrvResponse response;
+
+    public CmdsrvTimeoutException(String message, int statusCode) {
+        super(message, statusCode);
+    }
+
+    /**
+     * @param message
+     * @param statusCode
+     * @param response The response of the killed command
+     */
+    public CmdsrvTimeoutException(String message, int statusCode, CmdsrvResponse response) {
+        super(message, statusCode);
+        this.response = response;
+    }
+
+    /**
+     * The response of the killed command, with what it output until then (see {@link CmdsrvResponse#isTimedOut()}),
+     * null if unknown : the cmdsrv server does not send it
+     *
+     * @return
+     */
+    public CmdsrvResponse getResponse() {
+        return response;
+    }
+
+}
@@ -0,0 +1,405 @@
+/*
+* Copyright 2013 Christophe Uberri <cuberri@gmail.com>
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package cmdsrv.client;
+
+import com.google.common.base.Charsets;
+import com.google.gson.JsonParseException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.ProtocolFamily;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedDeque;
+
+/**
+ * <p>
+ *     ICmdsrvClient talking to a cmdsrv server listening on a unix domain socket (see <code>unixsocket</code> in
+ *     <code>cmdsrv.cfg</code>). Requests skip the loopback TCP stack, and the server does not expose any TCP port.
+ * </p>
+ *
+ * <p>
+ *     The client speaks a minimal HTTP/1.1 over the socket and keeps up to <code>maxIdleConnections</code> connections
+ *     open between requests.
+ * </p>
+ *
+ * <p>
+ *     Unix domain socket channels appeared in Java 16 : the client is built against Java 7 like the rest of the
+ *     library and looks the JDK classes up at runtime. It fails with a CmdsrvClientException on older runtimes.
+ * </p>
+ *
+ * <p>
+ *     Example :
+ *
+ *     <pre>
+ *     {@code
+ *      CmdsrvUnixSocketClient client = new CmdsrvUnixSocketClient("/var/run/cmdsrv.sock", 8);
+ *      client.execute(new CmdsrvRequest("ls", "-a", "-l"));
+ *      ...
+ *      client.close();
+ *     }
+ *     </pre>
+ * </p>
+ *
+ * @author Christophe Uberri <cuberri@gmail.com>
+ */
+public class CmdsrvUnixSocketClient implements ICmdsrvClient, Closeable {
+
+    private static Logger LOGGER = LoggerFactory.getLogger(CmdsrvUnixSocketClient.class);
+
+    private static final String CMD_PATH = "/cmd";
+    private static final String BATCH_PATH = "/cmd/batch";
+
+    private String socketPath;
+    private SocketAddress address;
+    private int maxIdleConnections;
+    private ICmdsrvCodec codec;
+    private Deque<Connection> idle = new ConcurrentLinkedDeque<>();
+
+    /**
+     * @param socketPath Path of the unix domain socket the server listens on
+     * @param maxIdleConnections Maximum number of connections kept open between requests
+     */
+    public CmdsrvUnixSocketClient(String socketPath, int maxIdleConnections) {
+        this(socketPath, maxIdleConnections, CmdsrvJsonCodec.INSTANCE);
+    }
+
+    /**
+     * @param socketPath Path of the unix domain socket the server listens on
+     * @param maxIdleConnections Maximum number of connections kept open between requests
+     * @param codec Marshalling of requests and responses
+     */
+    public CmdsrvUnixSocketClient(String socketPath, int maxIdleConnections, ICmdsrvCodec codec) {
+        this.socketPath = socketPath;
+        this.address = UnixSockets.address(socketPath);
+        this.maxIdleConnections = maxIdleConnections;
+        this.codec = codec;
+    }
+
+    /**
+     * @see ICmdsrvClient
+     * @param req
+     * @return
+     */
+    @Override
+    public CmdsrvResponse execute(CmdsrvRequest req) {
+        LOGGER.debug("Posting request [{}] to [{}]", req, socketPath);
+        ByteArrayOutputStream toSend = new ByteArrayOutputStream();
+        try {
+            codec.writeRequest(req, toSend);
+        } catch (IOException e) {
+            throw new CmdsrvClientException("Could not marshall request [" + req + "] : " + e.getMessage(), e);
+        }
+
+        byte[] body = post(CMD_PATH, toSend.toByteArray(), req, req.isIdempotent());
+        try {
+            return codec.readResponse(new ByteArrayInputStream(body));
+        } catch (IOException | JsonParseException e) {
+            String message = "Could not read response of request [" + req + "] : " + e.getMessage();
+            LOGGER.error(message);
+            throw new CmdsrvClientException(message, e);
+        }
+    }
+
+    /**
+     * @see ICmdsrvClient
+     * @param reqs
+     * @return
+     */
+    @Override
+    public List<CmdsrvResponse> executeBatch(List<CmdsrvRequest> reqs) {
+        if (reqs.isEmpty()) {
+            return Collections.emptyList();
+        }
+
+        String what = "batch of " + reqs.size() + " requests";
+        LOGGER.debug("Posting {} to [{}]", what, socketPath);
+        ByteArrayOutputStream toSend = new ByteArrayOutputStream();
+        try {
+            codec.writeBatch(reqs, toSend);
+        } catch (IOException e) {
+            throw new CmdsrvClientException("Could not marshall " + what + " : " + e.getMessage(), e);
+        }
+
+        boolean idempotent = true;
+        for (CmdsrvRequest req : reqs) {
+            idempotent &= req.isIdempotent();
+        }
+        byte[] body = post(BATCH_PATH, toSend.toByteArray(), what, idempotent);
+        List<CmdsrvResponse> responses;
+        try {
+            responses = codec.readBatch(new ByteArrayInputStream(body));
+        } catch (IOException | JsonParseException e) {
+            String message = "Could not read response of request [" + what + "] : " + e.getMessage();
+            LOGGER.error(message);
+            throw new CmdsrvClientException(message, e);
+        }
+        if (null == responses || responses.size() != reqs.size()) {
+            throw new CmdsrvClientException("Cmdsrv batch response holds [" + (null == responses ? 0 : responses.size()) + "] responses for [" + reqs.size() + "] requests");
+        }
+        return responses;
+    }
+
+    /**
+     * Close the idle connections
+     */
+    @Override
+    public void close() {
+        Connection connection;
+        while (null != (connection = idle.poll())) {
+            connection.close();
+        }
+    }
+
+    /**
+     * @param idempotent true if the request may be sent again when a reused connection is closed before any byte of
+     *                   the response : the server may have run the command before closing it
+     */
+    private byte[] post(String path, byte[] body, Object what, boolean idempotent) {
+        Connection connection = idle.poll();
+        while (null != connection && connection.isStale()) {
+            LOGGER.debug("Idle connection to [{}] closed by the server, dropping it", socketPath);
+            connection.close();
+            connection = idle.poll();
+        }
+        boolean reused = null != connection;
+        try {
+            if (!reused) {
+                connection = new Connection(UnixSockets.connect(address));
+            }
+            HttpResult result;
+            try {
+                result = connection.post(path, codec.getContentType(), body);
+            } catch (EOFException e) {
+                if (!reused || !idempotent) {
+                    throw e;
+                }
+                // the server closed the idle connection in the meantime : try once more on a fresh one
+                LOGGER.debug("Idle connection to [{}] closed by the server, reconnecting", socketPath);
+                connection.close();
+                connection = new Connection(UnixSockets.connect(address));
+                result = connection.post(path, codec.getContentType(), body);
+            }
+
+            if (result.keepAlive && idle.size() < maxIdleConnections) {
+                idle.push(connection);
+            } else {
+                connection.close();
+            }
+            connection = null;
+
+            if (200 != result.status) {
+                String message = "Cmdsrv response error sending request [" + what + "]. Received status : [" + result.status + "]. Received body [" + new String(result.body, Charsets.UTF_8) + "]";
+                LOGGER.error(message);
+                throw CmdsrvClientException.forStatus(message, result.status, result.retryAfter);
+            }
+            return result.body;
+        } catch (IOException e) {
+            String message = "Error sending request [" + what + "] to [" + socketPath + "] : " + e;
+            LOGGER.error(message);
+            throw new CmdsrvClientException(message, e);
+        } finally {
+            if (null != connection) {
+                connection.close();
+            }
+        }
+    }
+
+    private static class HttpResult {
+        private int status;
+        private boolean keepAlive = true;
+        private String retryAfter;
+        private byte[] body;
+    }
+
+    /**
+     * An HTTP/1.1 connection over a unix domain socket channel
+     */
+    private static class Connection {
+        private final SocketChannel channel;
+        private final InputStream in;
+        private final OutputStream out;
+
+        private Connection(SocketChannel channel) {
+            this.channel = channel;
+            this.in = new BufferedInputStream(Channels.newInputStream(channel));
+            this.out = new BufferedOutputStream(Channels.newOutputStream(channel));
+        }
+
+        private HttpResult post(String path, String contentType, byte[] body) throws IOException {
+            String head = "POST " + path + " HTTP/1.1\r\n"
+                    + "Host: localhost\r\n"
+                    + "Content-Type: " + contentType + "\r\n"
+                    + "Accept: " + contentType + "\r\n"
+                    + "Content-Length: " + body.length + "\r\n"
+                    + "\r\n";
+            out.write(head.getBytes(Charsets.US_ASCII));
+            out.write(body);
+            out.flush();
+
+            HttpResult result = new HttpResult();
+            String statusLine = readLine();
+            if (null == statusLine) {
+                throw new EOFException("Connection closed before the response");
+            }
+            String[] parts = statusLine.split(" ", 3);
+            if (parts.length < 2 || !parts[0].startsWith("HTTP/")) {
+                throw new IOException("Malformed status line [" + statusLine + "]");
+            }
+            result.status = Integer.parseInt(parts[1]);
+            result.keepAlive = "HTTP/1.1".equals(parts[0]);
+
+            long contentLength = -1;
+            String line;
+            while (null != (line = readLine()) && !line.isEmpty()) {
+                int colon = line.indexOf(':');
+                if (colon < 0) {
+                    continue;
+                }
+                String name = line.substring(0, colon).trim();
+                String value = line.substring(colon + 1).trim();
+                if ("Content-Length".equalsIgnoreCase(name)) {
+                    contentLength = Long.parseLong(value);
+                } else if ("Connection".equalsIgnoreCase(name) && "close".equalsIgnoreCase(value)) {
+                    result.keepAlive = false;
+                } else if ("Retry-After".equalsIgnoreCase(name)) {
+                    result.retryAfter = value;
+                }
+            }
+
+            if (contentLength >= 0) {
+                byte[] data = new byte[(int) contentLength];
+                int off = 0;
+                while (off < data.length) {
+                    int len = in.read(data, off, data.length - off);
+                    if (-1 == len) {
+                        throw new IOException("Connection closed in the middle of the response body");
+                    }
+                    off += len;
+                }
+                result.body = data;
+            } else {
+                // no length : the body ends with the connection
+                ByteArrayOutputStream data = new ByteArrayOutputStream();
+                byte[] buf = new byte[8192];
+                int len;
+                while (-1 != (len = in.read(buf))) {
+                    data.write(buf, 0, len);
+                }
+                result.body = data.toByteArray();
+                result.keepAlive = false;
+            }
+            return result;
+        }
+
+        private String readLine() throws IOException {
+            StringBuilder line = new StringBuilder();
+            int c;
+            while (-1 != (c = in.read())) {
+                if ('\n' == c) {
+                    int len = line.length();
+                    return len > 0 && '\r' == line.charAt(len - 1) ? line.substring(0, len - 1) : line.toString();
+                }
+                line.append((char) c);
+            }
+            return line.length() > 0 ? line.toString() : null;
+        }
+
+        /**
+         * Whether the server closed the idle connection : it sends nothing between two responses
+         */
+        private boolean isStale() {
+            try {
+                channel.configureBlocking(false);
+                try {
+                    return 0 != channel.read(ByteBuffer.allocate(1));
+                } finally {
+                    channel.configureBlocking(true);
+                }
+            } catch (IOException e) {
+                return true;
+            }
+        }
+
+        private void close() {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                LOGGER.debug("Could not close connection : {}", e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Access to the unix domain socket support of the JDK (Java 16+), looked up at runtime
+     */
+    private static final class UnixSockets {
+
+        private UnixSockets() {
+        }
+
+        private static SocketAddress address(String path) {
+            try {
+                Class<?> addressClass = Class.forName("java.net.UnixDomainSocketAddress");
+                return (SocketAddress) addressClass.getMethod("of", String.class).invoke(null, path);
+            } catch (ClassNotFoundException | NoSuchMethodException | IllegalAccessException e) {
+                throw new CmdsrvClientException("Unix domain sockets need a Java 16+ runtime : " + e, e);
+            } catch (InvocationTargetException e) {
+                throw new CmdsrvClientException("Invalid unix domain socket path [" + path + "] : " + e.getCause(), e.getCause());
+            }
+        }
+
+        private static SocketChannel connect(SocketAddress address) throws IOException {
+            try {
+                ProtocolFamily unix = StandardProtocolFamily.valueOf("UNIX");
+                Method open = SocketChannel.class.getMethod("open", ProtocolFamily.class);
+                SocketChannel channel = (SocketChannel) open.invoke(null, unix);
+                try {
+                    channel.connect(address);
+                } catch (IOException | RuntimeException e) {
+                    channel.close();
+                    throw e;
+                }
+                return channel;
+            } catch (IllegalArgumentException | NoSuchMethodException | IllegalAccessException e) {
+                throw new CmdsrvClientException("Unix domain sockets need a Java 16+ runtime : " + e, e);
+            } catch (InvocationTargetException e) {
+                if (e.getCause() instanceof IOException) {
+                    throw (IOException) e.getCause();
+                }
+                throw new CmdsrvClientException("Could not open unix domain socket channel : " + e.getCause(), e.getCause());
+            }
+        }
+    }
+}
@@ -16,6 +16,8 @@
 
 package cmdsrv.client;
 
+import java.util.List;
+
 /**
  * @author Christophe Uberri <cuberri@gmail.com>
  */
@@ -29,4 +31,13 @@ public interface ICmdsrvClient {
      */
     CmdsrvResponse execute(CmdsrvRequest req);
 
+    /**
+     * Execute the commands specified in the requests in a single round trip. The server is free to run them in
+     * parallel.
+     *
+     * @param reqs
+     * @return The responses unmarshalled from server response, in the order of the requests
+     */
+    List<CmdsrvResponse> executeBatch(List<CmdsrvRequest> reqs);
+
 }
@@ -0,0 +1,51 @@
+/*
+* Copyright 2013 Christophe Uberri <cuberri@gmail.com>
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package cmdsrv.client;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+
+/**
+ * Marshalling of the requests and responses exchanged with the cmdsrv server. The server picks the codec of the
+ * request body from its content type, and answers with the same codec.
+ *
+ * <p>
+ *     Implementations must be thread safe.
+ * </p>
+ *
+ * @author Christophe Uberri <cuberri@gmail.com>
+ */
+public interface ICmdsrvCodec {
+
+    /**
+     * The content type of the bodies written and read by this codec
+     *
+     * @return
+     */
+    String getContentType();
+
+    void writeRequest(CmdsrvRequest req, OutputStream out) throws IOException;
+
+    void writeBatch(List<CmdsrvRequest> reqs, OutputStream out) throws IOException;
+
+    CmdsrvResponse readResponse(InputStream in) throws IOException;
+
+    List<CmdsrvResponse> readBatch(InputStream in) throws IOException;
+
+}
@@ -0,0 +1,58 @@
+/*
+* Copyright 2013 Christophe Uberri <cuberri@gmail.com>
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package cmdsrv.client;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A client running the commands as server side jobs : the command is submitted, then its result is fetched when it is
+ * known, so that long running commands hold no server worker while they run. A poll waiting for the result holds a
+ * client connection, but the server parks it apart from its workers until the job ends. The commands of
+ * {@link #execute(CmdsrvRequest)} and {@link #executeBatch(List)} run as jobs too.
+ *
+ * @author Christophe Uberri <cuberri@gmail.com>
+ */
+public interface ICmdsrvJobClient extends ICmdsrvClient {
+
+    /**
+     * Submit the command specified in the request and return immediately.
+     *
+     * @param req
+     * @return The handle of the job running the command on the server
+     */
+    CmdsrvJob submit(CmdsrvRequest req);
+
+    /**
+     * Wait for the job to end, at most the given time (the server may wait less), and update the job with its last
+     * known state.
+     *
+     * @param job
+     * @param timeout
+     * @param unit
+     * @return true if the job ended (done or cancelled)
+     */
+    boolean poll(CmdsrvJob job, long timeout, TimeUnit unit);
+
+    /**
+     * Cancel the job, killing its process if it is running, or forget it on the server if it ended.
+     *
+     * @param job
+     * @return false if the server does not know the job (anymore)
+     */
+    boolean cancel(CmdsrvJob job);
+
+}
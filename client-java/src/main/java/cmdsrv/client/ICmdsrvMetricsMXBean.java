@@ -0,0 +1,78 @@
+/*
+* Copyright 2013 Christophe Uberri <cuberri@gmail.com>
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package cmdsrv.client;
+
+import java.util.Map;
+
+/**
+ * JMX view of CmdsrvMetrics. Latencies are in milliseconds, sizes in characters.
+ *
+ * @author Christophe Uberri <cuberri@gmail.com>
+ */
+public interface ICmdsrvMetricsMXBean {
+
+    long getRequestCount();
+
+    long getErrorCount();
+
+    int getInFlight();
+
+    double getLatencyMeanMillis();
+
+    double getLatencyP50Millis();
+
+    double getLatencyP99Millis();
+
+    double getLatencyP999Millis();
+
+    double getLatencyMaxMillis();
+
+    /**
+     * Size of the commands sent (sum of the lengths of their arguments)
+     *
+     * @return
+     */
+    long getRequestSize();
+
+    /**
+     * Size of the outputs received, in bytes (sum of the sizes of stdout and stderr)
+     *
+     * @return
+     */
+    long getResponseSize();
+
+    /**
+     * Number of errors by HTTP status, 0 standing for errors without any server response
+     *
+     * @return
+     */
+    Map<Integer, Long> getErrorCountByStatus();
+
+    /**
+     * Number of requests by executable (first element of the command)
+     *
+     * @return
+     */
+    Map<String, Long> getRequestCountByExecutable();
+
+    /**
+     * 99th percentile of the latency by executable (first element of the command)
+     *
+     * @return
+     */
+    Map<String, Double> getLatencyP99MillisByExecutable();
+
+}
@@ -0,0 +1,57 @@
+/*
+* Copyright 2013 Christophe Uberri <cuberri@gmail.com>
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package cmdsrv.client;
+
+/**
+ * <p>
+ *     Receives the measures taken by CmdsrvMetricsClient, e.g. to forward them to a monitoring system. CmdsrvMetrics
+ *     is the in-memory implementation, exposed through JMX, and CmdsrvLoggingSink logs every call.
+ * </p>
+ *
+ * <p>
+ *     Implementations are called on the request path, from many threads : they must be thread safe and cheap.
+ * </p>
+ *
+ * @author Christophe Uberri <cuberri@gmail.com>
+ */
+public interface ICmdsrvMetricsSink {
+
+    /**
+     * The request is about to be sent
+     *
+     * @param req
+     */
+    void onStart(CmdsrvRequest req);
+
+    /**
+     * The response has been received
+     *
+     * @param req
+     * @param res
+     * @param latencyNanos
+     */
+    void onSuccess(CmdsrvRequest req, CmdsrvResponse res, long latencyNanos);
+
+    /**
+     * The request failed
+     *
+     * @param req
+     * @param e See {@link CmdsrvClientException#getStatusCode()}
+     * @param latencyNanos
+     */
+    void onError(CmdsrvRequest req, CmdsrvClientException e, long latencyNanos);
+
+}
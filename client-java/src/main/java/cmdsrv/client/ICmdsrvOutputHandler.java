@@ -0,0 +1,49 @@
+/*
+* Copyright 2013 Christophe Uberri <cuberri@gmail.com>
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package cmdsrv.client;
+
+/**
+ * Callback receiving the output of a command as it is produced on the server.
+ *
+ * <p>
+ *     The buffers are reused by the caller once a method returns : implementations must copy the bytes they want to
+ *     keep.
+ * </p>
+ *
+ * @author Christophe Uberri <cuberri@gmail.com>
+ */
+public interface ICmdsrvOutputHandler {
+
+    /**
+     * A chunk of the standard output of the process
+     *
+     * @param buf
+     * @param off
+     * @param len
+     */
+    void onStdout(byte[] buf, int off, int len);
+
+    /**
+     * A chunk of the standard error output of the process
+     *
+     * @param buf
+     * @param off
+     * @param len
+     */
+    void onStderr(byte[] buf, int off, int len);
+
+}
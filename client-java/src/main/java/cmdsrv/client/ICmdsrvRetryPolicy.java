@@ -0,0 +1,34 @@
+/*
+* Copyright 2013 Christophe Uberri <cuberri@gmail.com>
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package cmdsrv.client;
+
+/**
+ * Decides, for each failed request, whether CmdsrvRetryingClient sends it again and after which delay.
+ * Implementations are called from several threads and must be thread safe.
+ *
+ * @author Christophe Uberri <cuberri@gmail.com>
+ */
+public interface ICmdsrvRetryPolicy {
+
+    /**
+     * @param req The failed request (the first one of a batch)
+     * @param e The error of the last attempt
+     * @param retries The number of times the request has already been retried
+     * @return the delay before sending the request again, in milliseconds, or -1 not to retry it
+     */
+    long getRetryDelayMillis(CmdsrvRequest req, RuntimeException e, int retries);
+
+}
@@ -0,0 +1,168 @@
+/*
+* Copyright 2013 Christophe Uberri <cuberri@gmail.com>
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package cmdsrv;
+
+import cmdsrv.client.CmdsrvClientException;
+import cmdsrv.client.CmdsrvRequest;
+import cmdsrv.client.StubClient;
+import com.google.common.base.Charsets;
+import com.google.common.base.Joiner;
+import com.google.common.io.Files;
+import com.google.common.util.concurrent.Uninterruptibles;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Christophe Uberri <cuberri@gmail.com>
+ */
+public class LoadDriverTest {
+
+    private File mixFile;
+
+    @Before
+    public void before() throws IOException {
+        mixFile = File.createTempFile("cmdsrv-mix", ".txt");
+    }
+
+    @After
+    public void after() {
+        mixFile.delete();
+    }
+
+    private List<CmdsrvRequest> readMix(String... lines) throws IOException {
+        Files.write(Joiner.on('\n').join(lines), mixFile, Charsets.UTF_8);
+        return LoadDriver.readMix(mixFile);
+    }
+
+    @Test
+    public void testReadMix() throws IOException {
+        // when
+        List<CmdsrvRequest> mix = readMix(
+                "# 3 ls for 1 stat",
+                "",
+                "3 {\"cmd\":[\"ls\", \"-l\", \"/tmp\"]}",
+                "   ",
+                "  {\"cmd\":[\"stat\", \"/tmp\"]}  ");
+
+        // then
+        assertEquals(4, mix.size());
+        assertEquals("ls -l /tmp", mix.get(0).getCmdJoinedStr());
+        assertSame(mix.get(0), mix.get(2));
+        assertEquals("stat /tmp", mix.get(3).getCmdJoinedStr());
+    }
+
+    @Test(expected = NumberFormatException.class)
+    public void testReadMixMalformedWeight() throws IOException {
+        // when
+        readMix("three {\"cmd\":[\"ls\"]}");
+    }
+
+    @Test(expected = CmdsrvClientException.class)
+    public void testReadMixMalformedRequest() throws IOException {
+        // when
+        readMix("{\"cmd\":[\"ls\"");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testEmptyMix() throws IOException {
+        // when
+        new LoadDriver(new StubClient(), readMix("# nothing"), 1, 0, 1);
+    }
+
+    @Test
+    public void testRunClosedLoop() throws Exception {
+        // given
+        List<CmdsrvRequest> mix = readMix(
+                "2 {\"cmd\":[\"exit\", \"0\"]}",
+                "{\"cmd\":[\"exit\", \"3\"]}",
+                "{\"cmd\":[\"fail\", \"500\"]}",
+                "{\"cmd\":[\"fail\", \"unreachable\"]}");
+        LoadDriver sut = new LoadDriver(new StubClient(), mix, 2, 0, 1);
+
+        // when
+        String report = sut.run();
+
+        // then : every request is counted once, as an error by status or by retval
+        long requests = parse("requests   : (\\d+) in", report).get(0);
+        List<Long> errors = parse("errors     : (\\d+) \\(status 0 : (\\d+), status 500 : (\\d+)\\)", report);
+        List<Long> retvals = parse("retval     : \\(0 : (\\d+), 3 : (\\d+)\\)", report);
+        assertTrue(report, requests > 0);
+        assertEquals(report, errors.get(0), Long.valueOf(errors.get(1) + errors.get(2)));
+        assertEquals(report, requests, errors.get(0) + retvals.get(0) + retvals.get(1));
+    }
+
+    @Test
+    public void testRunOnlyErrors() throws Exception {
+        // given
+        LoadDriver sut = new LoadDriver(new StubClient(), Collections.singletonList(new CmdsrvRequest("fail", "503")), 1, 100, 1);
+
+        // when
+        String report = sut.run();
+
+        // then
+        long requests = parse("requests   : (\\d+) in", report).get(0);
+        assertEquals(report, Arrays.asList(requests, requests), parse("errors     : (\\d+) \\(status 503 : (\\d+)\\)", report));
+        assertTrue(report, report.contains(String.format("retval     : %n")));
+    }
+
+    @Test
+    public void testRunMissedStarts() throws Exception {
+        // given
+        final CountDownLatch release = new CountDownLatch(1);
+        LoadDriver sut = new LoadDriver(new StubClient().blockUntil(release), Collections.singletonList(new CmdsrvRequest("ls")), 1, 100, 1);
+        new Thread() {
+            @Override
+            public void run() {
+                Uninterruptibles.sleepUninterruptibly(1500, TimeUnit.MILLISECONDS);
+                release.countDown();
+            }
+        }.start();
+
+        // when
+        long start = System.nanoTime();
+        String report = sut.run();
+
+        // then
+        assertTrue(report, System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+        assertEquals(report, Arrays.asList(1L), parse("requests   : (\\d+) in", report));
+        List<Long> missed = parse("missed     : (\\d+) of (\\d+) scheduled", report);
+        assertTrue(report, missed.get(0) > 0);
+        assertEquals(report, missed.get(0) + 1, (long) missed.get(1));
+    }
+
+    private static List<Long> parse(String regex, String report) {
+        Matcher matcher = Pattern.compile(regex).matcher(report);
+        assertTrue(report, matcher.find());
+        Long[] groups = new Long[matcher.groupCount()];
+        for (int i = 0; i < groups.length; i++) {
+            groups[i] = Long.parseLong(matcher.group(i + 1));
+        }
+        return Arrays.asList(groups);
+    }
+}
@@ -0,0 +1,128 @@
+/*
+* Copyright 2013 Christophe Uberri <cuberri@gmail.com>
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package cmdsrv.client;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Christophe Uberri <cuberri@gmail.com>
+ */
+public class CmdsrvAdaptiveLimitClientTest {
+
+    @Test
+    public void testLimitGrowsWhenUsed() {
+        // given
+        CmdsrvAdaptiveLimitClient sut = new CmdsrvAdaptiveLimitClient(new StubClient(), 1, 1, 10, 1000, 0);
+
+        // when
+        for (int i = 0; i < 100; i++) {
+            sut.execute(new CmdsrvRequest("ls"));
+        }
+
+        // then : one request at a time only uses a limit of 2
+        assertEquals(2, sut.getLimit());
+        assertEquals(0, sut.getInFlight());
+    }
+
+    @Test
+    public void testLimitDecreasesOnRejection() {
+        // given
+        CmdsrvAdaptiveLimitClient sut = new CmdsrvAdaptiveLimitClient(new StubClient(), 10, 2, 10, 1000, 0);
+
+        // when
+        for (int i = 0; i < 50; i++) {
+            try {
+                sut.execute(new CmdsrvRequest("fail", "503", "1"));
+                fail();
+            } catch (CmdsrvRejectedException e) {
+                assertEquals(503, e.getStatusCode());
+                assertEquals(1000, e.getRetryAfterMillis());
+            }
+        }
+
+        // then
+        assertEquals(2, sut.getLimit());
+        assertEquals(0, sut.getInFlight());
+    }
+
+    @Test
+    public void testLimitKeptOnOtherErrors() {
+        // given
+        CmdsrvAdaptiveLimitClient sut = new CmdsrvAdaptiveLimitClient(new StubClient(), 5, 1, 10, 1000, 0);
+
+        // when
+        try {
+            sut.execute(new CmdsrvRequest("fail", "500"));
+            fail();
+        } catch (CmdsrvClientException e) {
+            assertFalse(e instanceof CmdsrvRejectedException);
+        }
+
+        // then
+        assertEquals(5, sut.getLimit());
+        assertEquals(0, sut.getInFlight());
+    }
+
+    @Test
+    public void testRejectedWithoutSlot() throws Exception {
+        // given
+        final CountDownLatch release = new CountDownLatch(1);
+        final CmdsrvAdaptiveLimitClient sut = new CmdsrvAdaptiveLimitClient(new StubClient().blockUntil(release), 1, 1, 1, 100, 0);
+        Thread busy = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                sut.execute(new CmdsrvRequest("block"));
+            }
+        });
+        busy.start();
+        while (0 == sut.getInFlight()) {
+            Thread.sleep(10);
+        }
+
+        // when
+        try {
+            sut.execute(new CmdsrvRequest("ls"));
+            fail();
+        } catch (CmdsrvRejectedException e) {
+            // then
+            assertEquals(0, e.getStatusCode());
+        } finally {
+            release.countDown();
+            busy.join();
+        }
+        assertEquals(0, sut.getInFlight());
+        sut.execute(new CmdsrvRequest("ls"));
+    }
+
+    @Test
+    public void testExecuteBatchBiggerThanLimit() {
+        // given
+        CmdsrvAdaptiveLimitClient sut = new CmdsrvAdaptiveLimitClient(new StubClient(), 2, 1, 10, 100, 0);
+
+        // when
+        List<CmdsrvResponse> responses = sut.executeBatch(Arrays.asList(new CmdsrvRequest("ls"), new CmdsrvRequest("pwd"), new CmdsrvRequest("id")));
+
+        // then
+        assertEquals(3, responses.size());
+        assertEquals(0, sut.getInFlight());
+    }
+}
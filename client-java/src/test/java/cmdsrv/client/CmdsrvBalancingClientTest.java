@@ -0,0 +1,160 @@
+/*
+* Copyright 2013 Christophe Uberri <cuberri@gmail.com>
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package cmdsrv.client;
+
+import com.google.common.util.concurrent.Uninterruptibles;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import spark.Request;
+import spark.Response;
+import spark.Route;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+import static spark.Spark.get;
+import static spark.Spark.post;
+
+/**
+ * @author Christophe Uberri <cuberri@gmail.com>
+ */
+public class CmdsrvBalancingClientTest {
+
+    private static volatile boolean bHealthy = true;
+
+    private static CmdsrvPooledTransport transport;
+
+    @BeforeClass
+    public static void beforeClass() {
+        transport = new CmdsrvPooledTransport(4, 1000, 5000, 60000);
+        for (final String node : Arrays.asList("a", "b")) {
+            post(new Route("/lb/" + node + "/cmd") {
+                @Override
+                public Object handle(Request req, Response res) {
+                    res.status(200);
+                    res.header("Content-Type", "application/json");
+                    return "{\"cmd\": [\"hostname\"], \"retval\": 0, \"stderr\": \"\", \"stdout\": \"" + node + "\"}";
+                }
+            });
+            get(new Route("/lb/" + node + "/status") {
+                @Override
+                public Object handle(Request req, Response res) {
+                    res.status("a".equals(node) || bHealthy ? 200 : 500);
+                    return "online";
+                }
+            });
+        }
+        post(new Route("/lb/slow/cmd") {
+            @Override
+            public Object handle(Request req, Response res) {
+                Uninterruptibles.sleepUninterruptibly(1, TimeUnit.SECONDS);
+                res.status(200);
+                res.header("Content-Type", "application/json");
+                return "{\"cmd\": [\"hostname\"], \"retval\": 0, \"stderr\": \"\", \"stdout\": \"slow\"}";
+            }
+        });
+        SparkTestSupport.awaitStarted();
+    }
+
+    @AfterClass
+    public static void afterClass() {
+        transport.close();
+    }
+
+    @Test
+    public void testExecuteSpreadsRequests() {
+        // given
+        CmdsrvBalancingClient sut = new CmdsrvBalancingClient(transport.getClient(),
+                Arrays.asList("http://localhost:4567/lb/a/cmd", "http://localhost:4567/lb/b/cmd"), 60000);
+        Set<String> nodes = new HashSet<>();
+
+        // when
+        for (int i = 0; i < 4; i++) {
+            nodes.add(sut.execute(new CmdsrvRequest("hostname")).getStdout());
+        }
+
+        // then
+        assertEquals(new HashSet<>(Arrays.asList("a", "b")), nodes);
+        sut.close();
+    }
+
+    @Test
+    public void testUnhealthyServerEjectedThenBack() throws Exception {
+        // given
+        bHealthy = false;
+        CmdsrvBalancingClient sut = new CmdsrvBalancingClient(transport.getClient(),
+                Arrays.asList("http://localhost:4567/lb/a/cmd", "http://localhost:4567/lb/b/cmd"), 50);
+        Thread.sleep(300);
+
+        // when
+        Set<String> nodes = new HashSet<>();
+        for (int i = 0; i < 4; i++) {
+            nodes.add(sut.execute(new CmdsrvRequest("hostname")).getStdout());
+        }
+        bHealthy = true;
+        Thread.sleep(300);
+
+        // then
+        assertEquals(new HashSet<>(Arrays.asList("a")), nodes);
+        assertEquals(Arrays.asList("http://localhost:4567/lb/a/cmd", "http://localhost:4567/lb/b/cmd"), sut.getHealthyUrls());
+        sut.close();
+    }
+
+    @Test(expected = CmdsrvClientException.class)
+    public void testUnreachableServerEjected() {
+        // given
+        CmdsrvBalancingClient sut = new CmdsrvBalancingClient(transport.getClient(),
+                Arrays.asList("http://localhost:1/cmd"), 60000);
+
+        // when
+        try {
+            sut.execute(new CmdsrvRequest("hostname"));
+        } finally {
+            // then
+            assertEquals(0, sut.getHealthyUrls().size());
+            sut.close();
+        }
+    }
+
+    @Test
+    public void testReadTimeoutNotEjected() {
+        // given
+        CmdsrvPooledTransport impatient = new CmdsrvPooledTransport(1, 1000, 200, 60000);
+        CmdsrvBalancingClient sut = new CmdsrvBalancingClient(impatient.getClient(),
+                Arrays.asList("http://localhost:4567/lb/slow/cmd"), 60000);
+
+        // when
+        try {
+            sut.execute(new CmdsrvRequest("hostname"));
+            fail();
+        } catch (CmdsrvClientException e) {
+            // then
+            assertFalse(CmdsrvBalancingClient.isConnectFailure(e));
+        } finally {
+            sut.close();
+            impatient.close();
+        }
+        assertEquals(Arrays.asList("http://localhost:4567/lb/slow/cmd"), sut.getHealthyUrls());
+    }
+
+}
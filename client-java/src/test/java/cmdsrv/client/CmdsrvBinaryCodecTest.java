@@ -0,0 +1,142 @@
+/*
+* Copyright 2013 Christophe Uberri <cuberri@gmail.com>
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package cmdsrv.client;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Christophe Uberri <cuberri@gmail.com>
+ */
+public class CmdsrvBinaryCodecTest {
+
+    @Test
+    public void testWriteRequest() throws Exception {
+        // given
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        // when
+        CmdsrvBinaryCodec.INSTANCE.writeRequest(new CmdsrvRequest("ls", "-a"), out);
+
+        // then
+        assertArrayEquals(new byte[]{0, 0, 0, 2, 0, 0, 0, 2, 'l', 's', 0, 0, 0, 2, '-', 'a', 0, 0, 0, 0, 0, 0, 0, 0}, out.toByteArray());
+    }
+
+    @Test
+    public void testWriteRequestOptions() throws Exception {
+        // given
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        // when
+        CmdsrvBinaryCodec.INSTANCE.writeRequest(new CmdsrvRequest("ls").poolable().timeout(2, TimeUnit.SECONDS), out);
+
+        // then
+        assertArrayEquals(new byte[]{0, 0, 0, 1, 0, 0, 0, 2, 'l', 's', 0, 0, 0, 1, 0, 0, 0x07, (byte) 0xd0}, out.toByteArray());
+    }
+
+    @Test(expected = IOException.class)
+    public void testWritePipedRequest() throws Exception {
+        // when
+        CmdsrvBinaryCodec.INSTANCE.writeRequest(new CmdsrvRequest("ls").pipe("wc", "-l"), new ByteArrayOutputStream());
+    }
+
+    @Test
+    public void testReadResponse() throws Exception {
+        // given
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeResponse(new DataOutputStream(out), 2, false, "stdout\n", "stderr \u00e9", "ls", "-a");
+
+        // when
+        CmdsrvResponse res = CmdsrvBinaryCodec.INSTANCE.readResponse(new ByteArrayInputStream(out.toByteArray()));
+
+        // then
+        assertEquals(2, res.getRetval());
+        assertEquals("stdout\n", res.getStdout());
+        assertEquals("stderr \u00e9", res.getStderr());
+        assertArrayEquals(new String[]{"ls", "-a"}, res.getCmd());
+        assertFalse(res.isTimedOut());
+    }
+
+    @Test
+    public void testReadBatch() throws Exception {
+        // given
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        DataOutputStream data = new DataOutputStream(out);
+        data.writeInt(2);
+        writeResponse(data, 0, false, "plop", "", "ls");
+        writeResponse(data, -9, true, "", "plip", "sleep", "60");
+
+        // when
+        List<CmdsrvResponse> res = CmdsrvBinaryCodec.INSTANCE.readBatch(new ByteArrayInputStream(out.toByteArray()));
+
+        // then
+        assertEquals(2, res.size());
+        assertEquals("plop", res.get(0).getStdout());
+        assertEquals(-9, res.get(1).getRetval());
+        assertEquals("plip", res.get(1).getStderr());
+        assertFalse(res.get(0).isTimedOut());
+        assertTrue(res.get(1).isTimedOut());
+    }
+
+    @Test
+    public void testWriteBatch() throws Exception {
+        // given
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        // when
+        CmdsrvBinaryCodec.INSTANCE.writeBatch(Arrays.asList(new CmdsrvRequest("ls"), new CmdsrvRequest("pwd")), out);
+
+        // then
+        assertArrayEquals(new byte[]{0, 0, 0, 2, 0, 0, 0, 1, 0, 0, 0, 2, 'l', 's', 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 1, 0, 0, 0, 3, 'p', 'w', 'd', 0, 0, 0, 0, 0, 0, 0, 0}, out.toByteArray());
+    }
+
+    @Test(expected = IOException.class)
+    public void testReadTruncatedResponse() throws Exception {
+        // given
+        byte[] truncated = {0, 0, 0, 0, 0, 0, 0, 1, 0, 0, 0, 5, 'l'};
+
+        // when
+        CmdsrvBinaryCodec.INSTANCE.readResponse(new ByteArrayInputStream(truncated));
+    }
+
+    private static void writeResponse(DataOutputStream data, int retval, boolean timedOut, String stdout, String stderr, String... cmd) throws IOException {
+        data.writeInt(retval);
+        data.writeInt(cmd.length);
+        for (String arg : cmd) {
+            writeString(data, arg);
+        }
+        writeString(data, stdout);
+        writeString(data, stderr);
+        data.writeInt(timedOut ? CmdsrvBinaryCodec.TIMED_OUT : 0);
+    }
+
+    private static void writeString(DataOutputStream data, String s) throws IOException {
+        byte[] bytes = s.getBytes("UTF-8");
+        data.writeInt(bytes.length);
+        data.write(bytes);
+    }
+
+}
@@ -0,0 +1,211 @@
+/*
+* Copyright 2013 Christophe Uberri <cuberri@gmail.com>
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package cmdsrv.client;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Christophe Uberri <cuberri@gmail.com>
+ */
+public class CmdsrvCachingClientTest {
+
+    @Test
+    public void testExecuteCacheable() {
+        // given
+        StubClient delegate = new StubClient(null);
+        CmdsrvCachingClient sut = new CmdsrvCachingClient(delegate, 16);
+
+        // when
+        CmdsrvResponse first = sut.execute(new CmdsrvRequest("df", "-k").cacheable(1, TimeUnit.MINUTES));
+        CmdsrvResponse second = sut.execute(new CmdsrvRequest("df", "-k").cacheable(1, TimeUnit.MINUTES));
+
+        // then
+        assertEquals(1, delegate.getExecutions());
+        assertSame(first, second);
+        assertEquals(1, sut.getStats().hitCount());
+    }
+
+    @Test
+    public void testExecuteNotCacheable() {
+        // given
+        StubClient delegate = new StubClient(null);
+        CmdsrvCachingClient sut = new CmdsrvCachingClient(delegate, 16);
+
+        // when
+        sut.execute(new CmdsrvRequest("date"));
+        sut.execute(new CmdsrvRequest("date"));
+
+        // then
+        assertEquals(2, delegate.getExecutions());
+    }
+
+    @Test
+    public void testExecuteExpired() throws Exception {
+        // given
+        StubClient delegate = new StubClient(null);
+        CmdsrvCachingClient sut = new CmdsrvCachingClient(delegate, 16);
+        sut.execute(new CmdsrvRequest("df", "-k").cacheable(10, TimeUnit.MILLISECONDS));
+        Thread.sleep(20);
+
+        // when
+        sut.execute(new CmdsrvRequest("df", "-k").cacheable(10, TimeUnit.MILLISECONDS));
+
+        // then
+        assertEquals(2, delegate.getExecutions());
+    }
+
+    @Test
+    public void testExecuteSingleFlight() throws Exception {
+        // given
+        CountDownLatch release = new CountDownLatch(1);
+        StubClient delegate = new StubClient(null).blockUntil(release);
+        final CmdsrvCachingClient sut = new CmdsrvCachingClient(delegate, 16);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        List<Future<CmdsrvResponse>> futures = new ArrayList<>();
+
+        // when
+        for (int i = 0; i < 8; i++) {
+            futures.add(executor.submit(new Callable<CmdsrvResponse>() {
+                @Override
+                public CmdsrvResponse call() {
+                    return sut.execute(new CmdsrvRequest("readlink", "/proc/self").cacheable(1, TimeUnit.MINUTES));
+                }
+            }));
+        }
+        Thread.sleep(100);
+        release.countDown();
+
+        // then
+        for (Future<CmdsrvResponse> future : futures) {
+            assertEquals("readlink /proc/self", future.get().getStdout());
+        }
+        assertEquals(1, delegate.getExecutions());
+        executor.shutdown();
+    }
+
+    @Test
+    public void testExecuteBatchMixesHitsAndMisses() {
+        // given
+        StubClient delegate = new StubClient(null);
+        CmdsrvCachingClient sut = new CmdsrvCachingClient(delegate, 16);
+        sut.execute(new CmdsrvRequest("df", "-k").cacheable(1, TimeUnit.MINUTES));
+
+        // when
+        List<CmdsrvResponse> res = sut.executeBatch(Arrays.asList(
+                new CmdsrvRequest("date"),
+                new CmdsrvRequest("df", "-k").cacheable(1, TimeUnit.MINUTES),
+                new CmdsrvRequest("uptime").cacheable(1, TimeUnit.MINUTES)));
+        sut.execute(new CmdsrvRequest("uptime").cacheable(1, TimeUnit.MINUTES));
+
+        // then
+        assertEquals("date", res.get(0).getStdout());
+        assertEquals("df -k", res.get(1).getStdout());
+        assertEquals("uptime", res.get(2).getStdout());
+        assertEquals(3, delegate.getExecutions());
+    }
+
+    @Test
+    public void testExecuteBatchSingleFlight() throws Exception {
+        // given
+        CountDownLatch release = new CountDownLatch(1);
+        StubClient delegate = new StubClient(null).blockUntil(release);
+        final CmdsrvCachingClient sut = new CmdsrvCachingClient(delegate, 16);
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+
+        // when
+        Future<List<CmdsrvResponse>> batch = executor.submit(new Callable<List<CmdsrvResponse>>() {
+            @Override
+            public List<CmdsrvResponse> call() {
+                return sut.executeBatch(Arrays.asList(
+                        new CmdsrvRequest("uptime").cacheable(1, TimeUnit.MINUTES),
+                        new CmdsrvRequest("date"),
+                        new CmdsrvRequest("uptime").cacheable(1, TimeUnit.MINUTES)));
+            }
+        });
+        Thread.sleep(100);
+        Future<List<CmdsrvResponse>> other = executor.submit(new Callable<List<CmdsrvResponse>>() {
+            @Override
+            public List<CmdsrvResponse> call() {
+                return sut.executeBatch(Arrays.asList(new CmdsrvRequest("uptime").cacheable(1, TimeUnit.MINUTES)));
+            }
+        });
+        Future<CmdsrvResponse> single = executor.submit(new Callable<CmdsrvResponse>() {
+            @Override
+            public CmdsrvResponse call() {
+                return sut.execute(new CmdsrvRequest("uptime").cacheable(1, TimeUnit.MINUTES));
+            }
+        });
+        Thread.sleep(100);
+        release.countDown();
+
+        // then
+        assertEquals("uptime", batch.get().get(0).getStdout());
+        assertEquals("date", batch.get().get(1).getStdout());
+        assertEquals("uptime", batch.get().get(2).getStdout());
+        assertEquals("uptime", other.get().get(0).getStdout());
+        assertEquals("uptime", single.get().getStdout());
+        assertEquals(2, delegate.getExecutions());
+        executor.shutdown();
+    }
+
+    @Test
+    public void testPartialResponsesNotCached() {
+        // given
+        StubClient delegate = new StubClient(null);
+        CmdsrvCachingClient sut = new CmdsrvCachingClient(delegate, 16);
+        List<CmdsrvRequest> reqs = Arrays.asList(
+                new CmdsrvRequest("timedout").cacheable(1, TimeUnit.MINUTES),
+                new CmdsrvRequest("spooled").cacheable(1, TimeUnit.MINUTES));
+
+        // when
+        List<CmdsrvResponse> res = sut.executeBatch(reqs);
+        sut.executeBatch(reqs);
+        sut.execute(new CmdsrvRequest("spooled").cacheable(1, TimeUnit.MINUTES));
+        sut.execute(new CmdsrvRequest("spooled").cacheable(1, TimeUnit.MINUTES));
+
+        // then
+        assertTrue(res.get(0).isTimedOut());
+        assertTrue(res.get(1).isStdoutSpooled());
+        assertEquals(6, delegate.getExecutions());
+    }
+
+    @Test(expected = CmdsrvClientException.class)
+    public void testExecuteFailure() {
+        // given
+        CmdsrvCachingClient sut = new CmdsrvCachingClient(new StubClient(null) {
+            @Override
+            public CmdsrvResponse execute(CmdsrvRequest req) {
+                throw new CmdsrvClientException("boom");
+            }
+        }, 16);
+
+        // when
+        sut.execute(new CmdsrvRequest("df", "-k").cacheable(1, TimeUnit.MINUTES));
+    }
+}
@@ -0,0 +1,232 @@
+/*
+* Copyright 2013 Christophe Uberri <cuberri@gmail.com>
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package cmdsrv.client;
+
+import com.sun.jersey.api.client.Client;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import spark.Request;
+import spark.Response;
+import spark.Route;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static spark.Spark.delete;
+import static spark.Spark.get;
+import static spark.Spark.post;
+
+/**
+ * @author Christophe Uberri <cuberri@gmail.com>
+ */
+public class CmdsrvJobClientJerseyTest {
+
+    public static final String JOB_ID = "00000000000000000000000000000001";
+    public static final String RUNNING_JOB_ID = "00000000000000000000000000000002";
+    public static final String JSON_RESULT = "{\"cmd\": [\"sleep\", \"60\"], \"retval\": 0, \"stderr\": \"\", \"stdout\": \"plop\"}";
+    public static final String BROKEN_JOB_ID = "00000000000000000000000000000003";
+    public static final AtomicInteger POLLS = new AtomicInteger();
+    public static final AtomicInteger CANCELS = new AtomicInteger();
+
+    @BeforeClass
+    public static void beforeClass() {
+        post(new Route("/jobtest/jobs") {
+            @Override
+            public Object handle(Request req, Response res) {
+                assertEquals("application/json", req.headers("Content-Type"));
+                String id = req.body().contains("forever") ? RUNNING_JOB_ID : req.body().contains("broken") ? BROKEN_JOB_ID : JOB_ID;
+
+                res.status(202);
+                res.header("Content-Type", "application/json");
+                return "{\"id\": \"" + id + "\", \"state\": \"queued\"}";
+            }
+        });
+        get(new Route("/jobtest/jobs/" + JOB_ID) {
+            @Override
+            public Object handle(Request req, Response res) {
+                assertNotNull(req.queryParams("wait"));
+
+                res.status(200);
+                res.header("Content-Type", "application/json");
+                if (POLLS.incrementAndGet() < 2) {
+                    return "{\"id\": \"" + JOB_ID + "\", \"state\": \"running\"}";
+                }
+                return "{\"id\": \"" + JOB_ID + "\", \"state\": \"done\", \"result\": " + JSON_RESULT + "}";
+            }
+        });
+        get(new Route("/jobtest/jobs/" + RUNNING_JOB_ID) {
+            @Override
+            public Object handle(Request req, Response res) {
+                res.status(200);
+                res.header("Content-Type", "application/json");
+                return "{\"id\": \"" + RUNNING_JOB_ID + "\", \"state\": \"running\"}";
+            }
+        });
+        get(new Route("/jobtest/jobs/" + BROKEN_JOB_ID) {
+            @Override
+            public Object handle(Request req, Response res) {
+                res.status(500);
+                return "boom";
+            }
+        });
+        delete(new Route("/jobtest/jobs/" + BROKEN_JOB_ID) {
+            @Override
+            public Object handle(Request req, Response res) {
+                CANCELS.incrementAndGet();
+                res.status(200);
+                res.header("Content-Type", "application/json");
+                return "{\"id\": \"" + BROKEN_JOB_ID + "\", \"state\": \"cancelled\"}";
+            }
+        });
+        delete(new Route("/jobtest/jobs/" + RUNNING_JOB_ID) {
+            @Override
+            public Object handle(Request req, Response res) {
+                CANCELS.incrementAndGet();
+                res.status(200);
+                res.header("Content-Type", "application/json");
+                return "{\"id\": \"" + RUNNING_JOB_ID + "\", \"state\": \"cancelled\"}";
+            }
+        });
+        SparkTestSupport.awaitStarted();
+    }
+
+    private CmdsrvJobClientJersey client() {
+        return new CmdsrvJobClientJersey(Client.create().resource("http://localhost:4567/jobtest/jobs"));
+    }
+
+    @Test
+    public void testSubmitThenGet() {
+        // given
+        POLLS.set(0);
+        CmdsrvJobClientJersey sut = client();
+
+        // when
+        CmdsrvJob job = sut.submit(new CmdsrvRequest("sleep", "60"));
+        CmdsrvResponse res = job.get();
+
+        // then
+        assertEquals(JOB_ID, job.getId());
+        assertEquals(CmdsrvJob.State.DONE, job.getState());
+        assertEquals(2, POLLS.get());
+        assertEquals("plop", res.getStdout());
+        assertEquals("sleep 60", res.getCmdJoinedStr());
+    }
+
+    @Test
+    public void testExecute() {
+        // given
+        POLLS.set(0);
+        CmdsrvJobClientJersey sut = client();
+
+        // when
+        CmdsrvResponse res = sut.execute(new CmdsrvRequest("sleep", "60"));
+
+        // then
+        assertEquals(0, res.getRetval());
+        assertEquals("plop", res.getStdout());
+    }
+
+    @Test
+    public void testExecuteCancelsOnError() {
+        // given
+        CANCELS.set(0);
+        CmdsrvJobClientJersey sut = client();
+
+        // when
+        try {
+            sut.execute(new CmdsrvRequest("sleep", "broken"));
+            fail();
+        } catch (CmdsrvClientException e) {
+            // then
+            assertEquals(500, e.getStatusCode());
+        }
+        assertEquals(1, CANCELS.get());
+    }
+
+    @Test
+    public void testExecuteBatchCancelsOnError() {
+        // given
+        CANCELS.set(0);
+        CmdsrvJobClientJersey sut = client();
+
+        // when
+        try {
+            sut.executeBatch(Arrays.asList(new CmdsrvRequest("sleep", "broken"), new CmdsrvRequest("sleep", "forever")));
+            fail();
+        } catch (CmdsrvClientException e) {
+            // expected
+        }
+
+        // then
+        assertEquals(2, CANCELS.get());
+    }
+
+    @Test
+    public void testAwaitRunningJob() {
+        // given
+        CmdsrvJobClientJersey sut = client();
+        CmdsrvJob job = sut.submit(new CmdsrvRequest("sleep", "forever"));
+
+        // when
+        CmdsrvResponse res = job.await(200, TimeUnit.MILLISECONDS);
+
+        // then
+        assertNull(res);
+        assertEquals(CmdsrvJob.State.RUNNING, job.getState());
+        assertFalse(job.isDone());
+    }
+
+    @Test
+    public void testCancel() {
+        // given
+        CmdsrvJobClientJersey sut = client();
+        CmdsrvJob job = sut.submit(new CmdsrvRequest("sleep", "forever"));
+
+        // when
+        boolean cancelled = job.cancel();
+
+        // then
+        assertTrue(cancelled);
+        assertEquals(CmdsrvJob.State.CANCELLED, job.getState());
+        try {
+            job.get();
+            fail("A cancelled job has no response");
+        } catch (CmdsrvClientException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testCancelUnknownJob() {
+        // given
+        CmdsrvJobClientJersey sut = client();
+        CmdsrvJob job = new CmdsrvJob(sut, new CmdsrvRequest("ls"));
+        job.update("ffffffffffffffffffffffffffffffff", CmdsrvJob.State.RUNNING, null);
+
+        // when
+        boolean cancelled = job.cancel();
+
+        // then
+        assertFalse(cancelled);
+    }
+}
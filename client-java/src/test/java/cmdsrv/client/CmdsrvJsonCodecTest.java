@@ -0,0 +1,205 @@
+/*
+* Copyright 2013 Christophe Uberri <cuberri@gmail.com>
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package cmdsrv.client;
+
+import com.google.common.base.Charsets;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Christophe Uberri <cuberri@gmail.com>
+ */
+public class CmdsrvJsonCodecTest {
+
+    @Test
+    public void testWriteRequest() throws Exception {
+        // given
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        // when
+        CmdsrvJsonCodec.INSTANCE.writeRequest(new CmdsrvRequest("sh", "-c", "echo \"<\u00e9>\""), out);
+
+        // then
+        assertEquals("{\"cmd\":[\"sh\",\"-c\",\"echo \\\"<\u00e9>\\\"\"]}", out.toString("UTF-8"));
+    }
+
+    @Test
+    public void testPipedRequestAndResponse() throws Exception {
+        // given
+        CmdsrvRequest req = new CmdsrvRequest("grep", "ERROR", "a.log").pipe("sort").pipe("uniq", "-c");
+        String json = "{\"cmd\": [\"grep\", \"ERROR\", \"a.log\"], \"retval\": 0, \"retvals\": [1, -13, 0], \"stdout\": \"\", \"stderr\": \"\"}";
+
+        // when
+        String written = CmdsrvRequest.toJson(req);
+        CmdsrvResponse res = CmdsrvJsonCodec.INSTANCE.readResponse(new ByteArrayInputStream(json.getBytes("UTF-8")));
+
+        // then
+        assertEquals("{\"cmd\":[\"grep\",\"ERROR\",\"a.log\"],\"pipe\":[[\"sort\"],[\"uniq\",\"-c\"]]}", written);
+        assertEquals(req, CmdsrvRequest.fromJson(written));
+        assertFalse(req.equals(new CmdsrvRequest("grep", "ERROR", "a.log")));
+        assertArrayEquals(new int[]{1, -13, 0}, res.getRetvals());
+        assertArrayEquals(new int[]{0}, new CmdsrvResponse(0, "", "").getRetvals());
+    }
+
+    @Test
+    public void testWritePoolableRequest() throws Exception {
+        // given
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        // when
+        CmdsrvJsonCodec.INSTANCE.writeRequest(new CmdsrvRequest("true").poolable(), out);
+
+        // then
+        assertEquals("{\"cmd\":[\"true\"],\"poolable\":true}", out.toString("UTF-8"));
+    }
+
+    @Test
+    public void testWriteRequestWithTimeout() throws Exception {
+        // given
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        // when
+        CmdsrvJsonCodec.INSTANCE.writeRequest(new CmdsrvRequest("sleep", "60").timeout(2, TimeUnit.SECONDS), out);
+
+        // then
+        assertEquals("{\"cmd\":[\"sleep\",\"60\"],\"timeoutms\":2000}", out.toString("UTF-8"));
+        assertEquals(2000, CmdsrvRequest.fromJson(out.toString("UTF-8")).getTimeoutMillis());
+    }
+
+    @Test
+    public void testReadTimedOutResponse() throws Exception {
+        // given
+        String json = "{\"cmd\": [\"sleep\", \"60\"], \"retval\": -9, \"timedout\": true, \"stdout\": \"\", \"stderr\": \"\"}";
+
+        // when
+        CmdsrvResponse res = CmdsrvJsonCodec.INSTANCE.readResponse(new ByteArrayInputStream(json.getBytes("UTF-8")));
+
+        // then
+        assertTrue(res.isTimedOut());
+        assertEquals(-9, res.getRetval());
+    }
+
+    @Test
+    public void testWriteBatch() throws Exception {
+        // given
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        // when
+        CmdsrvJsonCodec.INSTANCE.writeBatch(Arrays.asList(new CmdsrvRequest("ls"), new CmdsrvRequest("pwd")), out);
+
+        // then
+        assertEquals("{\"requests\":[{\"cmd\":[\"ls\"]},{\"cmd\":[\"pwd\"]}]}", out.toString("UTF-8"));
+    }
+
+    @Test
+    public void testReadResponseSkipsUnknownFields() throws Exception {
+        // given
+        String json = "{\"stdout\": \"plop\\n\", \"extra\": {\"a\": [1, 2]}, \"retval\": 2, \"stderr\": null, \"cmd\": [\"ls\"]}";
+
+        // when
+        CmdsrvResponse res = CmdsrvJsonCodec.INSTANCE.readResponse(new ByteArrayInputStream(json.getBytes("UTF-8")));
+
+        // then
+        assertEquals(2, res.getRetval());
+        assertEquals("plop\n", res.getStdout());
+        assertNull(res.getStderr());
+        assertArrayEquals(new String[]{"ls"}, res.getCmd());
+    }
+
+    @Test
+    public void testBinaryOutputRoundTrip() throws Exception {
+        // given
+        byte[] tgz = new byte[]{0x1f, (byte) 0x8b, 0x08, 0x00, (byte) 0xff, 0x00};
+        CmdsrvResponse res = new CmdsrvResponse(0, tgz, "ok".getBytes("UTF-8"), Charsets.UTF_8, "tar", "cz", ".");
+
+        // when
+        String json = CmdsrvResponse.toJson(res);
+        CmdsrvResponse read = CmdsrvJsonCodec.INSTANCE.readResponse(new ByteArrayInputStream(json.getBytes("UTF-8")));
+
+        // then
+        assertTrue(json.contains("\"stdout\":\"H4sIAP8A\",\"stdoutencoding\":\"base64\""));
+        assertTrue(json.contains("\"stderr\":\"ok\""));
+        ByteArrayOutputStream stdout = new ByteArrayOutputStream();
+        read.writeStdout(stdout);
+        assertArrayEquals(tgz, stdout.toByteArray());
+        assertEquals("ok", read.getStderr());
+    }
+
+    @Test
+    public void testReadBatch() throws Exception {
+        // given
+        String json = "{\"responses\": [{\"cmd\": [\"ls\"], \"retval\": 0, \"stdout\": \"a\", \"stderr\": \"\"}, {\"cmd\": [\"false\"], \"retval\": 1, \"stdout\": \"\", \"stderr\": \"\"}]}";
+
+        // when
+        List<CmdsrvResponse> res = CmdsrvJsonCodec.INSTANCE.readBatch(new ByteArrayInputStream(json.getBytes("UTF-8")));
+
+        // then
+        assertEquals(2, res.size());
+        assertEquals("a", res.get(0).getStdout());
+        assertEquals(1, res.get(1).getRetval());
+    }
+
+    @Test
+    public void testReadResponseTiming() throws Exception {
+        // given
+        String json = "{\"cmd\": [\"ls\"], \"retval\": 0, \"stdout\": \"a\\n\", \"stderr\": \"\", \"stdoutbytes\": 2, \"stderrbytes\": 0, "
+                + "\"timing\": {\"queue\": 0.1, \"spawn\": 1.5, \"run\": 12}}";
+
+        // when
+        CmdsrvResponse res = CmdsrvJsonCodec.INSTANCE.readResponse(new ByteArrayInputStream(json.getBytes("UTF-8")));
+
+        // then
+        assertEquals(2, res.getStdoutBytes());
+        assertEquals(0, res.getStderrBytes());
+        assertEquals(3, res.getTimingMillis().size());
+        assertEquals(1.5, res.getTimingMillis().get("spawn"), 0);
+        assertEquals(12, res.getTimingMillis().get("run"), 0);
+        assertEquals(res.getTimingMillis(), CmdsrvResponse.fromJson(CmdsrvResponse.toJson(res)).getTimingMillis());
+    }
+
+    @Test
+    public void testReadResponseWithoutTiming() throws Exception {
+        // given
+        String json = "{\"cmd\": [\"ls\"], \"retval\": 0, \"stdout\": \"a\", \"stderr\": \"\"}";
+
+        // when
+        CmdsrvResponse res = CmdsrvJsonCodec.INSTANCE.readResponse(new ByteArrayInputStream(json.getBytes("UTF-8")));
+
+        // then
+        assertEquals(-1, res.getStdoutBytes());
+        assertTrue(res.getTimingMillis().isEmpty());
+        assertEquals("{\"cmd\":[\"ls\"],\"retval\":0,\"stdout\":\"a\",\"stderr\":\"\"}", CmdsrvResponse.toJson(res));
+    }
+
+    @Test(expected = IOException.class)
+    public void testReadTruncatedResponse() throws Exception {
+        // given
+        String json = "{\"cmd\": [\"ls\"], \"retval\": 0, \"stdout\": \"pl";
+
+        // when
+        CmdsrvJsonCodec.INSTANCE.readResponse(new ByteArrayInputStream(json.getBytes("UTF-8")));
+    }
+
+}
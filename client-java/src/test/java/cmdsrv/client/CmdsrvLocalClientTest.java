@@ -0,0 +1,213 @@
+/*
+* Copyright 2013 Christophe Uberri <cuberri@gmail.com>
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package cmdsrv.client;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import com.google.common.util.concurrent.ListenableFuture;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Christophe Uberri <cuberri@gmail.com>
+ */
+public class CmdsrvLocalClientTest {
+
+    @Test
+    public void testEnablePosixSpawn() {
+        // given
+        String previous = System.getProperty(CmdsrvLocalClient.LAUNCH_MECHANISM_PROPERTY);
+        System.clearProperty(CmdsrvLocalClient.LAUNCH_MECHANISM_PROPERTY);
+        try {
+            new CmdsrvLocalClient().execute(new CmdsrvRequest("true"));
+            assertNull("the property should be left alone", System.getProperty(CmdsrvLocalClient.LAUNCH_MECHANISM_PROPERTY));
+
+            // when
+            boolean enabled = CmdsrvLocalClient.enablePosixSpawn();
+
+            // then
+            assertTrue(enabled);
+            assertEquals("POSIX_SPAWN", System.getProperty(CmdsrvLocalClient.LAUNCH_MECHANISM_PROPERTY));
+        } finally {
+            if (null == previous) {
+                System.clearProperty(CmdsrvLocalClient.LAUNCH_MECHANISM_PROPERTY);
+            } else {
+                System.setProperty(CmdsrvLocalClient.LAUNCH_MECHANISM_PROPERTY, previous);
+            }
+        }
+    }
+
+    @Test
+    public void testExecute() {
+        // given
+        CmdsrvLocalClient sut = new CmdsrvLocalClient();
+
+        // when
+        CmdsrvResponse res = sut.execute(new CmdsrvRequest("sh", "-c", "echo plop; echo plip >&2; exit 3"));
+
+        // then
+        assertEquals(3, res.getRetval());
+        assertEquals("plop\n", res.getStdout());
+        assertEquals("plip\n", res.getStderr());
+        assertArrayEquals(new String[]{"sh", "-c", "echo plop; echo plip >&2; exit 3"}, res.getCmd());
+    }
+
+    @Test(expected = CmdsrvTimeoutException.class)
+    public void testExecuteTimeout() {
+        // given
+        CmdsrvLocalClient sut = new CmdsrvLocalClient();
+
+        // when
+        sut.execute(new CmdsrvRequest("sleep", "10").timeout(200, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void testExecuteBatchTimeout() {
+        // given
+        CmdsrvLocalClient sut = new CmdsrvLocalClient();
+
+        // when
+        List<CmdsrvResponse> res = sut.executeBatch(Arrays.asList(
+                new CmdsrvRequest("sleep", "10").timeout(200, TimeUnit.MILLISECONDS),
+                new CmdsrvRequest("echo", "plop").timeout(10, TimeUnit.SECONDS)));
+
+        // then
+        assertTrue(res.get(0).isTimedOut());
+        assertFalse(res.get(1).isTimedOut());
+        assertEquals("plop\n", res.get(1).getStdout());
+    }
+
+    @Test
+    public void testExecuteLargeStderr() {
+        // given
+        CmdsrvLocalClient sut = new CmdsrvLocalClient();
+
+        // when
+        CmdsrvResponse res = sut.execute(new CmdsrvRequest("sh", "-c", "head -c 1000000 /dev/zero >&2; echo done"));
+
+        // then
+        assertEquals(0, res.getRetval());
+        assertEquals("done\n", res.getStdout());
+        assertEquals(1000000, res.getStderr().length());
+    }
+
+    @Test
+    public void testExecuteStdin() {
+        // given
+        CmdsrvLocalClient sut = new CmdsrvLocalClient();
+
+        // when
+        CmdsrvResponse all = sut.execute(new CmdsrvRequest("wc", "-c"), new ByteArrayInputStream(new byte[1000000]));
+        CmdsrvResponse first = sut.execute(new CmdsrvRequest("head", "-c", "3"), new ByteArrayInputStream("plop".getBytes()));
+
+        // then
+        assertEquals("1000000", all.getStdout().trim());
+        assertEquals("plo", first.getStdout());
+    }
+
+    @Test
+    public void testExecutePipeline() {
+        // given
+        CmdsrvLocalClient sut = new CmdsrvLocalClient();
+
+        // when
+        CmdsrvResponse res = sut.execute(new CmdsrvRequest("sh", "-c", "printf 'b\\na\\nb\\n'; echo one >&2")
+                .pipe("sort").pipe("sh", "-c", "uniq -c; echo two >&2; exit 2"));
+        CmdsrvResponse head = sut.execute(new CmdsrvRequest("seq", "1000000").pipe("head", "-n", "1"));
+
+        // then
+        assertEquals("1 a\n2 b\n", res.getStdout().replaceAll("(?m)^ +", ""));
+        assertEquals("one\ntwo\n", res.getStderr());
+        assertArrayEquals(new int[]{0, 0, 2}, res.getRetvals());
+        assertEquals(2, res.getRetval());
+        assertEquals("1\n", head.getStdout());
+    }
+
+    @Test
+    public void testCancelDestroysProcess() throws Exception {
+        // given
+        CmdsrvLocalClient sut = new CmdsrvLocalClient();
+        File pid = new File(Files.createTempDir(), "pid");
+        ListenableFuture<CmdsrvResponse> res = sut.executeAsync(new CmdsrvRequest("sh", "-c", "echo $$ > " + pid + "; exec sleep 30"));
+        String running = awaitPid(pid);
+
+        // when
+        res.cancel(true);
+
+        // then
+        assertTrue("the process should be destroyed", awaitDeath(running));
+    }
+
+    @Test(expected = CmdsrvLaunchException.class)
+    public void testExecuteUnknownExecutable() {
+        // given
+        CmdsrvLocalClient sut = new CmdsrvLocalClient();
+
+        // when
+        sut.execute(new CmdsrvRequest("/no/such/executable"));
+    }
+
+    @Test
+    public void testExecuteBatch() {
+        // given
+        CmdsrvLocalClient sut = new CmdsrvLocalClient();
+
+        // when
+        List<CmdsrvResponse> res = sut.executeBatch(Arrays.asList(new CmdsrvRequest("echo", "a"), new CmdsrvRequest("/no/such/executable")));
+
+        // then
+        assertEquals("a\n", res.get(0).getStdout());
+        assertEquals(CmdsrvLocalClient.NOT_LAUNCHED_RETVAL, res.get(1).getRetval());
+    }
+
+    /**
+     * Wait for a process to write its pid in the given file
+     */
+    static String awaitPid(File file) throws IOException, InterruptedException {
+        for (int i = 0; i < 500; i++) {
+            String pid = file.exists() ? Files.toString(file, Charsets.US_ASCII).trim() : "";
+            if (!pid.isEmpty()) {
+                return pid;
+            }
+            Thread.sleep(10);
+        }
+        throw new AssertionError("No pid written in " + file);
+    }
+
+    /**
+     * Wait at most 5 seconds for the given process to end
+     *
+     * @return false if it is still alive
+     */
+    static boolean awaitDeath(String pid) throws IOException, InterruptedException {
+        for (int i = 0; i < 500; i++) {
+            if (0 != new ProcessBuilder("kill", "-0", pid).start().waitFor()) {
+                return true;
+            }
+            Thread.sleep(10);
+        }
+        return false;
+    }
+}
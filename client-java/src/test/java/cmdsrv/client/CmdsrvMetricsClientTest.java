@@ -0,0 +1,150 @@
+/*
+* Copyright 2013 Christophe Uberri <cuberri@gmail.com>
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package cmdsrv.client;
+
+import org.junit.Test;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Christophe Uberri <cuberri@gmail.com>
+ */
+public class CmdsrvMetricsClientTest {
+
+    @Test
+    public void testExecuteCounts() {
+        // given
+        CmdsrvMetrics metrics = new CmdsrvMetrics();
+        CmdsrvMetricsClient sut = new CmdsrvMetricsClient(new StubClient(), metrics);
+
+        // when
+        sut.execute(new CmdsrvRequest("ls", "-l"));
+        sut.execute(new CmdsrvRequest("ls"));
+        sut.execute(new CmdsrvRequest("echo", "hello"));
+
+        // then
+        assertEquals(3, metrics.getRequestCount());
+        assertEquals(0, metrics.getErrorCount());
+        assertEquals(0, metrics.getInFlight());
+        assertEquals(Long.valueOf(2), metrics.getRequestCountByExecutable().get("ls"));
+        assertEquals(Long.valueOf(1), metrics.getRequestCountByExecutable().get("echo"));
+        assertEquals("ls-llsechohello".length(), metrics.getRequestSize());
+        assertEquals("okokok".length(), metrics.getResponseSize());
+    }
+
+    @Test
+    public void testExecuteErrorsByStatus() {
+        // given
+        CmdsrvMetrics metrics = new CmdsrvMetrics();
+        CmdsrvMetricsClient sut = new CmdsrvMetricsClient(new StubClient(), metrics);
+
+        // when
+        for (String status : Arrays.asList("500", "500", "404", "unreachable")) {
+            try {
+                sut.execute(new CmdsrvRequest("fail", status));
+                fail();
+            } catch (CmdsrvClientException e) {
+                // expected
+            }
+        }
+
+        // then
+        assertEquals(4, metrics.getRequestCount());
+        assertEquals(4, metrics.getErrorCount());
+        assertEquals(0, metrics.getInFlight());
+        assertEquals(Long.valueOf(2), metrics.getErrorCountByStatus().get(500));
+        assertEquals(Long.valueOf(1), metrics.getErrorCountByStatus().get(404));
+        assertEquals(Long.valueOf(1), metrics.getErrorCountByStatus().get(0));
+    }
+
+    @Test
+    public void testExecuteBatch() {
+        // given
+        CmdsrvMetrics metrics = new CmdsrvMetrics();
+        CmdsrvMetricsClient sut = new CmdsrvMetricsClient(new StubClient(), metrics);
+
+        // when
+        sut.executeBatch(Arrays.asList(new CmdsrvRequest("ls"), new CmdsrvRequest("pwd")));
+
+        // then
+        assertEquals(2, metrics.getRequestCount());
+        assertEquals(0, metrics.getInFlight());
+        assertEquals(2, metrics.getRequestCountByExecutable().size());
+    }
+
+    @Test
+    public void testExecutablesBounded() {
+        // given
+        CmdsrvMetrics metrics = new CmdsrvMetrics();
+
+        // when
+        for (int i = 0; i < CmdsrvMetrics.MAX_EXECUTABLES + 10; i++) {
+            CmdsrvRequest req = new CmdsrvRequest("cmd" + i);
+            metrics.onStart(req);
+            metrics.onSuccess(req, new CmdsrvResponse(0, "", ""), 1000);
+        }
+
+        // then
+        assertEquals(CmdsrvMetrics.MAX_EXECUTABLES + 1, metrics.getRequestCountByExecutable().size());
+        assertEquals(Long.valueOf(10), metrics.getRequestCountByExecutable().get(CmdsrvMetrics.OTHER_EXECUTABLES));
+    }
+
+    @Test
+    public void testRegister() throws Exception {
+        // given
+        CmdsrvMetrics metrics = new CmdsrvMetrics();
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName("cmdsrv:type=ClientMetrics,name=\"test\"");
+
+        // when
+        metrics.register("test");
+        new CmdsrvMetricsClient(new StubClient(), metrics).execute(new CmdsrvRequest("ls"));
+
+        // then
+        try {
+            assertEquals(1L, server.getAttribute(name, "RequestCount"));
+        } finally {
+            metrics.unregister();
+        }
+        assertFalse(server.isRegistered(name));
+    }
+
+    @Test
+    public void testHistogramPercentiles() {
+        // given
+        CmdsrvLatencyHistogram sut = new CmdsrvLatencyHistogram();
+
+        // when
+        for (int i = 1; i <= 1000; i++) {
+            sut.record(i, TimeUnit.MILLISECONDS);
+        }
+
+        // then
+        assertEquals(1000, sut.getCount());
+        assertEquals(500.5, sut.getMeanMillis(), 0.01);
+        assertEquals(1000, sut.getMaxMillis(), 0.01);
+        assertEquals(500, sut.getPercentileMillis(50), 500 * 0.07);
+        assertEquals(990, sut.getPercentileMillis(99), 990 * 0.07);
+        assertEquals(999, sut.getPercentileMillis(99.9), 999 * 0.07);
+        assertEquals(0, new CmdsrvLatencyHistogram().getPercentileMillis(99), 0);
+    }
+}
@@ -0,0 +1,105 @@
+/*
+* Copyright 2013 Christophe Uberri <cuberri@gmail.com>
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package cmdsrv.client;
+
+import com.google.common.util.concurrent.Uninterruptibles;
+import com.sun.jersey.api.client.ClientHandlerException;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import spark.Request;
+import spark.Response;
+import spark.Route;
+
+import java.net.SocketTimeoutException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static spark.Spark.post;
+
+/**
+ * @author Christophe Uberri <cuberri@gmail.com>
+ */
+public class CmdsrvPooledTransportTest {
+
+    public static final String JSON_RES_CMD_1 = "{\"cmd\": [\"ls\", \"-a\", \"-l\"], \"retval\": 0, \"stderr\": \"plip\", \"stdout\": \"plop\"}";
+
+    private static CmdsrvPooledTransport transport;
+
+    @BeforeClass
+    public static void beforeClass() {
+        transport = new CmdsrvPooledTransport(4, 1000, 5000, 60000);
+        post(new Route("/cmd/pooled/200") {
+            @Override
+            public Object handle(Request req, Response res) {
+                res.status(200);
+                res.header("Content-Type", "application/json");
+                return JSON_RES_CMD_1;
+            }
+        });
+        post(new Route("/cmd/pooled/slow") {
+            @Override
+            public Object handle(Request req, Response res) {
+                Uninterruptibles.sleepUninterruptibly(1, TimeUnit.SECONDS);
+                res.status(200);
+                res.header("Content-Type", "application/json");
+                return JSON_RES_CMD_1;
+            }
+        });
+        SparkTestSupport.awaitStarted();
+    }
+
+    @AfterClass
+    public static void afterClass() {
+        transport.close();
+    }
+
+    @Test
+    public void testConnectionReused() {
+        // given
+        CmdsrvRestClientJersey sut = transport.createRestClient("http://localhost:4567/cmd/pooled/200");
+        CmdsrvRequest req = new CmdsrvRequest("ls", "-a", "-l");
+
+        // when
+        for (int i = 0; i < 5; i++) {
+            assertEquals("plop", sut.execute(req).getStdout());
+        }
+
+        // then
+        assertEquals(1, transport.getConnectionsInPool());
+    }
+
+    @Test
+    public void testReadTimeout() {
+        // given
+        CmdsrvPooledTransport impatient = new CmdsrvPooledTransport(1, 1000, 200, 60000);
+        CmdsrvRestClientJersey sut = impatient.createRestClient("http://localhost:4567/cmd/pooled/slow");
+
+        // when
+        try {
+            sut.execute(new CmdsrvRequest("ls", "-a", "-l"));
+            fail();
+        } catch (ClientHandlerException e) {
+            // then
+            assertTrue(e.getCause() instanceof SocketTimeoutException);
+        } finally {
+            impatient.close();
+        }
+    }
+}
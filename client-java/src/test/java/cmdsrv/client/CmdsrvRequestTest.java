@@ -19,6 +19,8 @@ package cmdsrv.client;
 import cmdsrv.client.CmdsrvRequest;
 import org.junit.Test;
 
+import java.util.Arrays;
+
 import static org.junit.Assert.*;
 
 /**
@@ -54,4 +56,16 @@ public class CmdsrvRequestTest {
         assertNotNull(req);
         assertArrayEquals(new String[]{"ls", "-a", "-l"}, req.getCmd());
     }
+
+    @Test
+    public void testToJsonBatch() throws Exception {
+        // given
+        CmdsrvRequest req = new CmdsrvRequest("ls", "-a", "-l");
+
+        // when
+        String json = CmdsrvRequest.toJsonBatch(Arrays.asList(req, req));
+
+        // then
+        assertEquals("{\"requests\":[" + JSON_CMD_1 + "," + JSON_CMD_1 + "]}", json);
+    }
 }
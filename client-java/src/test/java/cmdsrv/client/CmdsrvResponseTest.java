@@ -19,6 +19,10 @@ package cmdsrv.client;
 import cmdsrv.client.CmdsrvResponse;
 import org.junit.Test;
 
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+import java.util.List;
+
 import static org.junit.Assert.*;
 
 /**
@@ -43,6 +47,38 @@ public class CmdsrvResponseTest {
         assertEquals(JSON_CMD_1, json);
     }
 
+    @Test
+    public void testBytesOutputs() throws Exception {
+        // given
+        byte[] stdout = "caf\u00e9\n".getBytes("ISO-8859-1");
+        CmdsrvResponse res = new CmdsrvResponse(0, stdout, new byte[0], Charset.forName("ISO-8859-1"), "ls");
+
+        // when
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        res.writeStdout(out);
+
+        // then
+        assertArrayEquals(stdout, out.toByteArray());
+        assertEquals(5, res.getStdoutBuffer().remaining());
+        assertTrue(res.getStdoutBuffer().isReadOnly());
+        assertEquals("caf\u00e9\n", res.getStdout());
+        assertEquals("", res.getStderr());
+    }
+
+    @Test
+    public void testOutputLengthInBytes() throws Exception {
+        // given
+        String stdout = "caf\u00e9 \uD83D\uDE00 \uD800";
+        CmdsrvResponse res = new CmdsrvResponse(0, stdout, "err", "ls");
+        CmdsrvResponse raw = new CmdsrvResponse(0, "caf\u00e9".getBytes("UTF-8"), new byte[0], Charset.forName("UTF-8"), "ls");
+
+        // then
+        assertEquals(stdout.getBytes("UTF-8").length + 3, res.getOutputLength());
+        assertEquals(5, raw.getOutputLength());
+        assertEquals(raw.getStdout(), raw.getStdout());
+        assertNotSame("the decoded output should not be kept", raw.getStdout(), raw.getStdout());
+    }
+
     @Test
     public void testFromJson() throws Exception {
         // given
@@ -56,4 +92,18 @@ public class CmdsrvResponseTest {
         assertArrayEquals(new String[]{"ls", "-a", "-l"}, res.getCmd());
     }
 
+    @Test
+    public void testFromJsonBatch() throws Exception {
+        // given
+        // N.A.
+
+        // when
+        List<CmdsrvResponse> res = CmdsrvResponse.fromJsonBatch("{\"responses\": [" + JSON_RES_CMD_1 + ", " + JSON_CMD_1 + "]}");
+
+        // then
+        assertEquals(2, res.size());
+        assertArrayEquals(new String[]{"ls", "-a", "-l"}, res.get(0).getCmd());
+        assertEquals("stdout", res.get(1).getStdout());
+    }
+
 }
@@ -19,6 +19,7 @@ package cmdsrv.client;
 import cmdsrv.client.CmdsrvRequest;
 import cmdsrv.client.CmdsrvResponse;
 import cmdsrv.client.CmdsrvRestClientJersey;
+import com.google.common.base.Charsets;
 import com.sun.jersey.api.client.Client;
 import com.sun.jersey.api.client.config.ClientConfig;
 import com.sun.jersey.api.client.config.DefaultClientConfig;
@@ -29,7 +30,22 @@ import spark.Request;
 import spark.Response;
 import spark.Route;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
+
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static spark.Spark.delete;
+import static spark.Spark.get;
 import static spark.Spark.post;
 
 /**
@@ -43,6 +59,10 @@ public class CmdsrvRestClientJerseyTest {
     public static final String JSON_RES_CMD_1_STDOUT = "plop";
     public static final String JSON_RES_CMD_1 = "{\"cmd\": [\"ls\", \"-a\", \"-l\"], \"retval\": 0, \"stderr\": \"" + JSON_RES_CMD_1_STDERR + "\", \"stdout\": \"" + JSON_RES_CMD_1_STDOUT + "\"}";
 
+    public static final String SPOOL_ID = "0123456789abcdef0123456789abcdef";
+    public static final String SPOOLED_STDOUT = "a spooled output, \u00e9";
+    public static final AtomicInteger SPOOL_DELETES = new AtomicInteger();
+
     @BeforeClass
     public static void beforeClass() {
         post(new Route("/cmd/200") {
@@ -56,6 +76,107 @@ public class CmdsrvRestClientJerseyTest {
                 return JSON_RES_CMD_1;
             }
         });
+        post(new Route("/cmd/200/batch") {
+            @Override
+            public Object handle(Request req, Response res) {
+                assertEquals(req.headers("Content-Type"), "application/json");
+                assertEquals(req.body(), "{\"requests\":[" + JSON_REQ_CMD_1 + "," + JSON_REQ_CMD_1 + "]}");
+
+                res.status(200);
+                res.header("Content-Type", "application/json");
+                return "{\"responses\": [" + JSON_RES_CMD_1 + ", " + JSON_RES_CMD_1 + "]}";
+            }
+        });
+        post(new Route("/timeout/cmd") {
+            @Override
+            public Object handle(Request req, Response res) {
+                assertEquals("{\"cmd\":[\"sleep\",\"60\"],\"timeoutms\":500}", req.body());
+
+                res.status(504);
+                res.header("Content-Type", "application/json");
+                return "{\"error\": {\"status\": 504, \"msg\": \"Command timed out after 500 ms\"}}";
+            }
+        });
+        post(new Route("/busy/cmd") {
+            @Override
+            public Object handle(Request req, Response res) {
+                res.status(503);
+                res.header("Content-Type", "application/json");
+                res.header("Retry-After", "2");
+                return "{\"error\": {\"status\": 503, \"msg\": \"Too many requests queued, try again later\"}}";
+            }
+        });
+        post(new Route("/stdin/cmd/stdin") {
+            @Override
+            public Object handle(Request req, Response res) {
+                assertEquals(CmdsrvRestClientJersey.STDIN_CONTENT_TYPE, req.headers("Content-Type"));
+                assertEquals("chunked", req.headers("Transfer-Encoding"));
+                String[] body = req.body().split("\n", 2);
+                assertEquals("{\"cmd\":[\"wc\",\"-c\"]}", body[0]);
+
+                res.status(200);
+                res.header("Content-Type", "application/json");
+                return "{\"cmd\": [\"wc\", \"-c\"], \"retval\": 0, \"stdout\": \"" + body[1].length() + "\", \"stderr\": \"\"}";
+            }
+        });
+        post(new Route("/gzip/cmd") {
+            @Override
+            public Object handle(Request req, Response res) {
+                assertEquals(CmdsrvContentEncoding.ACCEPT_ENCODING, req.headers("Accept-Encoding"));
+
+                res.status(200);
+                res.header("Content-Type", "application/json");
+                res.header("Content-Encoding", "gzip");
+                try (GZIPOutputStream out = new GZIPOutputStream(res.raw().getOutputStream())) {
+                    out.write(JSON_RES_CMD_1.getBytes(Charsets.UTF_8));
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+                return "";
+            }
+        });
+        post(new Route("/spool/cmd") {
+            @Override
+            public Object handle(Request req, Response res) {
+                assertEquals("true", req.headers(CmdsrvRestClientJersey.SPOOL_HEADER));
+
+                res.status(200);
+                res.header("Content-Type", "application/json");
+                return "{\"cmd\": [\"cat\", \"big\"], \"retval\": 0, \"stdout\": null, \"stderr\": \"\", \"stdoutbytes\": 20, "
+                        + "\"spool\": {\"id\": \"" + SPOOL_ID + "\", \"stdout\": 20}}";
+            }
+        });
+        get(new Route("/spool/cmd/" + SPOOL_ID + "/stdout") {
+            @Override
+            public Object handle(Request req, Response res) {
+                String range = req.headers("Range");
+                res.status(null == range ? 200 : 206);
+                res.header("Content-Type", "application/octet-stream");
+                if (null == range) {
+                    return SPOOLED_STDOUT;
+                }
+                byte[] data = SPOOLED_STDOUT.getBytes(Charsets.UTF_8);
+                int offset = Integer.parseInt(range.substring("bytes=".length(), range.length() - 1));
+                return new String(data, offset, data.length - offset, Charsets.UTF_8);
+            }
+        });
+        get(new Route("/spool/norange/" + SPOOL_ID + "/stdout") {
+            @Override
+            public Object handle(Request req, Response res) {
+                res.status(200);
+                res.header("Content-Type", "application/octet-stream");
+                return SPOOLED_STDOUT;
+            }
+        });
+        delete(new Route("/spool/cmd/" + SPOOL_ID) {
+            @Override
+            public Object handle(Request req, Response res) {
+                SPOOL_DELETES.incrementAndGet();
+                res.status(204);
+                return "";
+            }
+        });
+        SparkTestSupport.awaitStarted();
     }
 
     @Test
@@ -76,4 +197,127 @@ public class CmdsrvRestClientJerseyTest {
         assertEquals(JSON_RES_CMD_1_STDERR, res.getStderr());
     }
 
+    @Test
+    public void testExecuteBatch() {
+        // given
+        Client client = Client.create(new DefaultClientConfig());
+        CmdsrvRestClientJersey sut = new CmdsrvRestClientJersey(client.resource("http://localhost:4567/cmd/200"));
+        CmdsrvRequest req = new CmdsrvRequest("ls", "-a", "-l");
+
+        // when
+        List<CmdsrvResponse> res = sut.executeBatch(Arrays.asList(req, req));
+
+        // then
+        assertEquals(2, res.size());
+        for (CmdsrvResponse r : res) {
+            assertEquals(0, r.getRetval());
+            assertEquals(JSON_RES_CMD_1_STDOUT, r.getStdout());
+        }
+    }
+
+    @Test(expected = CmdsrvTimeoutException.class)
+    public void testExecuteTimeout() {
+        // given
+        CmdsrvRestClientJersey sut = new CmdsrvRestClientJersey(Client.create().resource("http://localhost:4567/timeout/cmd"));
+
+        // when
+        sut.execute(new CmdsrvRequest("sleep", "60").timeout(500, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void testExecuteRejected() {
+        // given
+        CmdsrvRestClientJersey sut = new CmdsrvRestClientJersey(Client.create().resource("http://localhost:4567/busy/cmd"));
+
+        // when
+        try {
+            sut.execute(new CmdsrvRequest("ls"));
+            fail();
+        } catch (CmdsrvRejectedException e) {
+            // then
+            assertEquals(503, e.getStatusCode());
+            assertEquals(2000, e.getRetryAfterMillis());
+        }
+    }
+
+    @Test
+    public void testExecuteStdin() {
+        // given
+        CmdsrvRestClientJersey sut = new CmdsrvRestClientJersey(Client.create().resource("http://localhost:4567/stdin/cmd"));
+
+        // when
+        CmdsrvResponse res = sut.execute(new CmdsrvRequest("wc", "-c"), new ByteArrayInputStream(new byte[200000]));
+
+        // then
+        assertEquals(0, res.getRetval());
+        assertEquals("200000", res.getStdout());
+    }
+
+    @Test
+    public void testExecuteGzipResponse() {
+        // given
+        CmdsrvRestClientJersey sut = new CmdsrvRestClientJersey(Client.create().resource("http://localhost:4567/gzip/cmd"));
+
+        // when
+        CmdsrvResponse res = sut.execute(new CmdsrvRequest("ls", "-a", "-l"));
+
+        // then
+        assertEquals(0, res.getRetval());
+        assertEquals("ls -a -l", res.getCmdJoinedStr());
+    }
+
+    @Test
+    public void testExecuteFetchesSpooledOutput() {
+        // given
+        Client client = Client.create(new DefaultClientConfig());
+        CmdsrvRestClientJersey sut = new CmdsrvRestClientJersey(client.resource("http://localhost:4567/spool/cmd"));
+        int deletes = SPOOL_DELETES.get();
+
+        // when
+        CmdsrvResponse res = sut.execute(new CmdsrvRequest("cat", "big"));
+
+        // then
+        assertEquals(SPOOLED_STDOUT, res.getStdout());
+        assertFalse(res.isStdoutSpooled());
+        assertNull(res.getSpoolId());
+        assertEquals(deletes + 1, SPOOL_DELETES.get());
+    }
+
+    @Test
+    public void testCopySpooledFromOffset() throws Exception {
+        // given
+        Client client = Client.create(new DefaultClientConfig());
+        CmdsrvRestClientJersey sut = new CmdsrvRestClientJersey(client.resource("http://localhost:4567/spool/cmd"));
+        sut.setFetchSpooled(false);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        // when
+        CmdsrvResponse res = sut.execute(new CmdsrvRequest("cat", "big"));
+        long copied = sut.copySpooled(res, CmdsrvResponse.STDOUT, 2, out);
+
+        // then
+        assertTrue(res.isStdoutSpooled());
+        assertNull(res.getStdout());
+        assertEquals(SPOOL_ID, res.getSpoolId());
+        assertEquals(SPOOLED_STDOUT.getBytes(Charsets.UTF_8).length - 2, copied);
+        assertEquals(SPOOLED_STDOUT.substring(2), out.toString("UTF-8"));
+    }
+
+    @Test
+    public void testCopySpooledFromOffsetRangeIgnored() throws Exception {
+        // given
+        Client client = Client.create(new DefaultClientConfig());
+        CmdsrvRestClientJersey sut = new CmdsrvRestClientJersey(client.resource("http://localhost:4567/spool/norange"));
+        CmdsrvResponse res = new CmdsrvResponse(0, null, "", new String[]{"cat", "big"});
+        res.setSpool(SPOOL_ID, true, false);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        // when
+        long copied = sut.copySpooled(res, CmdsrvResponse.STDOUT, 2, out);
+
+        // then
+        assertEquals(SPOOLED_STDOUT.getBytes(Charsets.UTF_8).length - 2, copied);
+        assertEquals(SPOOLED_STDOUT.substring(2), out.toString("UTF-8"));
+    }
+
 }
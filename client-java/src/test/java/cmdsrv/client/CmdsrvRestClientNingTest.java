@@ -0,0 +1,171 @@
+/*
+* Copyright 2013 Christophe Uberri <cuberri@gmail.com>
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package cmdsrv.client;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.ning.http.client.AsyncHttpClient;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import spark.Request;
+import spark.Response;
+import spark.Route;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static spark.Spark.post;
+
+/**
+ * @author Christophe Uberri <cuberri@gmail.com>
+ */
+public class CmdsrvRestClientNingTest {
+
+    public static final String JSON_RES_CMD_1_STDERR = "plip";
+    public static final String JSON_RES_CMD_1_STDOUT = "plop";
+    public static final String JSON_RES_CMD_1 = "{\"cmd\": [\"ls\", \"-a\", \"-l\"], \"retval\": 0, \"stderr\": \"" + JSON_RES_CMD_1_STDERR + "\", \"stdout\": \"" + JSON_RES_CMD_1_STDOUT + "\"}";
+
+    private static AsyncHttpClient client;
+
+    @BeforeClass
+    public static void beforeClass() {
+        client = new AsyncHttpClient();
+        post(new Route("/cmd/ning/200") {
+            @Override
+            public Object handle(Request req, Response res) {
+                assertEquals(req.headers("Content-Type"), "application/json");
+                assertEquals(req.body(), "{\"cmd\":[\"ls\",\"-a\",\"-l\"]}");
+
+                res.status(200);
+                res.header("Content-Type", "application/json");
+                return JSON_RES_CMD_1;
+            }
+        });
+        post(new Route("/cmd/ning/hang") {
+            @Override
+            public Object handle(Request req, Response res) {
+                try {
+                    Thread.sleep(10000);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return JSON_RES_CMD_1;
+            }
+        });
+        post(new Route("/cmd/ning/500") {
+            @Override
+            public Object handle(Request req, Response res) {
+                res.status(500);
+                return "boom";
+            }
+        });
+        SparkTestSupport.awaitStarted();
+    }
+
+    @AfterClass
+    public static void afterClass() {
+        client.close();
+    }
+
+    @Test
+    public void testExecute() {
+        // given
+        CmdsrvRestClientNing sut = new CmdsrvRestClientNing(client, "http://localhost:4567/cmd/ning/200", 1);
+        CmdsrvRequest req = new CmdsrvRequest("ls", "-a", "-l");
+
+        // when
+        CmdsrvResponse res = sut.execute(req);
+
+        // then
+        assertEquals(0, res.getRetval());
+        assertEquals(JSON_RES_CMD_1_STDOUT, res.getStdout());
+        assertEquals(JSON_RES_CMD_1_STDERR, res.getStderr());
+    }
+
+    @Test
+    public void testExecuteAsyncAboveInFlightCap() throws Exception {
+        // given
+        CmdsrvRestClientNing sut = new CmdsrvRestClientNing(client, "http://localhost:4567/cmd/ning/200", 2);
+        List<ListenableFuture<CmdsrvResponse>> futures = new ArrayList<>();
+
+        // when
+        for (int i = 0; i < 20; i++) {
+            futures.add(sut.executeAsync(new CmdsrvRequest("ls", "-a", "-l")));
+        }
+
+        // then
+        for (ListenableFuture<CmdsrvResponse> future : futures) {
+            assertEquals(JSON_RES_CMD_1_STDOUT, future.get().getStdout());
+        }
+        assertEquals(0, sut.getPendingCount());
+    }
+
+    @Test
+    public void testExecuteAboveMaxPending() {
+        // given
+        CmdsrvRestClientNing sut = new CmdsrvRestClientNing(client, "http://localhost:4567/cmd/ning/hang", 1, 1, CmdsrvJsonCodec.INSTANCE);
+        ListenableFuture<CmdsrvResponse> sent = sut.executeAsync(new CmdsrvRequest("ls", "-a", "-l"));
+        ListenableFuture<CmdsrvResponse> queued = sut.executeAsync(new CmdsrvRequest("ls", "-a", "-l"));
+        long start = System.nanoTime();
+
+        // when
+        try {
+            sut.execute(new CmdsrvRequest("ls", "-a", "-l"));
+            fail();
+        } catch (CmdsrvRejectedException e) {
+            // then
+            assertEquals(0, e.getStatusCode());
+            assertEquals(1, sut.getPendingCount());
+        } finally {
+            queued.cancel(true);
+            sent.cancel(true);
+        }
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(1));
+    }
+
+    @Test
+    public void testExecuteDeadline() {
+        // given
+        CmdsrvRestClientNing sut = new CmdsrvRestClientNing(client, "http://localhost:4567/cmd/ning/hang", 1);
+        long start = System.nanoTime();
+
+        // when
+        try {
+            sut.execute(new CmdsrvRequest("sleep", "60").timeout(100, TimeUnit.MILLISECONDS));
+            fail();
+        } catch (CmdsrvTimeoutException e) {
+            // then
+            assertEquals(0, e.getStatusCode());
+        }
+        assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(100 + CmdsrvRestClientNing.DEADLINE_GRACE_MILLIS + 2000));
+        assertEquals(0, sut.getPendingCount());
+    }
+
+    @Test(expected = CmdsrvClientException.class)
+    public void testExecuteServerError() {
+        // given
+        CmdsrvRestClientNing sut = new CmdsrvRestClientNing(client, "http://localhost:4567/cmd/ning/500", 1);
+
+        // when
+        sut.execute(new CmdsrvRequest("ls", "-a", "-l"));
+    }
+
+}
@@ -0,0 +1,156 @@
+/*
+* Copyright 2013 Christophe Uberri <cuberri@gmail.com>
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package cmdsrv.client;
+
+import com.google.common.io.Files;
+import com.sun.jersey.api.client.ClientHandlerException;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Christophe Uberri <cuberri@gmail.com>
+ */
+public class CmdsrvRetryingClientTest {
+
+    @Test
+    public void testRetryIdempotent() {
+        // given
+        StubClient stub = new StubClient().failFirst(2, 500);
+        CmdsrvRetryingClient sut = new CmdsrvRetryingClient(stub, new CmdsrvBackoffRetryPolicy(3, 1, 1), 0.1, 0);
+
+        // when
+        CmdsrvResponse res = sut.execute(new CmdsrvRequest("ls").idempotent());
+
+        // then
+        assertEquals("ok", res.getStdout());
+        assertEquals(3, stub.getCalls());
+        assertEquals(2, sut.getRetryCount());
+    }
+
+    @Test
+    public void testNoRetryNotIdempotent() {
+        // given
+        StubClient stub = new StubClient().failFirst(1, 500);
+        CmdsrvRetryingClient sut = new CmdsrvRetryingClient(stub, new CmdsrvBackoffRetryPolicy(3, 1, 1), 0.1, 0);
+
+        // when
+        try {
+            sut.execute(new CmdsrvRequest("rm", "a.txt"));
+            fail();
+        } catch (CmdsrvClientException e) {
+            // then
+            assertEquals(500, e.getStatusCode());
+        }
+        assertEquals(1, stub.getCalls());
+        assertEquals(0, sut.getRetryCount());
+    }
+
+    @Test
+    public void testRetryRejectedBatch() {
+        // given
+        StubClient stub = new StubClient().failFirst(1, 503);
+        CmdsrvRetryingClient sut = new CmdsrvRetryingClient(stub, new CmdsrvBackoffRetryPolicy(3, 1, 1), 0.1, 0);
+
+        // when
+        List<CmdsrvResponse> responses = sut.executeBatch(Arrays.asList(new CmdsrvRequest("rm", "a.txt"), new CmdsrvRequest("ls")));
+
+        // then
+        assertEquals(2, responses.size());
+        assertEquals(2, stub.getCalls());
+        assertEquals(1, sut.getRetryCount());
+    }
+
+    @Test
+    public void testRetryBudget() {
+        // given
+        StubClient stub = new StubClient().failFirst(Integer.MAX_VALUE, 502);
+        CmdsrvRetryingClient sut = new CmdsrvRetryingClient(stub, new CmdsrvBackoffRetryPolicy(100, 0, 0), 0, 0);
+
+        // when
+        try {
+            sut.execute(new CmdsrvRequest("ls").idempotent());
+            fail();
+        } catch (CmdsrvClientException e) {
+            // expected
+        }
+
+        // then
+        assertEquals((long) CmdsrvRetryingClient.BUDGET_BURST, sut.getRetryCount());
+        assertEquals((int) CmdsrvRetryingClient.BUDGET_BURST + 1, stub.getCalls());
+    }
+
+    @Test
+    public void testHedgeSlowRequest() throws Exception {
+        // given
+        CmdsrvRetryingClient sut = new CmdsrvRetryingClient(new CmdsrvLocalClient(), new CmdsrvBackoffRetryPolicy(0, 0, 0), 0.1, 95);
+        for (int i = 0; i < CmdsrvRetryingClient.HEDGE_MIN_SAMPLES; i++) {
+            sut.execute(new CmdsrvRequest("true").idempotent());
+        }
+        assertEquals(0, sut.getHedgeCount());
+        // the first execution to create the lock hangs, the other one answers right away
+        File dir = Files.createTempDir();
+        String script = "cd " + dir + " && if mkdir lock; then echo $$ > pid; exec sleep 30; fi; echo ok";
+
+        // when
+        long start = System.nanoTime();
+        CmdsrvResponse res = sut.execute(new CmdsrvRequest("sh", "-c", script).idempotent());
+
+        // then
+        assertEquals("ok\n", res.getStdout());
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(10));
+        assertEquals(1, sut.getHedgeCount());
+        String loser = CmdsrvLocalClientTest.awaitPid(new File(dir, "pid"));
+        assertTrue("the slow attempt should be destroyed", CmdsrvLocalClientTest.awaitDeath(loser));
+    }
+
+    @Test
+    public void testNoHedgeBlockingClient() {
+        // given
+        StubClient stub = new StubClient();
+        CmdsrvRetryingClient sut = new CmdsrvRetryingClient(stub, new CmdsrvBackoffRetryPolicy(0, 0, 0), 0.1, 95);
+
+        // when
+        for (int i = 0; i < CmdsrvRetryingClient.HEDGE_MIN_SAMPLES + 10; i++) {
+            sut.execute(new CmdsrvRequest("ls").idempotent());
+        }
+
+        // then : a blocking client cannot be cancelled
+        assertEquals(0, sut.getHedgeCount());
+    }
+
+    @Test
+    public void testBackoffPolicy() {
+        // given
+        CmdsrvBackoffRetryPolicy sut = new CmdsrvBackoffRetryPolicy(2, 100, 150);
+        CmdsrvRequest idempotent = new CmdsrvRequest("ls").idempotent();
+
+        // then
+        long delay = sut.getRetryDelayMillis(idempotent, new CmdsrvClientException("unreachable", 0), 1);
+        assertTrue(delay >= 0 && delay <= 150);
+        assertTrue(sut.getRetryDelayMillis(idempotent, new ClientHandlerException("refused"), 0) >= 0);
+        assertTrue(sut.getRetryDelayMillis(new CmdsrvRequest("rm", "a.txt"), new CmdsrvRejectedException("busy", 503, 1000), 0) >= 1000);
+        assertEquals(-1, sut.getRetryDelayMillis(idempotent, new CmdsrvClientException("unreachable", 0), 2));
+        assertEquals(-1, sut.getRetryDelayMillis(idempotent, new CmdsrvTimeoutException("timed out", 504), 0));
+        assertEquals(-1, sut.getRetryDelayMillis(idempotent, new CmdsrvClientException("not found", 404), 0));
+        assertEquals(-1, sut.getRetryDelayMillis(new CmdsrvRequest("rm", "a.txt"), new CmdsrvClientException("unreachable", 0), 0));
+    }
+}
@@ -0,0 +1,116 @@
+/*
+* Copyright 2013 Christophe Uberri <cuberri@gmail.com>
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package cmdsrv.client;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Christophe Uberri <cuberri@gmail.com>
+ */
+public class CmdsrvRoutingClientTest {
+
+    private static final ICmdsrvRoutingPolicy LOCAL_UNLESS_REMOTE = new ICmdsrvRoutingPolicy() {
+        @Override
+        public boolean isLocal(CmdsrvRequest req) {
+            return !"remote".equals(req.getCmd()[0]);
+        }
+    };
+
+    @Test
+    public void testExecuteRouted() {
+        // given
+        CmdsrvRoutingClient sut = new CmdsrvRoutingClient(new StubClient("local"), new StubClient("remote"), LOCAL_UNLESS_REMOTE);
+
+        // when
+        CmdsrvResponse local = sut.execute(new CmdsrvRequest("ls"));
+        CmdsrvResponse remote = sut.execute(new CmdsrvRequest("remote"));
+
+        // then
+        assertEquals("local", local.getStdout());
+        assertEquals("remote", remote.getStdout());
+        assertEquals(1, sut.getLocalCount());
+        assertEquals(1, sut.getRemoteCount());
+    }
+
+    @Test
+    public void testExecuteFallback() {
+        // given
+        CmdsrvRoutingClient sut = new CmdsrvRoutingClient(new StubClient("local") {
+            @Override
+            public CmdsrvResponse execute(CmdsrvRequest req) {
+                throw new CmdsrvLaunchException("Cannot allocate memory", null);
+            }
+        }, new StubClient("remote"), LOCAL_UNLESS_REMOTE);
+
+        // when
+        CmdsrvResponse res = sut.execute(new CmdsrvRequest("ls"));
+
+        // then
+        assertEquals("remote", res.getStdout());
+        assertEquals(1, sut.getFallbackCount());
+    }
+
+    @Test
+    public void testExecuteBatchKeepsOrder() {
+        // given
+        CmdsrvRoutingClient sut = new CmdsrvRoutingClient(new StubClient("local"), new StubClient("remote"), LOCAL_UNLESS_REMOTE);
+
+        // when
+        List<CmdsrvResponse> res = sut.executeBatch(Arrays.asList(new CmdsrvRequest("remote"), new CmdsrvRequest("ls"), new CmdsrvRequest("remote")));
+
+        // then
+        assertEquals("remote", res.get(0).getStdout());
+        assertEquals("local", res.get(1).getStdout());
+        assertEquals("remote", res.get(2).getStdout());
+        assertEquals(2, sut.getRemoteCount());
+    }
+
+    @Test
+    public void testExecuteBatchLocalTimeout() {
+        // given
+        CmdsrvRoutingClient sut = new CmdsrvRoutingClient(new CmdsrvLocalClient(), new StubClient("remote"), LOCAL_UNLESS_REMOTE);
+
+        // when
+        List<CmdsrvResponse> res = sut.executeBatch(Arrays.asList(
+                new CmdsrvRequest("echo", "a"),
+                new CmdsrvRequest("sleep", "10").timeout(200, TimeUnit.MILLISECONDS),
+                new CmdsrvRequest("remote")));
+
+        // then
+        assertEquals("a\n", res.get(0).getStdout());
+        assertTrue(res.get(1).isTimedOut());
+        assertEquals("remote", res.get(2).getStdout());
+        assertEquals(2, sut.getLocalCount());
+    }
+
+    @Test
+    public void testHeapPolicy() {
+        // given
+        long committed = Runtime.getRuntime().totalMemory();
+
+        // when
+        // then
+        assertFalse(new CmdsrvHeapRoutingPolicy(committed / 2).isLocal(new CmdsrvRequest("ls")));
+        assertTrue(new CmdsrvHeapRoutingPolicy(Long.MAX_VALUE).isLocal(new CmdsrvRequest("ls")));
+    }
+}
@@ -0,0 +1,72 @@
+/*
+* Copyright 2013 Christophe Uberri <cuberri@gmail.com>
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package cmdsrv.client;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * @author Christophe Uberri <cuberri@gmail.com>
+ */
+public class CmdsrvStreamReaderTest {
+
+    @Test
+    public void testRead() throws Exception {
+        // given
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        DataOutputStream frames = new DataOutputStream(body);
+        frame(frames, CmdsrvStreamReader.STDOUT, "hello ".getBytes("UTF-8"));
+        frame(frames, CmdsrvStreamReader.STDERR, "oops".getBytes("UTF-8"));
+        frame(frames, CmdsrvStreamReader.STDOUT, new byte[100 * 1024]);
+        frames.writeByte(CmdsrvStreamReader.RETVAL);
+        frames.writeInt(4);
+        frames.writeInt(3);
+        ByteArrayOutputStream stdout = new ByteArrayOutputStream();
+        ByteArrayOutputStream stderr = new ByteArrayOutputStream();
+
+        // when
+        int retval = CmdsrvStreamReader.read(new ByteArrayInputStream(body.toByteArray()), new CmdsrvOutputStreamHandler(stdout, stderr));
+
+        // then
+        assertEquals(3, retval);
+        assertEquals(6 + 100 * 1024, stdout.size());
+        assertEquals("oops", stderr.toString("UTF-8"));
+    }
+
+    @Test(expected = EOFException.class)
+    public void testReadTruncated() throws Exception {
+        // given
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        frame(new DataOutputStream(body), CmdsrvStreamReader.STDOUT, "hello".getBytes("UTF-8"));
+
+        // when
+        CmdsrvStreamReader.read(new ByteArrayInputStream(body.toByteArray()), new CmdsrvOutputStreamHandler(new ByteArrayOutputStream(), new ByteArrayOutputStream()));
+    }
+
+    private static void frame(DataOutputStream out, byte type, byte[] payload) throws IOException {
+        out.writeByte(type);
+        out.writeInt(payload.length);
+        out.write(payload);
+    }
+}
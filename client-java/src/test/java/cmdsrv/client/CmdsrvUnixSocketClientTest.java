@@ -0,0 +1,339 @@
+/*
+* Copyright 2013 Christophe Uberri <cuberri@gmail.com>
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package cmdsrv.client;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ProtocolFamily;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs against a scripted HTTP server listening on a unix domain socket, which answers according to the first
+ * argument of the command. Skipped on runtimes older than Java 16.
+ *
+ * @author Christophe Uberri <cuberri@gmail.com>
+ */
+public class CmdsrvUnixSocketClientTest {
+
+    private static final String RESPONSE = "{\"cmd\": [\"ls\"], \"retval\": 0, \"stderr\": \"\", \"stdout\": \"plop\"}";
+
+    private File dir;
+    private StubServer server;
+
+    @Before
+    public void before() throws Exception {
+        boolean supported = true;
+        try {
+            Class.forName("java.net.UnixDomainSocketAddress");
+        } catch (ClassNotFoundException e) {
+            supported = false;
+        }
+        Assume.assumeTrue(supported);
+        dir = Files.createTempDir();
+        server = new StubServer(new File(dir, "cmdsrv.sock").getPath());
+    }
+
+    @After
+    public void after() throws Exception {
+        if (null != server) {
+            server.close();
+            new File(dir, "cmdsrv.sock").delete();
+            dir.delete();
+        }
+    }
+
+    @Test
+    public void testExecuteKeepAlive() {
+        // given
+        CmdsrvUnixSocketClient sut = new CmdsrvUnixSocketClient(server.path, 1);
+
+        // when
+        CmdsrvResponse first = sut.execute(new CmdsrvRequest("ok"));
+        CmdsrvResponse second = sut.execute(new CmdsrvRequest("ok"));
+
+        // then
+        assertEquals("plop", first.getStdout());
+        assertEquals("plop", second.getStdout());
+        assertEquals(1, server.connections.get());
+        sut.close();
+    }
+
+    @Test
+    public void testExecuteConnectionClose() {
+        // given
+        CmdsrvUnixSocketClient sut = new CmdsrvUnixSocketClient(server.path, 1);
+
+        // when
+        sut.execute(new CmdsrvRequest("close"));
+        sut.execute(new CmdsrvRequest("close"));
+
+        // then
+        assertEquals(2, server.connections.get());
+    }
+
+    @Test
+    public void testExecuteWithoutContentLength() {
+        // given
+        CmdsrvUnixSocketClient sut = new CmdsrvUnixSocketClient(server.path, 1);
+
+        // when
+        CmdsrvResponse res = sut.execute(new CmdsrvRequest("nolength"));
+        sut.execute(new CmdsrvRequest("ok"));
+
+        // then : the body ends with the connection, which cannot be reused
+        assertEquals("plop", res.getStdout());
+        assertEquals(2, server.connections.get());
+    }
+
+    @Test
+    public void testExecuteBatch() {
+        // given
+        CmdsrvUnixSocketClient sut = new CmdsrvUnixSocketClient(server.path, 1);
+
+        // when
+        List<CmdsrvResponse> res = sut.executeBatch(Arrays.asList(new CmdsrvRequest("ok"), new CmdsrvRequest("ok")));
+
+        // then
+        assertEquals(2, res.size());
+        assertEquals("plop", res.get(1).getStdout());
+    }
+
+    @Test
+    public void testExecuteRejected() {
+        // given
+        CmdsrvUnixSocketClient sut = new CmdsrvUnixSocketClient(server.path, 1);
+
+        // when
+        try {
+            sut.execute(new CmdsrvRequest("busy"));
+            fail();
+        } catch (CmdsrvRejectedException e) {
+            // then
+            assertEquals(503, e.getStatusCode());
+            assertEquals(2000, e.getRetryAfterMillis());
+        }
+    }
+
+    @Test
+    public void testExecuteUnreadableResponse() {
+        // given
+        CmdsrvUnixSocketClient sut = new CmdsrvUnixSocketClient(server.path, 1);
+
+        // when
+        try {
+            sut.execute(new CmdsrvRequest("garbage"));
+            fail();
+        } catch (CmdsrvClientException e) {
+            // then
+            assertTrue(e.getMessage(), e.getMessage().startsWith("Could not read response"));
+        }
+    }
+
+    @Test
+    public void testExecuteAfterServerClosedIdleConnection() throws Exception {
+        // given
+        CmdsrvUnixSocketClient sut = new CmdsrvUnixSocketClient(server.path, 1);
+        sut.execute(new CmdsrvRequest("hangup"));
+        Thread.sleep(100);
+
+        // when
+        CmdsrvResponse res = sut.execute(new CmdsrvRequest("rm", "a.txt"));
+
+        // then : the closed connection is not used
+        assertEquals("plop", res.getStdout());
+        assertEquals(2, server.connections.get());
+        assertEquals(2, server.requests.get());
+    }
+
+    @Test
+    public void testNoResendOfNotIdempotentRequest() {
+        // given
+        CmdsrvUnixSocketClient sut = new CmdsrvUnixSocketClient(server.path, 1);
+        sut.execute(new CmdsrvRequest("ok"));
+
+        // when : the server closes the connection without answering
+        try {
+            sut.execute(new CmdsrvRequest("drop"));
+            fail();
+        } catch (CmdsrvClientException e) {
+            // then
+            assertEquals(0, e.getStatusCode());
+        }
+        assertEquals(2, server.requests.get());
+    }
+
+    @Test
+    public void testResendOfIdempotentRequest() {
+        // given
+        CmdsrvUnixSocketClient sut = new CmdsrvUnixSocketClient(server.path, 1);
+        sut.execute(new CmdsrvRequest("ok"));
+
+        // when : the server closes the connection without answering the first time
+        CmdsrvResponse res = sut.execute(new CmdsrvRequest("dropfirst").idempotent());
+
+        // then
+        assertEquals("plop", res.getStdout());
+        assertEquals(3, server.requests.get());
+    }
+
+    /**
+     * Minimal HTTP/1.1 server, one thread per connection
+     */
+    private static class StubServer {
+
+        private final String path;
+        private final ServerSocketChannel channel;
+        private final AtomicInteger connections = new AtomicInteger();
+        private final AtomicInteger requests = new AtomicInteger();
+        private final AtomicInteger dropped = new AtomicInteger();
+
+        private StubServer(String path) throws Exception {
+            this.path = path;
+            Class<?> addressClass = Class.forName("java.net.UnixDomainSocketAddress");
+            SocketAddress address = (SocketAddress) addressClass.getMethod("of", String.class).invoke(null, path);
+            ProtocolFamily unix = StandardProtocolFamily.valueOf("UNIX");
+            channel = (ServerSocketChannel) ServerSocketChannel.class.getMethod("open", ProtocolFamily.class).invoke(null, unix);
+            channel.bind(address);
+            Thread acceptor = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        while (true) {
+                            final SocketChannel client = channel.accept();
+                            connections.incrementAndGet();
+                            Thread handler = new Thread(new Runnable() {
+                                @Override
+                                public void run() {
+                                    serve(client);
+                                }
+                            });
+                            handler.setDaemon(true);
+                            handler.start();
+                        }
+                    } catch (IOException e) {
+                        // closed
+                    }
+                }
+            });
+            acceptor.setDaemon(true);
+            acceptor.start();
+        }
+
+        private void serve(SocketChannel client) {
+            try (SocketChannel closed = client) {
+                InputStream in = new BufferedInputStream(Channels.newInputStream(client));
+                OutputStream out = Channels.newOutputStream(client);
+                String body;
+                while (null != (body = readRequest(in))) {
+                    requests.incrementAndGet();
+                    if (body.contains("\"drop\"") || (body.contains("\"dropfirst\"") && 1 == dropped.incrementAndGet())) {
+                        return;
+                    }
+                    String head;
+                    String content = RESPONSE;
+                    if (body.contains("\"close\"")) {
+                        head = "HTTP/1.1 200 OK\r\nContent-Length: " + content.length() + "\r\nConnection: close\r\n";
+                    } else if (body.contains("\"nolength\"")) {
+                        head = "HTTP/1.1 200 OK\r\n";
+                    } else if (body.contains("\"busy\"")) {
+                        content = "{\"error\": {\"status\": 503}}";
+                        head = "HTTP/1.1 503 Service Unavailable\r\nContent-Length: " + content.length() + "\r\nRetry-After: 2\r\n";
+                    } else if (body.contains("\"garbage\"")) {
+                        content = "{\"retval\": ";
+                        head = "HTTP/1.1 200 OK\r\nContent-Length: " + content.length() + "\r\n";
+                    } else {
+                        if (body.contains("\"requests\"")) {
+                            content = "{\"responses\": [" + RESPONSE + ", " + RESPONSE + "]}";
+                        }
+                        head = "HTTP/1.1 200 OK\r\nContent-Length: " + content.length() + "\r\n";
+                    }
+                    out.write((head + "Content-Type: application/json\r\n\r\n" + content).getBytes(Charsets.UTF_8));
+                    out.flush();
+                    if (!head.contains("Content-Length") || head.contains("close") || body.contains("\"hangup\"")) {
+                        return;
+                    }
+                }
+            } catch (IOException e) {
+                // client gone
+            }
+        }
+
+        /**
+         * @return the body of the next request, null once the client closed the connection
+         */
+        private static String readRequest(InputStream in) throws IOException {
+            int length = 0;
+            String line;
+            boolean first = true;
+            while (null != (line = readLine(in)) && !line.isEmpty()) {
+                first = false;
+                if (line.toLowerCase().startsWith("content-length:")) {
+                    length = Integer.parseInt(line.substring("content-length:".length()).trim());
+                }
+            }
+            if (first && null == line) {
+                return null;
+            }
+            byte[] body = new byte[length];
+            int off = 0;
+            while (off < length) {
+                int read = in.read(body, off, length - off);
+                if (-1 == read) {
+                    return null;
+                }
+                off += read;
+            }
+            return new String(body, Charsets.UTF_8);
+        }
+
+        private static String readLine(InputStream in) throws IOException {
+            ByteArrayOutputStream line = new ByteArrayOutputStream();
+            int c;
+            while (-1 != (c = in.read())) {
+                if ('\n' == c) {
+                    String s = new String(line.toByteArray(), Charsets.US_ASCII);
+                    return s.endsWith("\r") ? s.substring(0, s.length() - 1) : s;
+                }
+                line.write(c);
+            }
+            return null;
+        }
+
+        private void close() throws IOException {
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,51 @@
+/*
+* Copyright 2013 Christophe Uberri <cuberri@gmail.com>
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package cmdsrv.client;
+
+import java.io.IOException;
+import java.net.Socket;
+
+/**
+ * Spark starts its embedded server in a background thread : tests registering routes must wait for it before
+ * sending their first request.
+ *
+ * @author Christophe Uberri <cuberri@gmail.com>
+ */
+public final class SparkTestSupport {
+
+    public static final int PORT = 4567;
+
+    private SparkTestSupport() {
+    }
+
+    public static void awaitStarted() {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (System.currentTimeMillis() < deadline) {
+            try (Socket socket = new Socket("localhost", PORT)) {
+                return;
+            } catch (IOException e) {
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+        throw new IllegalStateException("Spark server did not start on port " + PORT);
+    }
+}
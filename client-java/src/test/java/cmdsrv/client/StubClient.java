@@ -0,0 +1,143 @@
+/*
+* Copyright 2013 Christophe Uberri <cuberri@gmail.com>
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package cmdsrv.client;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * In memory client for the tests of the decorating clients. It answers every request with a fixed stdout, or with the
+ * command line when that stdout is null, except :
+ * <ul>
+ *     <li>the command <code>fail &lt;status&gt; [&lt;retry-after&gt;]</code>, which fails with that status, and
+ *     <code>fail unreachable</code>, which fails as a refused connection</li>
+ *     <li>the command <code>exit &lt;retval&gt;</code>, which answers that retval</li>
+ *     <li>the commands <code>timedout</code> and <code>spooled</code>, answered as killed on timeout and with a spooled
+ *     stdout</li>
+ *     <li>the first calls, when {@link #failFirst(int, int)} is set</li>
+ * </ul>
+ *
+ * @author Christophe Uberri <cuberri@gmail.com>
+ */
+public class StubClient implements ICmdsrvClient {
+
+    private final String stdout;
+    private final AtomicInteger calls = new AtomicInteger();
+    private final AtomicInteger executions = new AtomicInteger();
+    private volatile int failures;
+    private volatile int status;
+    private volatile CountDownLatch release;
+
+    public StubClient() {
+        this("ok");
+    }
+
+    /**
+     * @param stdout The stdout of the responses, null to answer the command line
+     */
+    public StubClient(String stdout) {
+        this.stdout = stdout;
+    }
+
+    /**
+     * Fail the first calls to execute or executeBatch, with a <code>Retry-After</code> of 0
+     *
+     * @param failures
+     * @param status
+     * @return this
+     */
+    public StubClient failFirst(int failures, int status) {
+        this.failures = failures;
+        this.status = status;
+        return this;
+    }
+
+    /**
+     * Make every request wait for the latch (at most 10 seconds) before being answered
+     *
+     * @param release
+     * @return this
+     */
+    public StubClient blockUntil(CountDownLatch release) {
+        this.release = release;
+        return this;
+    }
+
+    /**
+     * @return The number of calls to execute and executeBatch
+     */
+    public int getCalls() {
+        return calls.get();
+    }
+
+    /**
+     * @return The number of requests answered or failed by their command
+     */
+    public int getExecutions() {
+        return executions.get();
+    }
+
+    @Override
+    public CmdsrvResponse execute(CmdsrvRequest req) {
+        call();
+        return answer(req);
+    }
+
+    @Override
+    public List<CmdsrvResponse> executeBatch(List<CmdsrvRequest> reqs) {
+        call();
+        List<CmdsrvResponse> responses = new ArrayList<>();
+        for (CmdsrvRequest req : reqs) {
+            responses.add(answer(req));
+        }
+        return responses;
+    }
+
+    private void call() {
+        if (calls.incrementAndGet() <= failures) {
+            throw CmdsrvClientException.forStatus("failed", status, "0");
+        }
+    }
+
+    private CmdsrvResponse answer(CmdsrvRequest req) {
+        executions.incrementAndGet();
+        CountDownLatch latch = release;
+        if (null != latch) {
+            try {
+                latch.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        String[] cmd = req.getCmd();
+        if ("fail".equals(cmd[0])) {
+            if ("unreachable".equals(cmd[1])) {
+                throw new CmdsrvClientException("Connection refused");
+            }
+            throw CmdsrvClientException.forStatus("failed", Integer.parseInt(cmd[1]), cmd.length > 2 ? cmd[2] : null);
+        }
+        int retval = "exit".equals(cmd[0]) ? Integer.parseInt(cmd[1]) : 0;
+        CmdsrvResponse res = new CmdsrvResponse(retval, null == stdout ? req.getCmdJoinedStr() : stdout, "", cmd);
+        res.setTimedOut("timedout".equals(cmd[0]));
+        if ("spooled".equals(cmd[0])) {
+            res.setSpool("0123456789abcdef0123456789abcdef", true, false);
+        }
+        return res;
+    }
+}
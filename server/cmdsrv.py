@@ -48,11 +48,29 @@
 # ------------------------------------------------------------------------------
 
 import sys
+import os
+import errno
+import uuid
+import tempfile
+import select
+import signal
+import heapq
+import numbers
+import time
+import struct
+import zlib
+import base64
 import subprocess
 import ConfigParser
 import logging
 import json
-from bottle import route, get, post, request, run, abort, error, HTTPResponse, HTTP_CODES
+import socket
+import threading
+import Queue
+import SocketServer
+from wsgiref.simple_server import make_server, WSGIServer, WSGIRequestHandler, ServerHandler
+from wsgiref.handlers import SimpleHandler
+from bottle import route, get, post, delete, request, response, run, abort, error, HTTPResponse, HTTP_CODES, ServerAdapter, parse_range_header
 
 # ------------------------------------------------------------------------------
 # CONST
@@ -60,6 +78,74 @@ from bottle import route, get, post, request, run, abort, error, HTTPResponse, H
 VERSION = ""
 CHANGESET = ""
 CHANGESETDATE = ""
+BATCHWORKERS = 8
+# timeout (seconds) of the commands whose request has none, 0 for none
+DEFAULTTIMEOUT = 0
+WORKERS = 16
+QUEUEDEPTH = 64
+# seconds after which a queued request is answered 503 instead of being
+# served (its client has likely given up), 0 for none
+MAXQUEUEWAIT = 10
+# seconds sent in the Retry-After header of the 503 responses
+RETRYAFTER = 1
+# max reads of the request bytes already received on a rejected connection
+REJECTDRAINREADS = 16
+
+# warm process pool (see the [pool] section of cmdsrv.cfg)
+POOLDEFAULT = False
+WARMPOOL = None
+WORKERSCRIPT = os.path.join(os.path.dirname(os.path.abspath(__file__)), 'cmdsrvworker.py')
+
+# every forked command leads its own process group, killed as a whole on
+# timeout or cancellation
+SESSIONARGS = {'preexec_fn': os.setsid}
+
+# command name -> absolute path of the executable, filled on first use
+PATHCACHE = {}
+STREAMCHUNKSIZE = 65536
+
+# frames of the /cmd/stream responses : 1 byte type + 4 bytes big endian length + payload
+STREAM_CONTENT_TYPE = 'application/x-cmdsrv-stream'
+STREAM_STDOUT = b'O'
+STREAM_STDERR = b'E'
+STREAM_RETVAL = b'R'
+
+# request/response bodies : json, or the length prefixed binary format (see
+# the CODECS section)
+JSON_CONTENT_TYPE = 'application/json'
+BINARY_CONTENT_TYPE = 'application/x-cmdsrv-binary'
+# flags of the binary requests and responses
+BINARY_POOLABLE = 1
+BINARY_TIMEDOUT = 1
+CONTENT_TYPES = (JSON_CONTENT_TYPE, BINARY_CONTENT_TYPE)
+
+# /cmd/stdin bodies : the json request on the first line, then the standard
+# input of the command
+STDIN_CONTENT_TYPE = 'application/x-cmdsrv-stdin'
+STDINMAXHEAD = 1048576
+
+# spool (see the [spool] section of cmdsrv.cfg) : outputs bigger than
+# SPOOLTHRESHOLD bytes are written to SPOOLDIR instead of being returned inline
+# to the clients sending the SPOOL_HEADER. 0 disables it
+SPOOL_HEADER = 'X-Cmdsrv-Spool'
+SPOOLTHRESHOLD = 0
+SPOOLDIR = os.path.join(tempfile.gettempdir(), 'cmdsrv-spool')
+SPOOLTTL = 600
+
+# asynchronous jobs (see the [jobs] section of cmdsrv.cfg) : longest wait of a
+# GET /jobs/<id> request, in seconds
+JOBS = None
+JOBMAXWAIT = 30
+
+# compression (see the [compression] section of cmdsrv.cfg) : response bodies
+# bigger than COMPRESSTHRESHOLD bytes are compressed for the clients accepting
+# it. 0 disables it
+COMPRESSTHRESHOLD = 4096
+COMPRESSLEVEL = 1
+COMPRESSENCODINGS = ('gzip', 'deflate')
+
+# upper bounds (milliseconds) of the latency buckets served by /metrics
+LATENCYBUCKETS = (1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000, 30000, 60000)
 
 # ------------------------------------------------------------------------------
 # API
@@ -77,13 +163,60 @@ def callversion():
     """
     return 'version: {0} changeSet:{1} changeSetDate: {2}'.format(VERSION, CHANGESET, CHANGESETDATE)
 
+@get('/metrics')
+def callmetrics():
+    """Cumulative counters and latency distributions since the server started
+    (see the METRICS section).
+
+    Example :
+    ---------
+
+    $ curl "http://localhost:8055/metrics"
+    {
+        "counters": {"requests.cmd": 12, "commands": 12, "bytes.stdout": 5230, "errors.400": 1, ...},
+        "gauges": {"running": 1, "queued": 0, "uptime": 3600.2, ...},
+        "latencies": {
+            "run": {"count": 12, "sum": 153.2, "max": 52.1, "p50": 10, "p99": 100, "buckets": [[1, 0], [2, 3], ...]},
+            ...
+        }
+    }
+
+    """
+    return METRICS.snapshot()
+
 @post(path='/cmd')
 def callcmd():
     """Execute a command
 
-      - Parse the request body as json
+      - Parse the request body as json (or binary, see the CODECS section)
       - Execute the given extracted command
-      - Return a JSON object describing the result
+      - Return a JSON object describing the result (or its binary form if the
+        request was binary)
+
+    The result is compressed if the client accepts it (see compress()). An
+    output which is not valid utf-8 (archives, images, ...) is base64 encoded
+    in the JSON result, with "stdoutencoding": "base64" (or stderrencoding).
+
+    The JSON result also holds the size of the outputs in bytes and the time
+    spent (milliseconds) waiting for a server worker, reading and parsing the
+    request, creating the process and running it (see execute()). The time
+    spent encoding the result is only known afterwards : see /metrics.
+
+    With 'timeoutms' (or the server default 'timeout'), a command still
+    running after that many milliseconds is killed, along with the processes
+    it started, and the request is answered '504 Gateway Timeout'. So is a
+    command whose client closes the connection before it ends.
+
+    With 'pipe' (JSON only), a list of commands, the stdout of 'cmd' is piped
+    into the first of them, and so on, as a shell pipeline does. 'retval' is
+    the one of the last command, 'retvals' those of every command, 'stdout'
+    the output of the last command and 'stderr' what all of them wrote there :
+    {"cmd": ["grep", "-h", "ERROR", "a.log", "b.log"], "pipe": [["sort"], ["uniq", "-c"]]}
+
+    When the spool is enabled and the request has the X-Cmdsrv-Spool header,
+    an output bigger than the threshold is null in the result and 'spool'
+    tells where to get it (see callspool()) :
+    {..., "stdout": null, "stdoutbytes": 52428800, "spool": {"id": "5f0c...", "stdout": 52428800}}
 
     Example :
     ---------
@@ -97,45 +230,1474 @@ def callcmd():
         "cmd":["unlink", "/tmp/mylink"]
         "stdout":"None",
         "stderr":"None",
-        "retval":0
+        "retval":0,
+        "stdoutbytes":0,
+        "stderrbytes":0,
+        "timing":{"queue":0.0, "read":0.02, "parse":0.01, "spawn":0.9, "run":1.2}
     }
 
     """
     logging.debug('Content-Length:%s' % request.headers.get('Content-Length'))
+    METRICS.count('requests.cmd')
+    timer = Timer(request.environ)
 
-    if request.headers.get("Content-Type") != "application/json":
-        return errorhttpresponse(400, 'I only eat application/json requests mate')
+    ctype = request.headers.get("Content-Type")
+    if ctype not in CONTENT_TYPES:
+        return errorhttpresponse(400, 'I only eat application/json or application/x-cmdsrv-binary requests mate')
 
     # get request data
     reqdata = request.body.read()
-    logging.debug('Got data from request : %s', reqdata)
+    timer.lap('read')
+    logging.debug('Got data from request : %r', reqdata)
     if not reqdata:
         return errorhttpresponse(400, 'No data in the request body')
+    METRICS.count('bytes.request', len(reqdata))
+
+    # parse data
+    try:
+        entity = decoderequest(ctype, reqdata)
+    except ValueError as e:
+        logging.error('Could not get request object from request body : {0} !'.format(str(e)))
+        return errorhttpresponse(400, str(e))
+    timer.lap('parse')
 
-    # parse data (oh wait... not needed :P)
     try:
-        entity = request.json
+        timeout = requesttimeout(entity)
+        pipe = requestpipe(entity)
     except ValueError as e:
-        logging.error('Could not get JSON object from request body : {0} !'.format(str(e)))
         return errorhttpresponse(400, str(e))
 
     # create processus
     command = entity["cmd"]
-    logging.info('Preparing subprocess for command : [%s]' % command)
     try:
-        proc = subprocess.Popen(command, stdout=subprocess.PIPE, stderr=subprocess.PIPE);
+        result = execute(command, entity.get('poolable', POOLDEFAULT), acceptsspool(ctype), timeout=timeout, connection=request.environ.get('cmdsrv.connection'), pipe=pipe)
+    except OSError as e:
+        return errorhttpresponse(500, str(e))
+    timer.skip()
+    if result.get('timedout'):
+        return errorhttpresponse(504, 'Command timed out after %d ms' % (timeout * 1000))
+
+    result['timing'] = dict(timer.timing, **result['timing'])
+    return timer.finish(encoderesponse(ctype, result))
+
+@post(path='/cmd/batch')
+def callcmdbatch():
+    """Execute a batch of commands in parallel
+
+      - Parse the request body as json (or binary, see the CODECS section)
+      - Execute the given extracted commands, at most 'batchworkers' at a time
+      - Return a JSON object holding the results, in the order of the commands
+        (or their binary form if the request was binary)
+
+    A command which cannot be executed does not fail the whole batch : its
+    result holds the error message in 'stderr' and 127 as 'retval'. Neither
+    does a command killed on timeout : its result holds '"timedout": true'
+    and the negative signal number as 'retval'.
+
+    Example :
+    ---------
+
+    - Request :
+
+    $ curl -XPOST "http://localhost:8055/cmd/batch" -H "Content-Type: application/json" -d '{"requests":[{"cmd":["stat", "/tmp"]}, {"cmd":["unlink", "/tmp/mylink"]}]}'
+
+    - Response :
+    {
+        "responses":[
+            {"cmd":["stat", "/tmp"], "stdout":"...", "stderr":"", "retval":0},
+            {"cmd":["unlink", "/tmp/mylink"], "stdout":"", "stderr":"", "retval":0}
+        ]
+    }
+
+    """
+    METRICS.count('requests.batch')
+    timer = Timer(request.environ)
+
+    ctype = request.headers.get("Content-Type")
+    if ctype not in CONTENT_TYPES:
+        return errorhttpresponse(400, 'I only eat application/json or application/x-cmdsrv-binary requests mate')
+
+    reqdata = request.body.read()
+    timer.lap('read')
+    METRICS.count('bytes.request', len(reqdata))
+    try:
+        entity = decodebatchrequest(ctype, reqdata)
+    except ValueError as e:
+        logging.error('Could not get request object from request body : {0} !'.format(str(e)))
+        return errorhttpresponse(400, str(e))
+    timer.lap('parse')
+
+    if not entity or not isinstance(entity.get('requests'), list):
+        return errorhttpresponse(400, 'No requests list in the request body')
+
+    commands = []
+    for req in entity['requests']:
+        if not isinstance(req, dict) or not isinstance(req.get('cmd'), list):
+            return errorhttpresponse(400, 'Each request of the batch must hold a cmd list')
+        try:
+            commands.append((req['cmd'], req.get('poolable', POOLDEFAULT), requesttimeout(req), requestpipe(req)))
+        except ValueError as e:
+            return errorhttpresponse(400, str(e))
+
+    logging.info('Executing batch of %s commands' % len(commands))
+    results = executebatch(commands, acceptsspool(ctype), request.environ.get('cmdsrv.connection'))
+    timer.skip()
+    return timer.finish(encodebatchresponse(ctype, results))
+
+@post(path='/cmd/stream')
+def callcmdstream():
+    """Execute a command and stream its output as it is produced
+
+      - Parse the request body as json (or binary, see the CODECS section)
+      - Execute the given extracted command
+      - Send stdout and stderr chunks as soon as the process writes them, then
+        the return value
+
+    The response body is a sequence of frames : 1 byte type, 4 bytes big endian
+    payload length, payload. Types are 'O' (stdout chunk), 'E' (stderr chunk)
+    and 'R' (return value as a 4 bytes big endian signed int, always the last
+    frame). The output is never held in memory as a whole, nor timed. A
+    command killed on timeout ends with its negative signal number as return
+    value. With 'pipe' (see callcmd()), the return value is the one of the
+    last command.
+
+    Example :
+    ---------
+
+    $ curl -XPOST "http://localhost:8055/cmd/stream" -H "Content-Type: application/json" -d '{"cmd":["cat", "/var/log/big.log"]}' | xxd | head
+
+    """
+    METRICS.count('requests.stream')
+
+    ctype = request.headers.get("Content-Type")
+    if ctype not in CONTENT_TYPES:
+        return errorhttpresponse(400, 'I only eat application/json or application/x-cmdsrv-binary requests mate')
+
+    try:
+        entity = decoderequest(ctype, request.body.read())
+    except ValueError as e:
+        logging.error('Could not get request object from request body : {0} !'.format(str(e)))
+        return errorhttpresponse(400, str(e))
+
+    if not entity or not isinstance(entity.get('cmd'), list):
+        return errorhttpresponse(400, 'No cmd list in the request body')
+
+    try:
+        timeout = requesttimeout(entity)
+        pipe = requestpipe(entity)
+    except ValueError as e:
+        return errorhttpresponse(400, str(e))
+
+    command = entity['cmd']
+    logging.info('Preparing streamed subprocess for command : [%s]%s' % (command, pipelog(pipe)))
+    try:
+        proc = popen(command, pipe)
     except OSError as e:
         logging.error('Could not execute command process : OSError({0}): {1} !'.format(e.errno, e.strerror))
         return errorhttpresponse(500, str(e))
 
-    # go on !
-    stdoutdata, stderrdata = proc.communicate()
-    ret = proc.returncode
-    logging.debug('Command [%s] executed with return value [%s]. stdout[%s] stderr[%s]' % (command, ret, str(stdoutdata), str(stderrdata)))
+    response.content_type = STREAM_CONTENT_TYPE
+    return streamoutput(command, proc, WATCHDOG.watch(proc, timeout) if timeout else None)
+
+@post(path='/cmd/stdin')
+def callcmdstdin():
+    """Execute a command fed with the request body as standard input
+
+      - Read the first line of the body as the json request
+      - Execute the given extracted command, copying the rest of the body to
+        its standard input as it arrives
+      - Return a JSON object describing the result, as /cmd does (or its
+        binary form if the request accepts application/x-cmdsrv-binary)
+
+    The body is never held in memory as a whole, so its length does not need
+    to be known up front : 'Transfer-Encoding: chunked' is supported. A
+    command which stops reading its input early still gets its result : the
+    rest of the body is read and dropped. A body ending early (the client is
+    gone) kills the command.
+
+    Example :
+    ---------
+
+    $ { echo '{"cmd":["sha256sum"]}'; cat /var/backups/big.tgz; } | curl -XPOST "http://localhost:8055/cmd/stdin" -H "Content-Type: application/x-cmdsrv-stdin" -H "Transfer-Encoding: chunked" --data-binary @-
+
+    """
+    METRICS.count('requests.stdin')
+    timer = Timer(request.environ)
+
+    if request.headers.get('Content-Type') != STDIN_CONTENT_TYPE:
+        return errorhttpresponse(400, 'I only eat %s requests mate' % STDIN_CONTENT_TYPE)
+    ctype = BINARY_CONTENT_TYPE if request.headers.get('Accept') == BINARY_CONTENT_TYPE else JSON_CONTENT_TYPE
+
+    body = RequestBody(request.environ)
+    try:
+        head = body.readline(STDINMAXHEAD)
+        timer.lap('read')
+        if not head.endswith(b'\n'):
+            raise ValueError('The request must be on the first line of the body, followed by the input')
+        entity = json.loads(head.decode('utf-8'))
+        if not entity or not isinstance(entity.get('cmd'), list):
+            raise ValueError('No cmd list in the request')
+        timeout = requesttimeout(entity)
+        pipe = requestpipe(entity)
+    except (IOError, socket.error) as e:
+        return errorhttpresponse(400, 'Could not read the request : %s' % e)
+    except ValueError as e:
+        logging.error('Could not get request object from request body : {0} !'.format(str(e)))
+        return errorhttpresponse(400, str(e))
+    timer.lap('parse')
+
+    command = entity['cmd']
+    try:
+        result = execute(command, False, acceptsspool(ctype), timeout=timeout, stdin=body, pipe=pipe)
+    except OSError as e:
+        return errorhttpresponse(500, str(e))
+    timer.skip()
+    if result.get('timedout'):
+        return errorhttpresponse(504, 'Command timed out after %d ms' % (timeout * 1000))
+    if result.get('cancelled'):
+        return errorhttpresponse(400, 'The request body ended before its end')
+
+    result['timing'] = dict(timer.timing, **result['timing'])
+    return timer.finish(encoderesponse(ctype, result))
+
+@get('/cmd/<spoolid:re:[0-9a-f]{32}>/<stream:re:stdout|stderr>')
+def callspool(spoolid, stream):
+    """Return a spooled output (see callcmd()), or the part of it asked by the
+    Range header (a single range).
+
+    The file is sent by chunks : the output is never held in memory. Spooled outputs are deleted after
+    'ttl' seconds, or by DELETE /cmd/<id>.
+
+    Example :
+    ---------
+
+    $ curl "http://localhost:8055/cmd/5f0c.../stdout" -H "Range: bytes=1048576-"
+
+    """
+    path = spoolpath(spoolid, stream)
+    try:
+        size = os.path.getsize(path)
+        ranges = [(0, size)]
+        status = 200
+        headers = {'Content-Type': 'application/octet-stream', 'Accept-Ranges': 'bytes'}
+        if 'HTTP_RANGE' in request.environ:
+            ranges = list(parse_range_header(request.environ['HTTP_RANGE'], size))
+            if not ranges:
+                return HTTPResponse(errorbody(416, 'Range not satisfiable'), 416, **{'Content-Type': JSON_CONTENT_TYPE, 'Content-Range': 'bytes */%d' % size})
+            status = 206
+            headers['Content-Range'] = 'bytes %d-%d/%d' % (ranges[0][0], ranges[0][1] - 1, size)
+        offset, end = ranges[0]
+        body = SpoolRange(path, offset, end - offset)
+    except (IOError, OSError):
+        return errorhttpresponse(404, 'No such spooled output, or expired')
+    headers['Content-Length'] = str(end - offset)
+    METRICS.count('spool.reads')
+    return HTTPResponse(body, status, **headers)
+
+@delete('/cmd/<spoolid:re:[0-9a-f]{32}>')
+def calldeletespool(spoolid):
+    """Delete the spooled outputs of a command, once fetched
+    """
+    deleted = 0
+    for stream in ('stdout', 'stderr'):
+        try:
+            os.unlink(spoolpath(spoolid, stream))
+            deleted += 1
+        except OSError:
+            pass
+    if not deleted:
+        return errorhttpresponse(404, 'No such spooled output, or expired')
+    return HTTPResponse(status=204)
+
+@post(path='/jobs')
+def callsubmitjob():
+    """Start a command in the background and return its job right away
+
+      - Parse the request body as json (or binary, see the CODECS section)
+      - Queue the command, to be executed by one of the job threads : long
+        running commands hold neither a server worker nor a client connection
+      - Return '202 Accepted' and the JSON description of the job, whose
+        result is got with GET /jobs/<id>
+
+    The request is answered '503 Service Unavailable' when 'maxjobs' jobs are
+    already known to the server (see the [jobs] section of cmdsrv.cfg).
+
+    Example :
+    ---------
+
+    $ curl -XPOST "http://localhost:8055/jobs" -H "Content-Type: application/json" -d '{"cmd":["tar", "czf", "/tmp/backup.tgz", "/srv"]}'
+    {"id": "9b1d...", "state": "queued"}
+
+    """
+    METRICS.count('requests.jobs')
+
+    ctype = request.headers.get("Content-Type")
+    if ctype not in CONTENT_TYPES:
+        return errorhttpresponse(400, 'I only eat application/json or application/x-cmdsrv-binary requests mate')
+
+    try:
+        entity = decoderequest(ctype, request.body.read())
+    except ValueError as e:
+        logging.error('Could not get request object from request body : {0} !'.format(str(e)))
+        return errorhttpresponse(400, str(e))
+
+    if not entity or not isinstance(entity.get('cmd'), list):
+        return errorhttpresponse(400, 'No cmd list in the request body')
+
+    try:
+        timeout = requesttimeout(entity)
+        pipe = requestpipe(entity)
+    except ValueError as e:
+        return errorhttpresponse(400, str(e))
+
+    job = JOBS.submit(entity['cmd'], timeout, pipe)
+    if job is None:
+        return errorhttpresponse(503, 'Too many jobs, try again later')
+    return HTTPResponse(json.dumps(job), 202, **{'Content-Type': JSON_CONTENT_TYPE, 'Location': '/jobs/%s' % job['id']})
+
+@get('/jobs/<jobid:re:[0-9a-f]{32}>')
+def calljob(jobid):
+    """Return the JSON description of a job. Its state is 'queued',
+    'running', 'done' (the result, as returned by /cmd, is then in 'result',
+    with '"timedout": true' if the command was killed on timeout) or
+    'cancelled'.
+
+    With the 'wait' query parameter, the request waits up to that number of
+    seconds (at most 'maxwait') for the job to end before answering : clients
+    get the result as soon as it is known without polling in a loop. The
+    waiting request holds no server worker : it is parked with the idle
+    connections, and served again when the job ends or the wait is over.
+
+    Finished jobs are forgotten after 'ttl' seconds, or by DELETE /jobs/<id>.
+
+    Example :
+    ---------
+
+    $ curl "http://localhost:8055/jobs/9b1d...?wait=20"
+    {"id": "9b1d...", "state": "done", "result": {"cmd": ["tar", "czf", "/tmp/backup.tgz", "/srv"], "retval": 0, ...}}
+
+    """
+    try:
+        wait = min(max(float(request.query.get('wait') or 0), 0), JOBMAXWAIT)
+    except ValueError:
+        return errorhttpresponse(400, 'wait must be a number of seconds')
+    replayed = request.environ.get('cmdsrv.replay')
+    if replayed is not None:
+        # served again after park() : the job as it ended, or as it is at the
+        # deadline
+        job = replayed if isinstance(replayed, dict) else JOBS.get(jobid)
+    elif wait > 0 and 'cmdsrv.park' in request.environ and request.environ['cmdsrv.park'](time.time() + wait, lambda wake: JOBS.whenended(jobid, wake)):
+        return ''
+    else:
+        job = JOBS.get(jobid, wait)
+    if job is None:
+        return errorhttpresponse(404, 'No such job, or expired')
+    response.content_type = JSON_CONTENT_TYPE
+    return compress(json.dumps(job))
+
+@delete('/jobs/<jobid:re:[0-9a-f]{32}>')
+def calldeletejob(jobid):
+    """Cancel a job (its process is killed if it is running) or forget a
+    finished one, and return its last JSON description
+    """
+    job = JOBS.cancel(jobid)
+    if job is None:
+        return errorhttpresponse(404, 'No such job, or expired')
+    response.content_type = JSON_CONTENT_TYPE
+    return json.dumps(job)
+
+# ------------------------------------------------------------------------------
+# CODECS
+#
+# The binary format is made of big endian, length prefixed fields :
+#   - string : u32 length + utf-8 bytes
+#   - request : u32 argc + argc strings + u32 flags (BINARY_POOLABLE) + u32
+#     timeout in milliseconds (0 for none)
+#   - response : i32 retval + u32 argc + argc strings + stdout string + stderr
+#     string (stdout and stderr are the raw bytes written by the process) + u32
+#     flags (BINARY_TIMEDOUT)
+#   - batch : u32 count + count requests (or responses)
+# ------------------------------------------------------------------------------
+
+def decoderequest(ctype, data):
+    """Return the request dict held by the given body. Raise ValueError if the
+    body cannot be decoded.
+    """
+    if ctype == BINARY_CONTENT_TYPE:
+        entity, offset = unpackrequest(data, 0)
+        return entity
+    return json.loads(data)
+
+def decodebatchrequest(ctype, data):
+    if ctype == BINARY_CONTENT_TYPE:
+        count, offset = unpacku32(data, 0)
+        requests = []
+        for _ in range(count):
+            entity, offset = unpackrequest(data, offset)
+            requests.append(entity)
+        return {'requests': requests}
+    return json.loads(data)
+
+def encoderesponse(ctype, result):
+    """Return the body of the given result, compressed if the client accepts
+    it. The binary format does not carry the timing and output sizes.
+    """
+    if ctype == BINARY_CONTENT_TYPE:
+        response.content_type = BINARY_CONTENT_TYPE
+        return compress(packresponse(result))
+    # serialized here rather than by Bottle, to be timed
+    response.content_type = JSON_CONTENT_TYPE
+    return compress(json.dumps(jsonresult(result)))
+
+def encodebatchresponse(ctype, results):
+    if ctype == BINARY_CONTENT_TYPE:
+        response.content_type = BINARY_CONTENT_TYPE
+        return compress(struct.pack('>I', len(results)) + b''.join([packresponse(r) for r in results]))
+    response.content_type = JSON_CONTENT_TYPE
+    return compress(json.dumps({'responses': [jsonresult(r) for r in results]}))
+
+def jsonresult(result):
+    """Return the result ready to be serialized as json : an output which is
+    not valid utf-8 would make json.dumps fail (or be mangled), so it is
+    base64 encoded and flagged with '<stream>encoding': 'base64'. The binary
+    format carries the raw bytes and needs none of this.
+    """
+    encoded = None
+    for stream in ('stdout', 'stderr'):
+        data = result.get(stream)
+        if not isinstance(data, bytes):
+            continue
+        try:
+            data.decode('utf-8')
+        except UnicodeDecodeError:
+            if encoded is None:
+                encoded = dict(result)
+            encoded[stream] = base64.b64encode(data)
+            encoded[stream + 'encoding'] = 'base64'
+    return result if encoded is None else encoded
+
+def compress(body):
+    """Return the body compressed with the first encoding of
+    COMPRESSENCODINGS accepted by the client (Accept-Encoding), or as is if it
+    is smaller than COMPRESSTHRESHOLD bytes or if the client accepts none.
+
+    Outputs of commands (logs, listings, ...) are mostly text : even the
+    fastest level (COMPRESSLEVEL 1) divides their size several times, for a
+    fraction of the time it takes to send them over a network.
+    """
+    if not COMPRESSTHRESHOLD or len(body) < COMPRESSTHRESHOLD:
+        return body
+    response.set_header('Vary', 'Accept-Encoding')
+    encoding = acceptedencoding(request.headers.get('Accept-Encoding', ''))
+    if encoding is None:
+        return body
+    if not isinstance(body, bytes):
+        body = body.encode('utf-8')
+    if encoding == 'gzip':
+        compressor = zlib.compressobj(COMPRESSLEVEL, zlib.DEFLATED, 16 + zlib.MAX_WBITS)
+    else:
+        compressor = zlib.compressobj(COMPRESSLEVEL)
+    compressed = compressor.compress(body) + compressor.flush()
+    response.set_header('Content-Encoding', encoding)
+    METRICS.count('compression.in', len(body))
+    METRICS.count('compression.out', len(compressed))
+    return compressed
+
+def acceptedencoding(header):
+    """Return the first encoding of COMPRESSENCODINGS accepted by the given
+    Accept-Encoding header, None if none is"""
+    accepted = {}
+    for item in header.split(','):
+        parts = item.strip().split(';')
+        quality = 1.0
+        for param in parts[1:]:
+            name, _, value = param.strip().partition('=')
+            if name == 'q':
+                try:
+                    quality = float(value)
+                except ValueError:
+                    quality = 0.0
+        accepted[parts[0].strip().lower()] = quality
+    for encoding in COMPRESSENCODINGS:
+        if accepted.get(encoding, accepted.get('*', 0)) > 0:
+            return encoding
+    return None
+
+def unpacku32(data, offset):
+    try:
+        return struct.unpack_from('>I', data, offset)[0], offset + 4
+    except struct.error as e:
+        raise ValueError('Truncated binary request : {0}'.format(str(e)))
+
+def unpackrequest(data, offset):
+    argc, offset = unpacku32(data, offset)
+    cmd = []
+    for _ in range(argc):
+        length, offset = unpacku32(data, offset)
+        if offset + length > len(data):
+            raise ValueError('Truncated binary request')
+        cmd.append(data[offset:offset + length].decode('utf-8'))
+        offset += length
+    flags, offset = unpacku32(data, offset)
+    timeoutms, offset = unpacku32(data, offset)
+    entity = {'cmd': cmd}
+    if flags & BINARY_POOLABLE:
+        entity['poolable'] = True
+    if timeoutms:
+        entity['timeoutms'] = timeoutms
+    return entity, offset
+
+def packstring(data):
+    if data is None:
+        data = b''
+    elif not isinstance(data, bytes):
+        data = data.encode('utf-8')
+    return struct.pack('>I', len(data)) + data
+
+def packresponse(result):
+    out = [struct.pack('>iI', result['retval'], len(result['cmd']))]
+    out.extend([packstring(arg) for arg in result['cmd']])
+    out.append(packstring(result['stdout']))
+    out.append(packstring(result['stderr']))
+    out.append(struct.pack('>I', BINARY_TIMEDOUT if result.get('timedout') else 0))
+    return b''.join(out)
+
+# ------------------------------------------------------------------------------
+# EXECUTION
+# ------------------------------------------------------------------------------
+
+def requesttimeout(entity):
+    """Return the timeout of the request in seconds ('timeoutms'), or the
+    server default, None for no timeout. Raise ValueError if it is invalid.
+    """
+    timeoutms = entity.get('timeoutms')
+    if timeoutms is None:
+        return DEFAULTTIMEOUT or None
+    if not isinstance(timeoutms, numbers.Real) or isinstance(timeoutms, bool) or timeoutms <= 0:
+        raise ValueError('timeoutms must be a positive number of milliseconds')
+    return timeoutms / 1000.0
+
+def requestpipe(entity):
+    """Return the commands the output of the request command is piped into
+    ('pipe', a list of cmd lists), None if there are none. Raise ValueError if
+    it is invalid.
+    """
+    pipe = entity.get('pipe')
+    if not pipe:
+        return None
+    if not isinstance(pipe, list) or not all(isinstance(stage, list) and stage for stage in pipe):
+        raise ValueError('pipe must be a list of non empty cmd lists')
+    return pipe
+
+def pipelog(pipe):
+    return ''.join([' | %s' % stage for stage in pipe or []])
+
+def execute(command, poolable=False, spool=False, started=None, timeout=None, connection=None, stdin=None, pipe=None):
+    """Execute the given command and return a dict describing the result.
+    Raise OSError if the process cannot be created.
+
+    A poolable command is handed to an idle worker of the warm process pool,
+    when the pool is enabled and such a worker exists. The executable is
+    looked up in the PATH once, then taken from PATHCACHE.
+
+    The result also holds the size of the outputs and the time spent
+    creating the process ('spawn', unknown for the warm pool) and running it
+    to completion ('run'), in milliseconds.
 
-    # use Bottle's capacity to auto json (data + content type)
-    return {'cmd':entity['cmd'], 'stdout':stdoutdata, 'stderr':stderrdata, 'retval':ret}
+    With 'spool', an output bigger than SPOOLTHRESHOLD is written to a spool
+    file as it is read (see collectoutput()) : it is null in the result and
+    'spool' holds the id of the files and the spooled outputs sizes.
 
+    'started' is called with the process once it is created (not for the warm
+    pool), e.g. to be able to kill it.
+
+    A command running for more than 'timeout' seconds is killed : the result
+    then holds '"timedout": true'. So is a command whose client closes the
+    given 'connection' while it runs ('"cancelled": true').
+
+    'stdin' (a RequestBody) is copied to the standard input of the process,
+    which is killed ('"cancelled": true') if it ends early.
+
+    With 'pipe', the output of the command is piped into those commands (see
+    Pipeline) : the result holds the return value of each one in 'retvals'.
+    """
+    logging.info('Preparing subprocess for command : [%s]%s' % (command, pipelog(pipe)))
+    METRICS.count('commands')
+    METRICS.count('running')
+    start = time.time()
+    resolved = resolvecommand(command)
+    try:
+        try:
+            stdoutdata, stderrdata, ret, spawned, interrupted, retvals = spawn(resolved, poolable, spool, started, timeout, connection, stdin, pipe)
+        except OSError as e:
+            if resolved is command or e.errno not in (errno.ENOENT, errno.EACCES):
+                raise
+            # the executable moved since it was cached : look it up again
+            PATHCACHE.pop(command[0], None)
+            stdoutdata, stderrdata, ret, spawned, interrupted, retvals = spawn(command, poolable, spool, started, timeout, connection, stdin, pipe)
+    except OSError as e:
+        METRICS.count('commands.failed')
+        logging.error('Could not execute command process : OSError({0}): {1} !'.format(e.errno, e.strerror))
+        raise
+    finally:
+        METRICS.count('running', -1)
+    end = time.time()
+
+    logging.debug('Command [%s] executed with return value [%s]. stdout[%s] stderr[%s]' % (command, ret, stdoutdata, stderrdata))
+
+    timing = {}
+    if spawned is not None:
+        timing['spawn'] = METRICS.observe('spawn', spawned - start)
+    timing['run'] = METRICS.observe('run', end - (spawned or start))
+
+    result = {'cmd':command, 'retval':ret, 'timing':timing}
+    if retvals is not None:
+        result['retvals'] = retvals
+    if interrupted == 'timeout':
+        logging.warning('Command [%s] killed after its %s seconds timeout' % (command, timeout))
+        METRICS.count('commands.timedout')
+        result['timedout'] = True
+    elif interrupted == 'cancelled':
+        logging.warning('Command [%s] killed : the client closed the connection' % command)
+        METRICS.count('commands.cancelled')
+        result['cancelled'] = True
+    for stream, data in (('stdout', stdoutdata), ('stderr', stderrdata)):
+        if spool and not isinstance(data, SpoolFile) and len(data) > SPOOLTHRESHOLD:
+            # warm pool output, already in memory : spooled to keep the response small
+            data = spoolfile(result, stream, data)
+        if isinstance(data, SpoolFile):
+            result.setdefault('spool', {'id': data.spoolid})[stream] = data.size
+            result[stream] = None
+            result[stream + 'bytes'] = data.size
+        else:
+            result[stream] = data
+            result[stream + 'bytes'] = len(data)
+        METRICS.count('bytes.' + stream, result[stream + 'bytes'])
+
+    return result
+
+def spawn(command, poolable, spool=False, started=None, timeout=None, connection=None, stdin=None, pipe=None):
+    """Run the command to completion and return (stdout, stderr, retval,
+    time at which the process was created or None if it is not known, None or
+    why it was killed : 'timeout' or 'cancelled', the return values of the
+    commands of the pipeline or None). With 'spool', stdout and stderr may be
+    SpoolFiles.
+
+    Several commands run at the same time (one per server worker) : the
+    processes do not inherit the descriptors of the server (close_fds), or they
+    would hold the connections of other clients open. collectoutput() reads
+    stdout and stderr together, without blocking on either pipe.
+
+    The process leads its own process group : on timeout (see Watchdog), or
+    when the client closes the connection, the processes it started are killed
+    with it. A warm pool worker cannot be killed that way : commands with a
+    timeout are always forked. So are the commands fed with 'stdin', which is
+    copied to the process by a StdinFeeder thread while the outputs are read,
+    and the pipelines.
+    """
+    if poolable and WARMPOOL is not None and not timeout and stdin is None and pipe is None:
+        result = WARMPOOL.execute(command)
+        if result is not None:
+            return result + (None, None, None)
+
+    proc = popen(command, pipe, subprocess.PIPE if stdin is not None else None)
+    spawned = time.time()
+    if started is not None:
+        started(proc)
+    deadline = WATCHDOG.watch(proc, timeout) if timeout else None
+    feeder = None
+    if stdin is not None:
+        feeder = StdinFeeder(proc, stdin)
+        feeder.start()
+    try:
+        stdoutdata, stderrdata, hungup = collectoutput(proc, spool, connection)
+        proc.wait()
+        if feeder is not None:
+            feeder.join()
+    finally:
+        if deadline is not None:
+            WATCHDOG.unwatch(deadline)
+    interrupted = None
+    if deadline is not None and deadline.expired:
+        interrupted = 'timeout'
+    elif hungup or (feeder is not None and feeder.truncated):
+        interrupted = 'cancelled'
+    retvals = proc.returncodes if pipe else None
+    return stdoutdata, stderrdata, proc.returncode, spawned, interrupted, retvals
+
+def popen(command, pipe=None, stdin=None):
+    """Start the command, leading its own process group, or the Pipeline of
+    the command and the 'pipe' commands. Raise OSError if a process cannot be
+    created.
+    """
+    if pipe:
+        return Pipeline([command] + pipe, stdin)
+    return subprocess.Popen(command, stdin=stdin, stdout=subprocess.PIPE, stderr=subprocess.PIPE, close_fds=True, **SESSIONARGS)
+
+class Pipeline(object):
+    """Processes of a pipeline, the stdout of each one connected to the
+    stdin of the next one by an OS pipe : the data flows between them without
+    going through the server. It is seen as a single Popen by spawn(),
+    collectoutput(), StdinFeeder and the Watchdog : 'stdin' is the one of the
+    first process, 'stdout' the one of the last process and 'stderr' is shared
+    by all of them. 'returncode' is the one of the last process, as in a
+    shell, and 'returncodes' those of all of them.
+
+    All the processes join the process group of the first one, so that
+    killgroup() kills the whole pipeline.
+    """
+    def __init__(self, commands, stdin=None):
+        self.procs = []
+        errread, errwrite = os.pipe()
+        try:
+            for command in commands:
+                if not self.procs:
+                    proc = subprocess.Popen(command, stdin=stdin, stdout=subprocess.PIPE, stderr=errwrite, close_fds=True, **SESSIONARGS)
+                else:
+                    previous = self.procs[-1]
+                    proc = subprocess.Popen(command, stdin=previous.stdout, stdout=subprocess.PIPE, stderr=errwrite, close_fds=True, preexec_fn=joingroup(self.procs[0].pid))
+                    # only the reading process may hold the pipe open : the
+                    # writing one then gets SIGPIPE if the reader exits early
+                    previous.stdout.close()
+                self.procs.append(proc)
+        except OSError:
+            if self.procs:
+                killgroup(self.procs[0])
+            for proc in self.procs:
+                proc.wait()
+                proc.stdout.close()
+            os.close(errread)
+            raise
+        finally:
+            os.close(errwrite)
+        self.pid = self.procs[0].pid
+        self.stdin = self.procs[0].stdin
+        self.stdout = self.procs[-1].stdout
+        self.stderr = os.fdopen(errread, 'rb')
+        self.returncode = None
+
+    @property
+    def returncodes(self):
+        return [proc.returncode for proc in self.procs]
+
+    def poll(self):
+        for proc in self.procs:
+            if proc.poll() is None:
+                return None
+        self.returncode = self.procs[-1].returncode
+        return self.returncode
+
+    def wait(self):
+        for proc in self.procs:
+            proc.wait()
+        self.returncode = self.procs[-1].returncode
+        return self.returncode
+
+def joingroup(pgid):
+    """Return a preexec_fn moving the child into the process group 'pgid',
+    or into its own session if that group is already gone"""
+    def preexec():
+        try:
+            os.setpgid(0, pgid)
+        except OSError:
+            os.setsid()
+    return preexec
+
+class StdinFeeder(threading.Thread):
+    """Copy a RequestBody to the standard input of a process as it arrives,
+    then close it. Run apart from collectoutput() : a process writing while it
+    reads would otherwise block both sides once a pipe buffer is full.
+
+    When the process stops reading (broken pipe), the rest of the body is
+    read and dropped, so that the request can be answered. When the body ends
+    early, the process group is killed and 'truncated' is set.
+    """
+    def __init__(self, proc, body):
+        threading.Thread.__init__(self, name='cmdsrv-stdin-%s' % proc.pid)
+        self.daemon = True
+        self.proc = proc
+        self.body = body
+        self.truncated = False
+
+    def run(self):
+        pipe = self.proc.stdin
+        try:
+            while True:
+                chunk = self.body.read(STREAMCHUNKSIZE)
+                if not chunk:
+                    break
+                if pipe is None:
+                    continue
+                try:
+                    pipe.write(chunk)
+                    pipe.flush()
+                except (IOError, OSError) as e:
+                    if e.errno not in (errno.EPIPE, errno.EINVAL):
+                        raise
+                    logging.debug('Command [%s] stopped reading its input, dropping the rest' % self.proc.pid)
+                    pipe = self.closepipe(pipe)
+        except (IOError, OSError, socket.error) as e:
+            logging.warning('Input of command [%s] ended early, killing it : %s' % (self.proc.pid, e))
+            self.truncated = True
+            killgroup(self.proc)
+        finally:
+            self.closepipe(pipe)
+
+    def closepipe(self, pipe):
+        if pipe is not None:
+            try:
+                pipe.close()
+            except (IOError, OSError):
+                pass
+        return None
+
+class RequestBody(object):
+    """Reader of the request body as it arrives from the client, whether its
+    length is known (Content-Length) or not (chunked transfer encoding, which
+    wsgiref does not decode). Raise IOError if the body ends early.
+    """
+    def __init__(self, environ):
+        self.stream = environ['wsgi.input']
+        self.chunked = 'chunked' in environ.get('HTTP_TRANSFER_ENCODING', '').lower()
+        self.remaining = 0 if self.chunked else int(environ.get('CONTENT_LENGTH') or 0)
+        self.ended = not self.chunked and not self.remaining
+        self.pending = b''
+
+    def read(self, size):
+        """Return at most 'size' bytes of the body, b'' once it is over"""
+        if self.pending:
+            data, self.pending = self.pending[:size], self.pending[size:]
+            return data
+        if self.ended:
+            return b''
+        if self.chunked and not self.remaining:
+            self.remaining = self.chunksize()
+            if not self.remaining:
+                self.ended = True
+                return b''
+        data = self.stream.read(min(size, self.remaining))
+        if not data:
+            raise IOError('The request body ended before its end')
+        self.remaining -= len(data)
+        if not self.remaining:
+            if not self.chunked:
+                self.ended = True
+            elif self.stream.readline(3).strip():
+                raise IOError('Malformed chunked request body')
+        return data
+
+    def readline(self, limit):
+        """Return the first line of what is left of the body, reading at most
+        'limit' bytes. What was read past the line is kept for read().
+        """
+        line = b''
+        while b'\n' not in line and len(line) < limit:
+            data = self.read(limit - len(line))
+            if not data:
+                break
+            line += data
+        end = line.find(b'\n') + 1
+        if end:
+            line, self.pending = line[:end], line[end:] + self.pending
+        return line
+
+    def chunksize(self):
+        line = self.stream.readline(1024)
+        try:
+            size = int(line.split(b';')[0].strip(), 16)
+        except ValueError:
+            raise IOError('Malformed chunk size %r' % line)
+        if not size:
+            # trailers, up to the empty line
+            while line.strip():
+                line = self.stream.readline(1024)
+        return size
+
+def killgroup(proc):
+    """Kill the process group led by the process"""
+    try:
+        os.killpg(proc.pid, signal.SIGKILL)
+    except OSError as e:
+        # already gone
+        if e.errno != errno.ESRCH:
+            raise
+
+class Deadline(object):
+    def __init__(self, when, proc):
+        self.when = when
+        self.proc = proc
+        self.expired = False
+
+    def __lt__(self, other):
+        return self.when < other.when
+
+class Watchdog(object):
+    """Kill the process groups of the commands running past their deadline.
+    A single thread, started on first use, sleeps until the nearest deadline :
+    timeouts cost no thread per command.
+    """
+    def __init__(self):
+        self.cond = threading.Condition()
+        self.deadlines = []
+        self.thread = None
+
+    def watch(self, proc, timeout):
+        """Kill the process group in 'timeout' seconds unless unwatch() is
+        called with the returned Deadline before"""
+        deadline = Deadline(time.time() + timeout, proc)
+        with self.cond:
+            heapq.heappush(self.deadlines, deadline)
+            if self.thread is None:
+                self.thread = threading.Thread(target=self.run, name='cmdsrv-watchdog')
+                self.thread.daemon = True
+                self.thread.start()
+            self.cond.notify()
+        return deadline
+
+    def unwatch(self, deadline):
+        with self.cond:
+            deadline.proc = None
+
+    def run(self):
+        while True:
+            with self.cond:
+                while self.deadlines and self.deadlines[0].proc is None:
+                    heapq.heappop(self.deadlines)
+                if not self.deadlines:
+                    self.cond.wait()
+                    continue
+                remaining = self.deadlines[0].when - time.time()
+                if remaining > 0:
+                    self.cond.wait(remaining)
+                    continue
+                deadline = heapq.heappop(self.deadlines)
+                # killed with the lock held : never after unwatch() returned
+                deadline.expired = True
+                killgroup(deadline.proc)
+
+WATCHDOG = Watchdog()
+
+def resolvecommand(command):
+    """Return the command with its executable replaced by its absolute path,
+    or the command itself if it holds a path or cannot be found in the PATH.
+    """
+    if not command or os.sep in command[0]:
+        return command
+    path = PATHCACHE.get(command[0])
+    if path is None:
+        for directory in os.environ.get('PATH', os.defpath).split(os.pathsep):
+            candidate = os.path.join(directory, command[0])
+            if os.path.isfile(candidate) and os.access(candidate, os.X_OK):
+                path = PATHCACHE[command[0]] = candidate
+                break
+        else:
+            return command
+    return [path] + list(command[1:])
+
+class WarmWorker(object):
+    """A running cmdsrvworker.py process (see its header for the protocol)
+    """
+    def __init__(self):
+        self.proc = subprocess.Popen([sys.executable, WORKERSCRIPT], stdin=subprocess.PIPE, stdout=subprocess.PIPE, close_fds=True)
+        self.tasks = 0
+
+    def run(self, command):
+        data = json.dumps(command).encode('utf-8')
+        self.proc.stdin.write(struct.pack('>I', len(data)) + data)
+        self.proc.stdin.flush()
+        head = self.proc.stdout.read(4)
+        if len(head) < 4:
+            raise IOError(errno.EPIPE, 'worker %s exited' % self.proc.pid)
+        reply = self.proc.stdout.read(struct.unpack('>I', head)[0])
+        status, code, outlen = struct.unpack_from('>BiI', reply, 0)
+        out = reply[9:9 + outlen]
+        errlen = struct.unpack_from('>I', reply, 9 + outlen)[0]
+        err = reply[13 + outlen:13 + outlen + errlen]
+        self.tasks += 1
+        if status == 1:
+            raise OSError(code, out.decode('utf-8'))
+        return out, err, code
+
+    def stop(self):
+        try:
+            self.proc.stdin.close()
+        except IOError:
+            pass
+        self.proc.wait()
+
+    def kill(self):
+        if self.proc.poll() is None:
+            self.proc.kill()
+        self.stop()
+
+class WarmProcessPool(object):
+    """Pool of 'size' warm workers, each one replaced after 'maxtasks'
+    commands. Replacements are started in the background, off the request
+    path.
+    """
+    def __init__(self, size, maxtasks):
+        self.maxtasks = maxtasks
+        self.idle = Queue.Queue()
+        for _ in range(size):
+            self.idle.put(WarmWorker())
+        logging.info('Started %s warm workers, recycled every %s commands' % (size, maxtasks))
+
+    def execute(self, command):
+        """Run the command on an idle worker and return (stdout, stderr,
+        retval), or None if all the workers are busy. Raise OSError.
+        """
+        try:
+            worker = self.idle.get_nowait()
+        except Queue.Empty:
+            return None
+
+        try:
+            result = worker.run(command)
+        except OSError:
+            self.release(worker)
+            raise
+        except (IOError, ValueError, struct.error) as e:
+            # the worker died or got out of sync : the command may have run,
+            # report it as failed rather than running it twice
+            logging.error('Warm worker %s failed : %s' % (worker.proc.pid, e))
+            self.replace(worker.kill)
+            raise OSError(errno.EIO, 'Warm worker failed : %s' % e)
+        self.release(worker)
+        return result
+
+    def release(self, worker):
+        if worker.tasks >= self.maxtasks:
+            self.replace(worker.stop)
+        else:
+            self.idle.put(worker)
+
+    def replace(self, dispose):
+        def replaceworker():
+            dispose()
+            self.idle.put(WarmWorker())
+        t = threading.Thread(target=replaceworker)
+        t.daemon = True
+        t.start()
+
+def executebatch(commands, spool=False, connection=None):
+    """Execute the given (command, poolable, timeout, pipe) tuples with at most
+    BATCHWORKERS threads and return the results in the order of the commands.
+    """
+    results = [None] * len(commands)
+    indexes = Queue.Queue()
+    for i in range(len(commands)):
+        indexes.put(i)
+
+    def worker():
+        while True:
+            try:
+                i = indexes.get_nowait()
+            except Queue.Empty:
+                return
+            command, poolable, timeout, pipe = commands[i]
+            try:
+                results[i] = execute(command, poolable, spool, timeout=timeout, connection=connection, pipe=pipe)
+            except OSError as e:
+                results[i] = {'cmd':command, 'stdout':'', 'stderr':str(e), 'retval':127}
+
+    threads = [threading.Thread(target=worker) for _ in range(min(BATCHWORKERS, len(commands)))]
+    for t in threads:
+        t.start()
+    for t in threads:
+        t.join()
+
+    return results
+
+class JobRunner(object):
+    """Run the jobs posted to /jobs with its own threads, apart from the
+    server workers : long running commands do not take the capacity of the
+    short ones. At most 'maxjobs' jobs are known at a time : queued, running,
+    or finished less than 'ttl' seconds ago.
+
+    A job is a dict (its JSON description) : 'id', 'state' and, once done,
+    'result'. It only changes under 'cond', which is notified when a job ends.
+    The callbacks registered with whenended() are called then as well.
+    """
+    def __init__(self, workers, maxjobs, ttl):
+        self.cond = threading.Condition()
+        self.jobs = {}
+        self.finished = {}
+        self.procs = {}
+        # job id -> callbacks to call when the job ends
+        self.waiters = {}
+        self.pending = Queue.Queue()
+        self.maxjobs = maxjobs
+        self.ttl = ttl
+        self.running = 0
+        for i in range(workers):
+            t = threading.Thread(target=self.workerloop, name='cmdsrv-job-%s' % i)
+            t.daemon = True
+            t.start()
+        METRICS.gauge('jobs.queued', self.pending.qsize)
+        METRICS.gauge('jobs.running', lambda: self.running)
+
+    def submit(self, command, timeout=None, pipe=None):
+        """Queue the command and return a copy of its job, or None if there
+        are too many jobs"""
+        with self.cond:
+            self.expire()
+            if len(self.jobs) >= self.maxjobs:
+                METRICS.count('jobs.rejected')
+                return None
+            job = {'id': uuid.uuid4().hex, 'state': 'queued'}
+            self.jobs[job['id']] = job
+            copy = dict(job)
+        logging.info('Queuing job %s for command : [%s]' % (job['id'], command))
+        METRICS.count('jobs.submitted')
+        self.pending.put((job, command, timeout, pipe))
+        return copy
+
+    def get(self, jobid, wait=0):
+        """Return a copy of the job, once it ended or after 'wait' seconds,
+        or None if it is not known"""
+        deadline = time.time() + wait
+        with self.cond:
+            job = self.jobs.get(jobid)
+            while job is not None and job['state'] in ('queued', 'running'):
+                remaining = deadline - time.time()
+                if remaining <= 0:
+                    break
+                self.cond.wait(remaining)
+            return dict(job) if job is not None else None
+
+    def whenended(self, jobid, callback):
+        """Call 'callback' with a copy of the job once it ends or is
+        cancelled, from the thread ending it. Return False, without calling
+        it, if the job is not known or has ended already"""
+        with self.cond:
+            job = self.jobs.get(jobid)
+            if job is None or job['state'] not in ('queued', 'running'):
+                return False
+            self.waiters.setdefault(jobid, []).append(callback)
+            return True
+
+    def cancel(self, jobid):
+        """Forget the job, killing its process if it is running, and return
+        its last state, or None if it is not known"""
+        with self.cond:
+            job = self.jobs.pop(jobid, None)
+            if job is None:
+                return None
+            callbacks = self.waiters.pop(jobid, [])
+            if jobid not in self.finished:
+                logging.info('Cancelling job %s' % jobid)
+                METRICS.count('jobs.cancelled')
+                job['state'] = 'cancelled'
+                proc = self.procs.get(jobid)
+                if proc is not None and proc.poll() is None:
+                    killgroup(proc)
+                self.cond.notify_all()
+            self.finished.pop(jobid, None)
+            copy = dict(job)
+        for callback in callbacks:
+            callback(copy)
+        return copy
+
+    def workerloop(self):
+        while True:
+            job, command, timeout, pipe = self.pending.get()
+            with self.cond:
+                if job['state'] != 'queued':
+                    # cancelled while queued
+                    continue
+                job['state'] = 'running'
+                self.running += 1
+            try:
+                # never poolable : a warm worker could not be killed on cancel
+                result = execute(command, started=lambda proc: self.started(job, proc), timeout=timeout, pipe=pipe)
+            except OSError as e:
+                result = {'cmd':command, 'stdout':'', 'stderr':str(e), 'retval':127}
+            with self.cond:
+                self.running -= 1
+                self.procs.pop(job['id'], None)
+                if job['state'] == 'running':
+                    job['result'] = jsonresult(result)
+                    job['state'] = 'done'
+                    self.finished[job['id']] = time.time()
+                self.cond.notify_all()
+                callbacks = self.waiters.pop(job['id'], [])
+                ended = dict(job)
+            for callback in callbacks:
+                callback(ended)
+
+    def started(self, job, proc):
+        with self.cond:
+            if job['state'] == 'running':
+                self.procs[job['id']] = proc
+                return
+        # cancelled while the process was created
+        killgroup(proc)
+
+    def expire(self):
+        """Forget the jobs finished more than 'ttl' seconds ago. Called with
+        'cond' held."""
+        expired = time.time() - self.ttl
+        for jobid, finished in list(self.finished.items()):
+            if finished < expired:
+                del self.finished[jobid]
+                self.jobs.pop(jobid, None)
+
+def acceptsspool(ctype):
+    """Whether outputs may be spooled for the current request : only JSON
+    results can carry the spool handles, and only the clients sending the
+    SPOOL_HEADER fetch them.
+    """
+    return SPOOLTHRESHOLD > 0 and ctype == JSON_CONTENT_TYPE and SPOOL_HEADER in request.headers
+
+def spoolpath(spoolid, stream):
+    return os.path.join(SPOOLDIR, '%s.%s' % (spoolid, stream))
+
+class SpoolFile(object):
+    """Output of a command written to SPOOLDIR/<spoolid>.<stream>, readable
+    by the owner of the server only
+    """
+    def __init__(self, spoolid, stream):
+        self.spoolid = spoolid
+        self.size = 0
+        fd = os.open(spoolpath(spoolid, stream), os.O_WRONLY | os.O_CREAT | os.O_EXCL, 0o600)
+        self.file = os.fdopen(fd, 'wb')
+        METRICS.count('spool.files')
+
+    def write(self, data):
+        self.file.write(data)
+        self.size += len(data)
+
+    def close(self):
+        self.file.close()
+
+def spoolfile(result, stream, data):
+    """Write data to a new SpoolFile, sharing the spool id of the result"""
+    f = SpoolFile(result.get('spool', {}).get('id') or uuid.uuid4().hex, stream)
+    try:
+        f.write(data)
+    finally:
+        f.close()
+    return f
+
+def collectoutput(proc, spool=False, connection=None):
+    """Read stdout and stderr of the process until they are closed and return
+    (stdout, stderr, whether the process group was killed because the client
+    closed the given connection).
+
+    With 'spool', an output is kept in memory up to SPOOLTHRESHOLD bytes : past
+    it, it goes to a SpoolFile as it is read, so the memory used by a command
+    stays bounded whatever it writes.
+    """
+    spoolid = uuid.uuid4().hex
+    streams = {proc.stdout.fileno(): 'stdout', proc.stderr.fileno(): 'stderr'}
+    chunks = {'stdout': [], 'stderr': []}
+    sizes = {'stdout': 0, 'stderr': 0}
+    files = {}
+    watched = [connection] if connection is not None else []
+    hungup = False
+    try:
+        while streams:
+            ready = select.select(list(streams) + watched, [], [])[0]
+            for fd in ready:
+                if fd is connection:
+                    # readable while the command runs : the client is gone,
+                    # or sent its next request (checked once)
+                    watched = []
+                    if clientgone(connection):
+                        hungup = True
+                        killgroup(proc)
+                    continue
+                stream = streams[fd]
+                data = os.read(fd, STREAMCHUNKSIZE)
+                if not data:
+                    del streams[fd]
+                elif stream in files:
+                    files[stream].write(data)
+                else:
+                    chunks[stream].append(data)
+                    sizes[stream] += len(data)
+                    if spool and sizes[stream] > SPOOLTHRESHOLD:
+                        files[stream] = SpoolFile(spoolid, stream)
+                        files[stream].write(b''.join(chunks[stream]))
+                        chunks[stream] = None
+    finally:
+        for f in files.values():
+            f.close()
+        proc.stdout.close()
+        proc.stderr.close()
+    stdoutdata, stderrdata = [files.get(stream) or b''.join(chunks[stream]) for stream in ('stdout', 'stderr')]
+    return stdoutdata, stderrdata, hungup
+
+def clientgone(connection):
+    """Whether the client closed the (readable) connection"""
+    try:
+        return not connection.recv(1, socket.MSG_PEEK)
+    except socket.timeout:
+        return False
+    except socket.error as e:
+        return e.errno not in (errno.EAGAIN, errno.EWOULDBLOCK, errno.EINTR)
+
+class SpoolRange(object):
+    """File-like view of 'count' bytes of a spool file from 'offset', read by
+    chunks by wsgiref.
+    """
+    def __init__(self, path, offset, count):
+        self.file = open(path, 'rb')
+        self.file.seek(offset)
+        self.remaining = count
+
+    def read(self, size=-1):
+        if size < 0 or size > self.remaining:
+            size = self.remaining
+        data = self.file.read(size) if size else b''
+        self.remaining -= len(data)
+        return data
+
+    def close(self):
+        self.file.close()
+
+def sweepspool():
+    """Delete the spool files older than SPOOLTTL seconds, forever"""
+    while True:
+        expired = time.time() - SPOOLTTL
+        for name in os.listdir(SPOOLDIR):
+            path = os.path.join(SPOOLDIR, name)
+            try:
+                if os.path.getmtime(path) < expired:
+                    os.unlink(path)
+                    METRICS.count('spool.expired')
+            except OSError:
+                pass
+        time.sleep(max(1, SPOOLTTL / 10.0))
+
+def streamframe(ftype, data):
+    return struct.pack('>cI', ftype, len(data)) + data
+
+def streamoutput(command, proc, deadline=None):
+    """Generator yielding the output frames of the given process, up to its
+    return value. The process group is killed if the client goes away before
+    it ends, or by the Watchdog at the given Deadline.
+    """
+    fds = {proc.stdout.fileno(): STREAM_STDOUT, proc.stderr.fileno(): STREAM_STDERR}
+    try:
+        while fds:
+            ready = select.select(list(fds), [], [])[0]
+            for fd in ready:
+                data = os.read(fd, STREAMCHUNKSIZE)
+                if not data:
+                    del fds[fd]
+                    continue
+                yield streamframe(fds[fd], data)
+        ret = proc.wait()
+        logging.debug('Streamed command [%s] executed with return value [%s]' % (command, ret))
+        yield streamframe(STREAM_RETVAL, struct.pack('>i', ret))
+    finally:
+        if proc.poll() is None:
+            logging.warning('Streamed command [%s] interrupted : killing it' % command)
+            killgroup(proc)
+            proc.wait()
+        if deadline is not None:
+            WATCHDOG.unwatch(deadline)
+            if deadline.expired:
+                METRICS.count('commands.timedout')
+        proc.stdout.close()
+        proc.stderr.close()
+
+# ------------------------------------------------------------------------------
+# METRICS
+# ------------------------------------------------------------------------------
+
+class Metrics(object):
+    """Counters and latency distributions shared by all the server threads,
+    served by GET /metrics. Latencies are kept as counts per bucket of
+    LATENCYBUCKETS (plus an overflow bucket) : the memory used does not depend
+    on the number of requests. Percentiles are the upper bound of the bucket
+    holding them.
+    """
+    def __init__(self):
+        self.lock = threading.Lock()
+        self.started = time.time()
+        self.counters = {}
+        self.latencies = {}
+        self.gauges = {}
+
+    def count(self, name, value=1):
+        with self.lock:
+            self.counters[name] = self.counters.get(name, 0) + value
+
+    def observe(self, name, seconds):
+        """Record a latency and return it in milliseconds"""
+        millis = round(seconds * 1000, 3)
+        with self.lock:
+            latency = self.latencies.get(name)
+            if latency is None:
+                latency = self.latencies[name] = {'count': 0, 'sum': 0.0, 'max': 0.0, 'buckets': [0] * (len(LATENCYBUCKETS) + 1)}
+            latency['count'] += 1
+            latency['sum'] += millis
+            latency['max'] = max(latency['max'], millis)
+            for i, bound in enumerate(LATENCYBUCKETS):
+                if millis <= bound:
+                    break
+            else:
+                i = len(LATENCYBUCKETS)
+            latency['buckets'][i] += 1
+        return millis
+
+    def gauge(self, name, function):
+        """Register a function returning a value read on each snapshot"""
+        self.gauges[name] = function
+
+    def snapshot(self):
+        with self.lock:
+            counters = dict(self.counters)
+            latencies = {}
+            for name, latency in self.latencies.items():
+                latencies[name] = {'count': latency['count'], 'sum': round(latency['sum'], 3), 'max': latency['max'],
+                                   'p50': self.percentile(latency, 50), 'p99': self.percentile(latency, 99),
+                                   'buckets': [[bound, n] for bound, n in zip(LATENCYBUCKETS + (None,), latency['buckets'])]}
+        # 'running' is counted up and down by execute() : it is a gauge
+        gauges = {'uptime': round(time.time() - self.started, 3), 'running': counters.pop('running', 0)}
+        for name, function in self.gauges.items():
+            gauges[name] = function()
+        return {'counters': counters, 'gauges': gauges, 'latencies': latencies}
+
+    @staticmethod
+    def percentile(latency, pct):
+        rank = latency['count'] * pct / 100.0
+        seen = 0
+        for bound, n in zip(LATENCYBUCKETS, latency['buckets']):
+            seen += n
+            if seen >= rank:
+                return min(bound, latency['max'])
+        return latency['max']
+
+class Timer(object):
+    """Time the phases of a request. The time spent waiting for a server
+    worker and the time at which the request line was read are taken from the
+    WSGI environ (see KeepAliveRequestHandler).
+    """
+    def __init__(self, environ):
+        self.start = environ.get('cmdsrv.received') or time.time()
+        self.last = self.start
+        self.timing = {'queue': METRICS.observe('queue', environ.get('cmdsrv.queuewait', 0))}
+
+    def lap(self, phase):
+        now = time.time()
+        self.timing[phase] = METRICS.observe(phase, now - self.last)
+        self.last = now
+
+    def skip(self):
+        """Start the next phase now, the previous one being recorded
+        elsewhere"""
+        self.last = time.time()
+
+    def finish(self, body):
+        now = time.time()
+        METRICS.observe('encode', now - self.last)
+        METRICS.observe('total', now - self.start)
+        return body
+
+METRICS = Metrics()
 
 # ------------------------------------------------------------------------------
 # ERRORS
@@ -165,12 +1727,401 @@ def error500(error):
 def error504(error):
     return doerror(error)
 
-def errorhttpresponse(status, msg):
-    return HTTPResponse(json.dumps({'error': {'status': status, 'statusstr': HTTP_CODES[status], 'msg': msg}}, sort_keys=True, indent=4, separators=(',', ': ')), status, headers={"Content-Type":"application/json"})
+def errorbody(status, msg):
+    return json.dumps({'error': {'status': status, 'statusstr': HTTP_CODES[status], 'msg': msg}}, sort_keys=True, indent=4, separators=(',', ': '))
+
+def errorhttpresponse(status, msg, **headers):
+    METRICS.count('errors.%s' % status)
+    headers['Content-Type'] = JSON_CONTENT_TYPE
+    if status == 503:
+        # the server is overloaded : tell the clients when to come back
+        headers['Retry-After'] = str(RETRYAFTER)
+    return HTTPResponse(errorbody(status, msg), status, **headers)
 
 def doerror(error):
     return errorhttpresponse(int(error.status[:3]), error.body)
 
+# ------------------------------------------------------------------------------
+# SERVER
+# ------------------------------------------------------------------------------
+
+class KeepAliveServerHandler(ServerHandler):
+    """wsgiref handler answering in HTTP/1.1. The connection is kept open
+    unless the response length is unknown (streamed responses) or the request
+    failed (the request body may not have been consumed).
+    """
+    http_version = '1.1'
+
+    def finish_response(self):
+        if self.request_handler.parked is not None:
+            # nothing is sent : the request is answered when served again
+            SimpleHandler.close(self)
+            return
+        ServerHandler.finish_response(self)
+
+    def cleanup_headers(self):
+        ServerHandler.cleanup_headers(self)
+        if 'Content-Length' not in self.headers or not self.status.startswith('2'):
+            self.headers['Connection'] = 'close'
+        if self.headers.get('Connection', '').lower() == 'close':
+            self.request_handler.close_connection = 1
+
+class KeepAliveRequestHandler(WSGIRequestHandler):
+    """wsgiref request handler serving several requests per connection, as
+    long as the client keeps it open. It lives as long as its connection :
+    a worker calls handle() for each request, and finish() once the
+    connection is closed. The 'timeout' attribute closes the connections idle
+    for too long, and bounds the reads of a request.
+
+    The WSGI environ carries the time at which the request line was read
+    ('cmdsrv.received'), the client socket ('cmdsrv.connection', to notice
+    when it is closed) and the time the request waited for a worker
+    ('cmdsrv.queuewait', set by the worker before each handle()).
+
+    An application may park the request with the 'cmdsrv.park' function of
+    the environ instead of waiting on the worker : see park().
+    """
+    # seconds the next request waited in the queue of the workers
+    queuewait = 0
+    # (deadline, token) of the parked request, see IdleConnections
+    parked = None
+    # (environ, close_connection) of the parked request, served again by
+    # the next handle()
+    replay = None
+
+    protocol_version = 'HTTP/1.1'
+
+    def __init__(self, request, client_address, server):
+        self.request = request
+        self.client_address = client_address
+        self.server = server
+        self.setup()
+
+    def park(self, deadline, register):
+        """Serve the current request again at the deadline, or as soon as the
+        function given to 'register' is called, without holding the worker
+        meanwhile. 'register' returns False if there is nothing to wait for.
+        Return whether the request is parked : the response of the
+        application is then dropped, and the environ of the replayed request
+        holds 'cmdsrv.replay' : the value given to the wake up function, or
+        True at the deadline.
+        """
+        token = object()
+        self.parked = (deadline, token)
+        if not register(lambda value=True: self.server.idle.wake(self, token, value)):
+            self.parked = None
+            return False
+        return True
+
+    def handle(self):
+        """Serve the next request of the connection, or the parked one."""
+        if self.replay is not None:
+            environ, self.close_connection = self.replay
+            self.replay = None
+            self.serve(environ)
+            return
+        self.close_connection = 1
+        try:
+            self.raw_requestline = self.rfile.readline(65537)
+        except socket.timeout:
+            self.close_connection = 1
+            return
+        if not self.raw_requestline:
+            self.close_connection = 1
+            return
+        received = time.time()
+        if not self.parse_request():
+            return
+
+        environ = self.get_environ()
+        environ['cmdsrv.received'] = received
+        environ['cmdsrv.connection'] = self.connection
+        environ['cmdsrv.park'] = self.park
+        self.serve(environ)
+
+    def serve(self, environ):
+        environ['cmdsrv.queuewait'] = self.queuewait
+        # the pipelined requests served next did not wait for a worker
+        self.queuewait = 0
+        handler = KeepAliveServerHandler(self.rfile, self.wfile, self.get_stderr(), environ)
+        handler.request_handler = self
+        handler.run(self.server.get_app())
+        if self.parked is not None:
+            replay = dict(environ)
+            del replay['cmdsrv.park']
+            self.replay = (replay, self.close_connection)
+
+def pendingbytes(rfile):
+    """Bytes already read from the socket but not consumed by the handler :
+    pipelined requests, which the poll of the idle connections cannot see.
+    """
+    rbuf = getattr(rfile, '_rbuf', None)
+    if rbuf is None:
+        return 0
+    rbuf.seek(0, 2)
+    return rbuf.tell()
+
+class IdleConnections(object):
+    """Connections waiting for their next request (or for their first one),
+    watched by a single thread : a connection goes to the worker queue when
+    its request arrives, and is closed once idle for 'timeout' seconds. The
+    workers are thus held only while a request is served.
+
+    The connections whose request is parked (see KeepAliveRequestHandler.park)
+    wait here as well, without being polled, until they are woken up or
+    reach their deadline : they go to the worker queue then.
+    """
+    def __init__(self, server, timeout):
+        self.server = server
+        self.timeout = timeout
+        self.lock = threading.Lock()
+        # handlers parked by the workers, not yet polled
+        self.added = []
+        # file descriptor -> (handler, time it became idle)
+        self.handlers = {}
+        # handlers of parked requests -> deadline, and those woken up -> value
+        # to replay them with : under 'lock'
+        self.parked = {}
+        self.woken = {}
+        self.wakeup = os.pipe()
+        t = threading.Thread(target=self.pollloop, name='cmdsrv-idle')
+        t.daemon = True
+        t.start()
+
+    def count(self):
+        return len(self.handlers)
+
+    def add(self, handler):
+        with self.lock:
+            self.added.append(handler)
+        os.write(self.wakeup[1], b'.')
+
+    def park(self, handler):
+        with self.lock:
+            self.parked[handler] = handler.parked[0]
+        os.write(self.wakeup[1], b'.')
+
+    def wake(self, handler, token, value):
+        """Queue the parked request again. Called by the thread it waited
+        for, possibly before the worker handed the handler to park()."""
+        with self.lock:
+            if handler.parked is None or handler.parked[1] is not token:
+                # answered already, at its deadline
+                return
+            self.woken[handler] = value
+        os.write(self.wakeup[1], b'.')
+
+    def parkedcount(self):
+        return len(self.parked)
+
+    def pollloop(self):
+        poller = select.poll()
+        poller.register(self.wakeup[0], select.POLLIN)
+        while True:
+            timeout = 1000 if self.timeout else None
+            with self.lock:
+                if self.parked:
+                    nearest = max(0, int((min(self.parked.values()) - time.time()) * 1000) + 1)
+                    timeout = nearest if timeout is None else min(timeout, nearest)
+            try:
+                events = poller.poll(timeout)
+            except select.error as e:
+                if e.args[0] != errno.EINTR:
+                    raise
+                continue
+            now = time.time()
+            for fd, event in events:
+                if fd == self.wakeup[0]:
+                    os.read(fd, 4096)
+                    continue
+                # a request, or the client closing the connection
+                poller.unregister(fd)
+                self.server.requeue(self.handlers.pop(fd)[0])
+            ready = []
+            with self.lock:
+                added, self.added = self.added, []
+                for handler, deadline in list(self.parked.items()):
+                    if handler in self.woken or deadline <= now:
+                        del self.parked[handler]
+                        handler.replay[0]['cmdsrv.replay'] = self.woken.pop(handler, True)
+                        handler.parked = None
+                        ready.append(handler)
+            for handler in ready:
+                self.server.requeue(handler)
+            for handler in added:
+                fd = handler.connection.fileno()
+                self.handlers[fd] = (handler, now)
+                poller.register(fd, select.POLLIN)
+            if self.timeout:
+                for fd, (handler, idle) in list(self.handlers.items()):
+                    if now - idle > self.timeout:
+                        poller.unregister(fd)
+                        del self.handlers[fd]
+                        self.server.closeconnection(handler.request, handler)
+
+class WorkerPoolMixIn:
+    """Serve the connections with a fixed pool of worker threads. A worker
+    serves one request at a time : an accepted connection waits in the
+    IdleConnections of the server until its request arrives, and goes back
+    there between two requests when it is kept alive.
+
+    The admission is decided for each request, not once per connection :
+    requests wait in a queue of at most 'queuedepth' entries until a worker is
+    free, above that they are answered '503 Service Unavailable' right away
+    instead of piling up. A request which waited more than MAXQUEUEWAIT
+    seconds is answered 503 as well when a worker takes it : its client has
+    likely given up, serving it would only delay the next ones. The 503
+    responses carry a 'Retry-After' header of RETRYAFTER seconds, and close
+    the connection.
+    """
+    def startworkers(self, workers, queuedepth):
+        self.connections = Queue.Queue(queuedepth)
+        self.idle = IdleConnections(self, self.RequestHandlerClass.timeout)
+        METRICS.gauge('queued', self.connections.qsize)
+        METRICS.gauge('idle', self.idle.count)
+        METRICS.gauge('parked', self.idle.parkedcount)
+        for i in range(workers):
+            t = threading.Thread(target=self.workerloop, name='cmdsrv-worker-%s' % i)
+            t.daemon = True
+            t.start()
+        logging.info('Started %s workers, queue depth %s' % (workers, queuedepth))
+
+    def workerloop(self):
+        while True:
+            request, client_address, queued, handler = self.connections.get()
+            # each request is admitted on its own, whatever the connection
+            # it comes from
+            handler.queuewait = time.time() - queued
+            if MAXQUEUEWAIT and handler.queuewait > MAXQUEUEWAIT:
+                logging.warning('Request from %s queued for %.3f s : rejecting it' % (client_address, handler.queuewait))
+                METRICS.count('errors.503')
+                METRICS.count('requests.shed')
+                self.rejectconnection(request, 'Request queued for too long, try again later')
+                self.closeconnection(request, handler)
+                continue
+            try:
+                handler.handle()
+                while handler.parked is None and not handler.close_connection and pendingbytes(handler.rfile):
+                    handler.handle()
+                if handler.parked is not None:
+                    self.idle.park(handler)
+                    continue
+                if not handler.close_connection:
+                    self.idle.add(handler)
+                    continue
+            except Exception:
+                self.handle_error(request, client_address)
+            self.closeconnection(request, handler)
+
+    def process_request(self, request, client_address):
+        # the connection waits for its first request with the idle ones
+        self.idle.add(self.RequestHandlerClass(request, client_address, self))
+
+    def requeue(self, handler):
+        """Queue a connection whose next request has arrived. Called by the
+        IdleConnections thread.
+        """
+        try:
+            self.connections.put_nowait((handler.request, handler.client_address, time.time(), handler))
+        except Queue.Full:
+            logging.warning('Connection queue full : rejecting request from %s' % (handler.client_address,))
+            METRICS.count('errors.503')
+            self.rejectconnection(handler.request, 'Too many requests queued, try again later')
+            self.closeconnection(handler.request, handler)
+
+    def rejectconnection(self, request, msg):
+        """Answer 503 without waiting for the client, then the connection is
+        closed : this runs on the IdleConnections thread when the queue is
+        full, where any wait would delay the other connections when it
+        matters most."""
+        body = errorbody(503, msg).encode('utf-8')
+        head = 'HTTP/1.1 503 %s\r\nContent-Type: application/json\r\nContent-Length: %s\r\nRetry-After: %s\r\nConnection: close\r\n\r\n' % (HTTP_CODES[503], len(body), RETRYAFTER)
+        try:
+            # consume what the client already sent, or closing the socket
+            # would reset the connection before it reads the answer
+            for i in range(REJECTDRAINREADS):
+                if not select.select([request], [], [], 0)[0] or not request.recv(65536):
+                    break
+            # a few hundred bytes : they fit in the send buffer of the socket
+            request.sendall(head.encode('ascii') + body)
+        except socket.error as e:
+            logging.debug('Could not reject connection : %s' % e)
+
+    def closeconnection(self, request, handler=None):
+        if handler is not None:
+            # a parked request failed : nothing to wake up anymore
+            handler.parked = None
+            try:
+                handler.finish()
+            except socket.error:
+                pass
+        # shutdown_request (python 2.7+) sends the FIN even if the descriptor
+        # leaked to a process
+        getattr(self, 'shutdown_request', self.close_request)(request)
+
+class PooledWSGIServer(WorkerPoolMixIn, WSGIServer):
+    """wsgiref server handing the connections to a pool of worker threads, so
+    that independent commands run in parallel. Idle keep-alive connections
+    hold no worker.
+    """
+    pass
+
+class UnixWSGIServer(PooledWSGIServer):
+    """Same as PooledWSGIServer, listening on a unix domain socket instead
+    of a TCP port. A stale socket file left by a previous run is replaced.
+    """
+    address_family = socket.AF_UNIX
+
+    def server_bind(self):
+        if os.path.exists(self.server_address):
+            os.unlink(self.server_address)
+        SocketServer.TCPServer.server_bind(self)
+        self.server_name = 'localhost'
+        self.server_port = 0
+        self.setup_environ()
+
+    def get_request(self):
+        request = self.socket.accept()[0]
+        return request, ('localhost', 0)
+
+    def server_close(self):
+        PooledWSGIServer.server_close(self)
+        if os.path.exists(self.server_address):
+            os.unlink(self.server_address)
+
+class CmdsrvServer(ServerAdapter):
+    """Bottle server adapter based on wsgiref, keeping the HTTP connections
+    alive between requests.
+
+    Options :
+      - keepalivetimeout : seconds after which an idle connection is closed
+      - unixsocket : path of a unix domain socket to listen on, instead of
+        host:port
+      - unixsocketmode : permissions of the unix domain socket file
+      - workers : number of connections served at the same time
+      - queuedepth : number of accepted connections waiting for a worker
+    """
+    def run(self, app):
+        attrs = {'timeout': self.options.get('keepalivetimeout')}
+        if self.quiet:
+            attrs['log_request'] = lambda *args, **kw: None
+        handler = type('CmdsrvRequestHandler', (KeepAliveRequestHandler,), attrs)
+
+        unixsocket = self.options.get('unixsocket')
+        if unixsocket:
+            srv = UnixWSGIServer(unixsocket, handler)
+            srv.set_app(app)
+            os.chmod(unixsocket, self.options.get('unixsocketmode') or 0o600)
+            logging.info('Listening on unix domain socket %s' % unixsocket)
+        else:
+            srv = make_server(self.host, self.port, app, server_class=PooledWSGIServer, handler_class=handler)
+
+        srv.startworkers(self.options.get('workers') or WORKERS, self.options.get('queuedepth') or QUEUEDEPTH)
+        try:
+            srv.serve_forever()
+        finally:
+            srv.server_close()
+
 # ------------------------------------------------------------------------------
 # MAIN
 # ------------------------------------------------------------------------------
@@ -181,22 +2132,104 @@ def main():
     global VERSION
     global CHANGESET
     global CHANGESETDATE
+    global BATCHWORKERS
+    global DEFAULTTIMEOUT
+    global STREAMCHUNKSIZE
+    global POOLDEFAULT
+    global WARMPOOL
+    global SPOOLTHRESHOLD
+    global SPOOLDIR
+    global SPOOLTTL
+    global JOBS
+    global COMPRESSTHRESHOLD
+    global COMPRESSLEVEL
+    global JOBMAXWAIT
+    global MAXQUEUEWAIT
+    global RETRYAFTER
 
     VERSION = config.get('cmdsrv', 'version')
     CHANGESET = config.get('cmdsrv', 'changeSet')
     CHANGESETDATE = config.get('cmdsrv', 'changeSetDate')
+    if config.has_option('cmdsrv', 'batchworkers'):
+        BATCHWORKERS = config.getint('cmdsrv', 'batchworkers')
+    if config.has_option('cmdsrv', 'streamchunksize'):
+        STREAMCHUNKSIZE = config.getint('cmdsrv', 'streamchunksize')
+    if config.has_option('cmdsrv', 'timeout'):
+        DEFAULTTIMEOUT = config.getfloat('cmdsrv', 'timeout')
+    if config.has_option('bottle', 'maxqueuewait'):
+        MAXQUEUEWAIT = config.getfloat('bottle', 'maxqueuewait')
+    if config.has_option('bottle', 'retryafter'):
+        RETRYAFTER = config.getint('bottle', 'retryafter')
 
     logging.basicConfig(
         level=getattr(logging, config.get('logging', 'level').upper(), None),
         format=config.get('logging', 'format')
     )
 
+    # started before the server threads, and from a small process image
+    if config.has_section('pool') and config.getboolean('pool', 'enabled'):
+        POOLDEFAULT = config.has_option('pool', 'default') and config.getboolean('pool', 'default')
+        WARMPOOL = WarmProcessPool(config.getint('pool', 'size'), config.getint('pool', 'maxtasks'))
+        METRICS.gauge('pool.idle', WARMPOOL.idle.qsize)
+
+    if config.has_section('spool') and config.getint('spool', 'threshold') > 0:
+        SPOOLTHRESHOLD = config.getint('spool', 'threshold')
+        if config.has_option('spool', 'directory') and config.get('spool', 'directory'):
+            SPOOLDIR = config.get('spool', 'directory')
+        if config.has_option('spool', 'ttl'):
+            SPOOLTTL = config.getint('spool', 'ttl')
+        if not os.path.isdir(SPOOLDIR):
+            os.makedirs(SPOOLDIR, 0o700)
+        sweeper = threading.Thread(target=sweepspool, name='cmdsrv-spool-sweeper')
+        sweeper.daemon = True
+        sweeper.start()
+        logging.info('Spooling outputs over %s bytes to %s for %s seconds' % (SPOOLTHRESHOLD, SPOOLDIR, SPOOLTTL))
+
+    if config.has_section('compression'):
+        if config.has_option('compression', 'threshold'):
+            COMPRESSTHRESHOLD = config.getint('compression', 'threshold')
+        if config.has_option('compression', 'level'):
+            COMPRESSLEVEL = config.getint('compression', 'level')
+
+    jobworkers, maxjobs, jobttl = 4, 1000, 600
+    if config.has_section('jobs'):
+        if config.has_option('jobs', 'workers'):
+            jobworkers = config.getint('jobs', 'workers')
+        if config.has_option('jobs', 'maxjobs'):
+            maxjobs = config.getint('jobs', 'maxjobs')
+        if config.has_option('jobs', 'ttl'):
+            jobttl = config.getint('jobs', 'ttl')
+        if config.has_option('jobs', 'maxwait'):
+            JOBMAXWAIT = config.getint('jobs', 'maxwait')
+    JOBS = JobRunner(jobworkers, maxjobs, jobttl)
+
     bindaddress = config.get('bottle', 'bindaddress')
     bindport = config.getint('bottle', 'bindport')
 
-    print "=\n= Starting bottle cmdsrv on %s:%s\n=" % (bindaddress, bindport)
+    unixsocket = None
+    unixsocketmode = None
+    if config.has_option('bottle', 'unixsocket') and config.get('bottle', 'unixsocket'):
+        unixsocket = config.get('bottle', 'unixsocket')
+        if config.has_option('bottle', 'unixsocketmode'):
+            unixsocketmode = int(config.get('bottle', 'unixsocketmode'), 8)
+
+    if unixsocket:
+        print "=\n= Starting bottle cmdsrv on unix domain socket %s\n=" % unixsocket
+    else:
+        print "=\n= Starting bottle cmdsrv on %s:%s\n=" % (bindaddress, bindport)
+
+    keepalivetimeout = None
+    if config.has_option('bottle', 'keepalivetimeout'):
+        keepalivetimeout = config.getint('bottle', 'keepalivetimeout')
+
+    workers = WORKERS
+    queuedepth = QUEUEDEPTH
+    if config.has_option('bottle', 'workers'):
+        workers = config.getint('bottle', 'workers')
+    if config.has_option('bottle', 'queuedepth'):
+        queuedepth = config.getint('bottle', 'queuedepth')
 
-    run(host=bindaddress, port=bindport, reloader=config.getboolean('bottle', 'reloader'), debug=config.getboolean('bottle', 'debug'))
+    run(server=CmdsrvServer, host=bindaddress, port=bindport, reloader=config.getboolean('bottle', 'reloader'), debug=config.getboolean('bottle', 'debug'), keepalivetimeout=keepalivetimeout, unixsocket=unixsocket, unixsocketmode=unixsocketmode, workers=workers, queuedepth=queuedepth)
 
 if __name__ == '__main__':
     sys.exit(main())
@@ -0,0 +1,77 @@
+#!/usr/bin/env python
+
+#
+# Author:: Christophe Uberri <cuberri@gmail.com>
+#
+# Copyright 2013, Christophe Uberri <cuberri@gmail.com>
+#
+# Licensed under the Apache License, Version 2.0 (the "License");
+# you may not use this file except in compliance with the License.
+# You may obtain a copy of the License at
+#
+#     http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+#
+
+# ------------------------------------------------------------------------------
+# Warm worker of the cmdsrv process pool (see the [pool] section of cmdsrv.cfg).
+#
+# The server starts a few of these small processes up front and hands them the
+# commands marked poolable : the command process is forked from this small
+# process instead of the (big, multi threaded) server, and the worker is
+# reused for many commands.
+#
+# Protocol, on stdin/stdout, all integers big endian :
+#   - request : u32 length + json list of the command arguments
+#   - reply : u32 length + u8 status + i32 code + u32 length + data + u32
+#     length + data
+#       - status 0 : code is the return value, data are stdout and stderr
+#       - status 1 : the process could not be created, code is the errno and
+#         the first data is the error message
+# The worker exits when its stdin is closed.
+# ------------------------------------------------------------------------------
+
+import sys
+import json
+import struct
+import subprocess
+
+def readexactly(stream, size):
+    data = b''
+    while len(data) < size:
+        chunk = stream.read(size - len(data))
+        if not chunk:
+            return None
+        data += chunk
+    return data
+
+def run(command):
+    try:
+        proc = subprocess.Popen(command, stdout=subprocess.PIPE, stderr=subprocess.PIPE, close_fds=True)
+    except OSError as e:
+        msg = (e.strerror or str(e)).encode('utf-8')
+        return struct.pack('>BiI', 1, e.errno or 0, len(msg)) + msg + struct.pack('>I', 0)
+    stdoutdata, stderrdata = proc.communicate()
+    return struct.pack('>BiI', 0, proc.returncode, len(stdoutdata)) + stdoutdata + struct.pack('>I', len(stderrdata)) + stderrdata
+
+def main():
+    stdin = getattr(sys.stdin, 'buffer', sys.stdin)
+    stdout = getattr(sys.stdout, 'buffer', sys.stdout)
+    while True:
+        head = readexactly(stdin, 4)
+        if head is None:
+            return 0
+        data = readexactly(stdin, struct.unpack('>I', head)[0])
+        if data is None:
+            return 0
+        reply = run(json.loads(data.decode('utf-8')))
+        stdout.write(struct.pack('>I', len(reply)) + reply)
+        stdout.flush()
+
+if __name__ == '__main__':
+    sys.exit(main())